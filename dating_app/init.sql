@@ -11,6 +11,8 @@ CREATE TABLE IF NOT EXISTS users (
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
 );
 
+-- Baseline schema only: later changes (history indexes, conversation_id...) are applied
+-- by the server at startup, see com.datingapp.server.SchemaMigrator.
 CREATE TABLE IF NOT EXISTS messages (
     id INT AUTO_INCREMENT PRIMARY KEY,
     sender_id INT NOT NULL,
@@ -34,17 +34,14 @@ public class MainClient extends Application {
     }
     
     private void cleanupPreviousController() {
+        // Each controller cancels its message subscriptions, so handlers of a closed view stop receiving
         if (currentController instanceof ChatController) {
             ((ChatController) currentController).cleanUp();
+        } else if (currentController instanceof LoginController) {
+            ((LoginController) currentController).cleanUp();
+        } else if (currentController instanceof RegistrationController) {
+            ((RegistrationController) currentController).cleanUp();
         }
-        // Add similar blocks if LoginController or RegistrationController need cleanup
-        // For now, LoginController and RegistrationController do not have specific cleanup,
-        // but their message handlers might need to be cleared if they become more complex
-        // and to prevent multiple handlers from acting on the same messages after view switch.
-        // Example: if LoginController also had a specific message handler:
-        // else if (currentController instanceof LoginController) {
-        //    ((LoginController) currentController).cleanUp(); // Assuming LoginController gets a cleanUp method
-        // }
     }
 
     public void showLoginScreen() {
@@ -1,6 +1,14 @@
 package com.datingapp;
 
 import com.datingapp.server.ChatServerEndpoint;
+import com.datingapp.server.CommandExecutor;
+import com.datingapp.server.DatabaseUtil;
+import com.datingapp.server.DeflateConfigurator;
+import com.datingapp.server.MessagePersister;
+import com.datingapp.server.PasswordUtil;
+import com.datingapp.server.SchemaMigrator;
+import com.datingapp.server.ServerStats;
+import com.datingapp.server.UserDirectory;
 import org.glassfish.tyrus.server.Server;
 
 import java.io.FileInputStream;
@@ -102,11 +110,21 @@ public class MainServer {
 
         System.out.println("Le port " + serverPort + " est disponible, procédure de démarrage du serveur...");
 
-        // Tester la connexion à la base de données avant de démarrer le serveur
+        // Préchauffer le pool de connexions (et tester la base) avant d'accepter des sockets
         try {
             System.out.println("Test de la connexion à la base de données...");
-            com.datingapp.server.DatabaseUtil.getConnection().close();
+            DatabaseUtil.prewarmPool();
             System.out.println("Connexion à la base de données réussie.");
+            // Appliquer les migrations de schéma (index d'historique, etc.)
+            SchemaMigrator.migrate();
+            // Reprendre la numérotation des messages (séquence utilisée par RESUME)
+            MessagePersister.start();
+            // Choisir le coût BCrypt selon le temps de hachage visé (password.bcrypt.targetMillis)
+            PasswordUtil.calibrateCost();
+            // Précharger l'annuaire username <-> id (évite une requête par DM)
+            if (Boolean.parseBoolean(getProperty("directory.preload", "true"))) {
+                UserDirectory.preload();
+            }
         } catch (Exception e) {
             System.err.println("ERREUR : Échec de la connexion à la base de données !");
             System.err.println("URL DB : " + getProperty("db.url", "jdbc:mysql://localhost:3306/dating_app_db_default"));
@@ -115,6 +133,7 @@ public class MainServer {
             System.err.println("1. Le serveur MySQL fonctionne");
             System.err.println("2. La base de données existe");
             System.err.println("3. Les identifiants dans server.properties sont corrects");
+            System.err.println("4. L'utilisateur a les droits ALTER/INDEX nécessaires aux migrations de schéma");
             return;
         }
 
@@ -131,6 +150,9 @@ public class MainServer {
 
             System.out.println("✓ Serveur WebSocket démarré avec succès !");
 
+            // Rapport périodique des compteurs (files sortantes, etc.) ; 0 pour désactiver
+            ServerStats.start(getIntProperty("server.stats.intervalSeconds", 60));
+
             // Afficher les informations réseau
             displayNetworkInfo(serverPort);
 
@@ -167,10 +189,17 @@ public class MainServer {
             return;
         } finally {
             // Arrêt sécurisé du serveur
+            ServerStats.stop();
             if (server != null) {
                 try {
                     System.out.println("Arrêt du serveur...");
                     server.stop();
+                    DeflateConfigurator.close();
+                    // Laisser les commandes déjà reçues se terminer
+                    CommandExecutor.shutdown(10);
+                    // Écrire les messages encore en file avant de fermer le pool
+                    MessagePersister.shutdown(30);
+                    DatabaseUtil.shutdownPool();
                     System.out.println("Serveur arrêté avec succès.");
                 } catch (Exception e) {
                     System.err.println("Erreur pendant l'arrêt du serveur : " + e.getMessage());
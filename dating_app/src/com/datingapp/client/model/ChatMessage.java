@@ -4,12 +4,18 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 public class ChatMessage {
+    private final long id; // server row id (history, MSG_SEQ / DM_RECEIVE_SEQ), 0 if unknown
     private final String sender;
     private final String content;
     private final LocalDateTime timestamp;
     private final boolean sentByCurrentUser;
     private final MessageType type;
     private final String senderAvatarUrl;
+    // Render data, computed once here (off the FX thread) instead of on every cell update
+    private final String displayContent;
+    private final String formattedTimestamp;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
 
     public enum MessageType {
         GENERAL, DIRECT, SYSTEM_NOTIFICATION, USER_EVENT
@@ -17,24 +23,36 @@ public class ChatMessage {
 
     // Constructor for live messages (timestamp generated now)
     public ChatMessage(String sender, String content, String senderAvatarUrl, boolean sentByCurrentUser, MessageType type) {
+        this.id = 0;
         this.sender = sender;
         this.content = content;
         this.timestamp = LocalDateTime.now(); // CORRECTION: Toujours générer un timestamp
         this.sentByCurrentUser = sentByCurrentUser;
         this.type = type;
         this.senderAvatarUrl = (senderAvatarUrl == null || senderAvatarUrl.trim().isEmpty()) ? null : senderAvatarUrl.trim();
+        this.displayContent = Emoji.replaceShortcodes(content);
+        this.formattedTimestamp = this.timestamp.format(TIME_FORMAT);
     }
 
     // Constructor for messages from history (timestamp provided)
     public ChatMessage(String sender, String content, LocalDateTime timestamp, boolean sentByCurrentUser, MessageType type, String senderAvatarUrl) {
+        this(0, sender, content, timestamp, sentByCurrentUser, type, senderAvatarUrl);
+    }
+
+    // Same, with the server's id: the history cursor for paging back to this message once it is evicted
+    public ChatMessage(long id, String sender, String content, LocalDateTime timestamp, boolean sentByCurrentUser, MessageType type, String senderAvatarUrl) {
+        this.id = id;
         this.sender = sender;
         this.content = content;
         this.timestamp = timestamp != null ? timestamp : LocalDateTime.now(); // CORRECTION: Fallback si timestamp null
         this.sentByCurrentUser = sentByCurrentUser;
         this.type = type;
         this.senderAvatarUrl = (senderAvatarUrl == null || senderAvatarUrl.trim().isEmpty()) ? null : senderAvatarUrl.trim();
+        this.displayContent = Emoji.replaceShortcodes(content);
+        this.formattedTimestamp = this.timestamp.format(TIME_FORMAT);
     }
 
+    public long getId() { return id; }
     public String getSender() { return sender; }
     public String getContent() { return content; }
     public LocalDateTime getTimestamp() { return timestamp; }
@@ -42,12 +60,11 @@ public class ChatMessage {
     public MessageType getType() { return type; }
     public String getSenderAvatarUrl() { return senderAvatarUrl; }
 
+    // The content with emoji shortcodes replaced, as displayed
+    public String getDisplayContent() { return displayContent; }
+
     public String getFormattedTimestamp() {
-        // CORRECTION: Protection contre timestamp null
-        if (timestamp == null) {
-            return LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
-        }
-        return timestamp.format(DateTimeFormatter.ofPattern("HH:mm"));
+        return formattedTimestamp;
     }
 
     @Override
@@ -0,0 +1,45 @@
+package com.datingapp.client.model;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Text shortcodes shown as emoji (":)" -> "☺"), replaced in a single pass over the message.
+ */
+public final class Emoji {
+
+    private static final Map<String, String> SHORTCODES = Map.of(
+            ":)", "☺",        // U+263A White Smiling Face
+            ":(", "☹",        // U+2639 White Frowning Face
+            "<3", "❤",        // U+2764 Heavy Black Heart
+            ":D", "😃",        // U+1F603 Smiling Face With Open Mouth
+            ";)", "😉",        // U+1F609 Winking Face
+            ":P", "😛",        // U+1F61B Face With Stuck-Out Tongue
+            ":O", "😮",        // U+1F62E Face With Open Mouth
+            ":'(", "😢",       // U+1F622 Crying Face
+            "xD", "😂"         // U+1F602 Face With Tears of Joy (approximation for xD)
+    );
+
+    // One alternation of every shortcode, longest first so ":'(" wins over a shorter match at the same spot
+    private static final Pattern MATCHER = Pattern.compile(SHORTCODES.keySet().stream()
+            .sorted(Comparator.comparingInt(String::length).reversed())
+            .map(Pattern::quote)
+            .collect(Collectors.joining("|")));
+
+    private Emoji() {}
+
+    public static String replaceShortcodes(String text) {
+        if (text == null) return null;
+        Matcher m = MATCHER.matcher(text);
+        if (!m.find()) return text;
+        StringBuilder sb = new StringBuilder(text.length());
+        do {
+            m.appendReplacement(sb, Matcher.quoteReplacement(SHORTCODES.get(m.group())));
+        } while (m.find());
+        m.appendTail(sb);
+        return sb.toString();
+    }
+}
@@ -4,6 +4,7 @@ public class UserProfile {
     private final String username;
     private String avatarUrl;
     private String bio; // New field for biography
+    private int version = -1; // server profile version, -1 = not fetched yet
 
     // Constructor for when bio might not be immediately available
     public UserProfile(String username, String avatarUrl) {
@@ -39,6 +40,14 @@ public class UserProfile {
         this.bio = (bio == null || bio.trim().isEmpty()) ? null : bio.trim();
     }
 
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     @Override
     public String toString() {
         return "UserProfile{" +
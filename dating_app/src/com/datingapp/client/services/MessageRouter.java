@@ -0,0 +1,69 @@
+package com.datingapp.client.services;
+
+import com.datingapp.common.WireCodec;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Distribution des messages reçus, côté client.
+ * Chaque message est décodé une seule fois en {@link WireCodec.Frame} (opcode et champs typés), puis passé
+ * aux abonnés de son opcode sur le thread « ws-dispatch », dans l'ordre de réception. Les abonnés décodent
+ * là ce qui doit l'être (JSON de l'historique, profils...) et ne renvoient sur le thread JavaFX
+ * (Platform.runLater) que la mise à jour de l'interface.
+ * <p>
+ * Les listes d'abonnés sont copiées à l'écriture : on s'abonne et se désabonne depuis n'importe quel thread,
+ * y compris pendant une distribution.
+ */
+public class MessageRouter {
+
+    /** Abonnement rendu par {@link #subscribe} ; cancel() le retire. */
+    public interface Subscription {
+        void cancel();
+    }
+
+    private static final ExecutorService dispatcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ws-dispatch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<WireCodec.Op, List<Consumer<WireCodec.Frame>>> subscribers = new EnumMap<>(WireCodec.Op.class);
+
+    MessageRouter() {
+        // Remplie une fois pour toutes : ensuite la table n'est plus que lue
+        for (WireCodec.Op op : WireCodec.Op.values()) subscribers.put(op, new CopyOnWriteArrayList<>());
+    }
+
+    /**
+     * Abonne {@code handler} aux messages des opcodes donnés ; il est appelé sur le thread de distribution.
+     */
+    public Subscription subscribe(Consumer<WireCodec.Frame> handler, WireCodec.Op... ops) {
+        for (WireCodec.Op op : ops) subscribers.get(op).add(handler);
+        List<WireCodec.Op> subscribed = Arrays.asList(ops.clone());
+        return () -> subscribed.forEach(op -> subscribers.get(op).remove(handler));
+    }
+
+    /** Exécute {@code task} sur le thread de distribution, après les messages déjà reçus. */
+    void post(Runnable task) {
+        dispatcher.execute(task);
+    }
+
+    /** Passe le message aux abonnés de son opcode ; à appeler sur le thread de distribution. */
+    void publish(WireCodec.Frame frame) {
+        for (Consumer<WireCodec.Frame> handler : subscribers.get(frame.op())) {
+            try {
+                handler.accept(frame);
+            } catch (RuntimeException e) {
+                // Un abonné en erreur ne doit pas priver les autres du message
+                System.err.println("Erreur dans un gestionnaire de " + frame.op() + " : " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.datingapp.client.services;
+
+import com.datingapp.common.WireCodec;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * File d'envoi bornée d'une connexion, côté client.
+ * Les appelants (le thread JavaFX) ne font qu'ajouter ; la file est vidée un message à la fois par l'API
+ * asynchrone de la session, dans l'ordre d'ajout, depuis un thread d'envoi dédié : l'API « asynchrone »
+ * du client Tyrus écrit sur le socket dans le thread appelant, qui ne doit donc pas être celui de l'interface.
+ * <p>
+ * Un message ajouté avec une clé de regroupement remplace celui de même clé encore en attente (à sa place
+ * dans la file) : seule la dernière version part. Quand la file est pleine, le nouveau message est refusé.
+ * Le choix texte / binaire ({@link WireCodec}) est fait à l'envoi, selon le protocole négocié à ce moment.
+ */
+public class SendQueue {
+
+    /** Instantané des compteurs, pour l'interface. */
+    public static final class Stats {
+        public final int depth;
+        public final long sent;
+        public final long dropped;
+        public final long coalesced;
+        public final long failures;
+        public final double lastLatencyMs;   // de l'ajout dans la file à la fin de l'écriture
+        public final double averageLatencyMs; // moyenne mobile (EWMA)
+        public final double maxLatencyMs;
+
+        private Stats(SendQueue q) {
+            depth = q.queue.size() + (q.sending ? 1 : 0);
+            sent = q.sent;
+            dropped = q.dropped;
+            coalesced = q.coalesced;
+            failures = q.failures;
+            lastLatencyMs = q.lastLatencyNanos / 1_000_000.0;
+            averageLatencyMs = q.averageLatencyNanos / 1_000_000.0;
+            maxLatencyMs = q.maxLatencyNanos / 1_000_000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("depth=%d sent=%d dropped=%d coalesced=%d failures=%d lastMs=%.1f avgMs=%.1f maxMs=%.1f",
+                    depth, sent, dropped, coalesced, failures, lastLatencyMs, averageLatencyMs, maxLatencyMs);
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+        final long enqueuedAt = System.nanoTime();
+        Object payload; // String (message texte) ou WireCodec.Frame
+
+        Entry(String key, Object payload) {
+            this.key = key;
+            this.payload = payload;
+        }
+    }
+
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final boolean LOG_SENDS = Boolean.getBoolean("wire.logSends");
+    private static final ExecutorService sender = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ws-send");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Session session;
+    private final int capacity;
+    private final Deque<Entry> queue = new ArrayDeque<>();
+    private boolean sending = false;
+    private boolean closed = false;
+    private volatile boolean binary = false;
+
+    // Compteurs (protégés par this)
+    private long sent, dropped, coalesced, failures;
+    private long lastLatencyNanos, averageLatencyNanos, maxLatencyNanos;
+
+    SendQueue(Session session, int capacity) {
+        this.session = session;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Ajoute un message (String ou WireCodec.Frame) à la file.
+     *
+     * @param coalesceKey Clé de regroupement, ou null.
+     * @return false si la file est pleine (ou fermée) : le message n'est pas envoyé.
+     */
+    boolean offer(Object payload, String coalesceKey) {
+        synchronized (this) {
+            if (closed) return false;
+            if (coalesceKey != null && replacePending(coalesceKey, payload)) {
+                coalesced++;
+                return true;
+            }
+            if (queue.size() >= capacity) {
+                dropped++;
+                return false;
+            }
+            queue.addLast(new Entry(coalesceKey, payload));
+        }
+        sender.execute(this::drain);
+        return true;
+    }
+
+    /** Les messages envoyés à partir de maintenant le sont en binaire (ou de nouveau en texte). */
+    void useBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Ferme la file ; appelé à la fermeture de la connexion.
+     *
+     * @return les messages qui n'étaient pas encore partis, dans l'ordre (celui en cours d'écriture n'y est pas).
+     */
+    synchronized List<Object> close() {
+        closed = true;
+        List<Object> unsent = new ArrayList<>(queue.size());
+        for (Entry entry : queue) unsent.add(entry.payload);
+        queue.clear();
+        return unsent;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(this);
+    }
+
+    private boolean replacePending(String key, Object payload) {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (key.equals(entry.key)) {
+                entry.payload = payload;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        Entry next;
+        synchronized (this) {
+            if (sending || closed || queue.isEmpty()) return;
+            next = queue.pollFirst();
+            sending = true;
+        }
+        SendHandler onSent = result -> onSent(next, result);
+        try {
+            if (binary) {
+                WireCodec.Frame frame = next.payload instanceof WireCodec.Frame
+                        ? (WireCodec.Frame) next.payload : WireCodec.fromText((String) next.payload, true);
+                session.getAsyncRemote().sendBinary(WireCodec.encode(frame), onSent);
+            } else {
+                String text = next.payload instanceof WireCodec.Frame
+                        ? ((WireCodec.Frame) next.payload).toText() : (String) next.payload;
+                session.getAsyncRemote().sendText(text, onSent);
+            }
+        } catch (RuntimeException e) {
+            // Session fermée entre-temps : plus rien ne peut partir
+            System.err.println("Erreur lors de l'envoi du message : " + e.getMessage());
+            synchronized (this) {
+                failures++;
+                sending = false;
+            }
+            close();
+        }
+    }
+
+    private void onSent(Entry entry, SendResult result) {
+        long latency = System.nanoTime() - entry.enqueuedAt;
+        synchronized (this) {
+            sending = false;
+            if (result.isOK()) {
+                sent++;
+                lastLatencyNanos = latency;
+                averageLatencyNanos = sent == 1 ? latency : (long) (averageLatencyNanos * (1 - EWMA_WEIGHT) + latency * EWMA_WEIGHT);
+                maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+            } else {
+                failures++;
+            }
+        }
+        if (!result.isOK()) {
+            System.err.println("Erreur lors de l'envoi du message : " + result.getException());
+        } else if (LOG_SENDS) {
+            System.out.println("Message envoyé au serveur : " + entry.payload);
+        }
+        sender.execute(this::drain); // pas d'appel direct : la fin d'envoi peut être signalée dans sendText même
+    }
+}
@@ -1,25 +1,93 @@
 package com.datingapp.client.services;
 
-import jakarta.websocket.ClientEndpoint;
+import com.datingapp.common.JsonCodec;
+import com.datingapp.common.PerMessageDeflate;
+import com.datingapp.common.WireCodec;
+import jakarta.websocket.ClientEndpointConfig;
+import jakarta.websocket.CloseReason;
 import jakarta.websocket.ContainerProvider;
-import jakarta.websocket.OnClose;
-import jakarta.websocket.OnError;
-import jakarta.websocket.OnMessage;
-import jakarta.websocket.OnOpen;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.Extension;
 import jakarta.websocket.Session;
 import jakarta.websocket.WebSocketContainer;
 import java.io.IOException;
 import java.net.URI;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
-@ClientEndpoint
 public class WebSocketClientService {
 
-    private Session session;
+    // Un seul conteneur pour toutes les connexions : chacun embarque son propre client Grizzly (threads, buffers)
+    private static final WebSocketContainer CONTAINER = ContainerProvider.getWebSocketContainer();
+
+    private volatile Session session;
     private String serverUriBase;
-    private List<Consumer<String>> messageHandlers = new ArrayList<>();
+    // Messages reçus : décodés une fois, puis distribués par opcode hors du thread JavaFX
+    private final MessageRouter router = new MessageRouter();
+
+    // Reprise de session : jeton RESUME_TOKEN reçu du serveur et dernière séquence (MSG_SEQ / DM_RECEIVE_SEQ) vue
+    private volatile String resumeToken;
+    private volatile long lastSeq;
+    private volatile boolean resumeOnOpen;
+    private String lastPath = "guest";
+
+    // Protocole binaire (WireCodec) : demandé à l'ouverture, utilisé une fois PROTO_OK:bin1 reçu
+    private final boolean preferBinary = !"text".equalsIgnoreCase(System.getProperty("wire.protocol", "binary"));
+
+    // Journalisation de chaque message reçu (contenu des DM compris) : désactivée sauf -Dwire.logReceives=true
+    private static final boolean LOG_RECEIVES = Boolean.getBoolean("wire.logReceives");
+
+    // File d'envoi de la connexion courante : sendMessage ne bloque jamais sur le réseau
+    private static final int SEND_QUEUE_CAPACITY = Integer.getInteger("wire.sendQueue.capacity", 256);
+    private volatile SendQueue sendQueue;
+
+    // permessage-deflate : proposé au serveur ; seuls les messages d'au moins wire.deflate.thresholdBytes sont compressés,
+    // et un message reçu ne peut dépasser wire.maxMessageBytes une fois décompressé
+    private final PerMessageDeflate deflate = Boolean.parseBoolean(System.getProperty("wire.deflate", "true"))
+            ? new PerMessageDeflate(Integer.getInteger("wire.deflate.thresholdBytes", 1024), 6, Integer.getInteger("wire.maxMessageBytes", 4 * 1024 * 1024))
+            : null;
+    private final List<Extension> extensions = deflate != null ? Collections.singletonList(deflate) : Collections.emptyList();
+
+    // Requêtes corrélées (CORR:id:commande) en attente : la première réponse portant l'id va au callback
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    private final Map<Long, Consumer<WireCodec.Frame>> pendingRequests = new ConcurrentHashMap<>();
+    // Requêtes abandonnées à la déconnexion : ids jusqu'à celui-ci ; une réponse tardive est ignorée
+    private volatile long abandonedUpTo;
+
+    // Reconnexion automatique après une coupure, une fois connecté : délai exponentiel avec gigue (sinon, après
+    // un redémarrage du serveur, tous les clients reviendraient à la même milliseconde), puis RESUME, ou LOGIN
+    // si la reprise est refusée, retour dans la salle et envoi dans l'ordre des messages tapés entre-temps.
+    private static final long RECONNECT_BASE_MILLIS = Long.getLong("wire.reconnect.baseMillis", 500);
+    private static final long RECONNECT_MAX_MILLIS = Long.getLong("wire.reconnect.maxMillis", 30_000);
+    private static final int RECONNECT_MAX_ATTEMPTS = Integer.getInteger("wire.reconnect.maxAttempts", 12);
+    private static final int OFFLINE_OUTBOX_CAPACITY = Integer.getInteger("wire.offlineOutbox.capacity", 256);
+    private static final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ws-reconnect");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Deque<Object> offlineOutbox = new ArrayDeque<>(); // messages en attente de reconnexion
+    private boolean recovering;                                     // protégé par offlineOutbox
+    private final AtomicInteger reconnectAttempt = new AtomicInteger();
+    private volatile ScheduledFuture<?> reconnectTask;
+    private volatile WireCodec.Frame pendingLogin;  // LOGIN envoyé, sans réponse encore
+    private volatile WireCodec.Frame loginFrame;    // dernier LOGIN accepté, rejoué si la reprise échoue
+    private volatile boolean relogging;
+    private volatile String currentRoom;
 
     public WebSocketClientService() {
         // Lire l'adresse du serveur depuis les propriétés système
@@ -41,106 +109,464 @@ public class WebSocketClientService {
 
     public void connect(String username) {
         if (session == null || !session.isOpen()) {
+            lastPath = username;
             try {
-                WebSocketContainer container = ContainerProvider.getWebSocketContainer();
-                String uri = serverUriBase + username;
-                System.out.println("Tentative de connexion à : " + uri);
-                this.session = container.connectToServer(this, URI.create(uri));
+                open(username);
             } catch (Exception e) {
                 System.err.println("Erreur lors de la connexion WebSocket : " + e.getMessage());
                 e.printStackTrace();
-                messageHandlers.forEach(handler -> handler.accept("SYSTEM_MSG:Connection_Failed:" + e.getMessage()));
+                notifySystem("Connection_Failed:" + e.getMessage());
             }
         }
     }
 
     public void connect() {
-        if (session == null || !session.isOpen()) {
-            try {
-                WebSocketContainer container = ContainerProvider.getWebSocketContainer();
-                String uri = serverUriBase + "guest";
-                System.out.println("Tentative de connexion à : " + uri);
-                this.session = container.connectToServer(this, URI.create(uri));
-            } catch (Exception e) {
-                System.err.println("Erreur lors de la connexion WebSocket : " + e.getMessage());
-                e.printStackTrace();
-                messageHandlers.forEach(handler -> handler.accept("SYSTEM_MSG:Connection_Failed:" + e.getMessage()));
+        connect("guest");
+    }
+
+    private void open(String path) throws Exception {
+        String uri = serverUriBase + path;
+        System.out.println("Tentative de connexion à : " + uri);
+        Session opened = openSession(uri);
+        if (opened.isOpen()) this.session = opened;
+    }
+
+    /**
+     * Ouvre la connexion en proposant les extensions (permessage-deflate) ; les callbacks ci-dessous
+     * sont branchés sur un Endpoint programmatique, seul moyen de fournir une ClientEndpointConfig.
+     */
+    private Session openSession(String uri) throws Exception {
+        ClientEndpointConfig config = ClientEndpointConfig.Builder.create().extensions(extensions).build();
+        return CONTAINER.connectToServer(new Endpoint() {
+            @Override
+            public void onOpen(Session session, EndpointConfig endpointConfig) {
+                session.addMessageHandler(String.class, message -> onMessage(message, session));
+                session.addMessageHandler(ByteBuffer.class, message -> onBinaryMessage(message, session));
+                WebSocketClientService.this.onOpen(session);
             }
-        }
+
+            @Override
+            public void onClose(Session session, CloseReason closeReason) {
+                WebSocketClientService.this.onClose(session);
+            }
+
+            @Override
+            public void onError(Session session, Throwable throwable) {
+                WebSocketClientService.this.onError(session, throwable);
+            }
+        }, config, URI.create(uri));
     }
 
-    @OnOpen
     public void onOpen(Session session) {
         this.session = session;
-        System.out.println("Connecté au serveur WebSocket. ID de session : " + session.getId());
-        messageHandlers.forEach(handler -> handler.accept("SYSTEM_MSG:Connected_Successfully"));
+        this.sendQueue = new SendQueue(session, SEND_QUEUE_CAPACITY);
+        System.out.println("Connecté au serveur WebSocket. ID de session : " + session.getId()
+                + (session.getNegotiatedExtensions().isEmpty() ? "" : " (extensions : " + session.getNegotiatedExtensions().get(0).getName() + ")"));
+        notifySystem("Connected_Successfully");
+        // Le serveur répond PROTO_OK:bin1 (ou PROTO_OK:text) ; en attendant on reste en texte.
+        // Envoyé même sans binaire : il annonce un client qui comprend MSG_SEQ / DM_RECEIVE_SEQ
+        sendDirect("PROTO:" + (preferBinary ? WireCodec.PROTOCOL_VERSION : "text"));
+        if (resumeOnOpen) {
+            resumeOnOpen = false;
+            sendDirect("RESUME:" + resumeToken + ":" + lastSeq);
+        } else if (isReconnecting() && loginFrame != null) {
+            relogin();
+        }
     }
 
-    @OnMessage
     public void onMessage(String message, Session session) {
-        System.out.println("Message reçu du serveur : " + message);
-        messageHandlers.forEach(handler -> handler.accept(message));
+        if (LOG_RECEIVES) System.out.println("Message reçu du serveur : " + message);
+        route(WireCodec.fromText(message, false));
+    }
+
+    public void onBinaryMessage(ByteBuffer message, Session session) {
+        WireCodec.Frame frame;
+        try {
+            frame = WireCodec.decode(message);
+        } catch (WireCodec.MalformedFrameException e) {
+            System.err.println("Trame binaire invalide : " + e.getMessage());
+            return;
+        }
+        if (LOG_RECEIVES) System.out.println("Message reçu du serveur : " + frame);
+        route(frame);
+    }
+
+    /**
+     * Message décodé, encore sur le thread de réception : l'état du protocole (reprise, reconnexion) est mis
+     * à jour ici, dans l'ordre d'arrivée ; le message part ensuite, sur le thread de distribution, au callback
+     * de sa requête s'il y répond, sinon aux abonnés de son opcode.
+     */
+    private void route(WireCodec.Frame received) {
+        if (received.op() == WireCodec.Op.PROTO_OK) {
+            boolean binary = WireCodec.PROTOCOL_VERSION.equals(received.string(0));
+            SendQueue queue = sendQueue;
+            if (queue != null) queue.useBinary(binary);
+            System.out.println("Protocole : " + (binary ? "binaire" : "texte"));
+            return;
+        }
+        trackResumeState(received);
+        WireCodec.Frame frame = received.withCorrelation(0);
+        if (received.correlationId() != 0) {
+            // Réponse à une requête : au callback si elle est attendue, sinon traitée comme un message ordinaire
+            Consumer<WireCodec.Frame> callback = pendingRequests.remove(received.correlationId());
+            if (callback != null) {
+                router.post(() -> callback.accept(frame));
+                return;
+            }
+            if (received.correlationId() <= abandonedUpTo) return; // son callback a déjà reçu une erreur
+        }
+        if (isReconnecting() && handleRecoveryMessage(frame)) return;
+        if (frame.op() == WireCodec.Op.LOGIN_SUCCESS) {
+            loginFrame = pendingLogin;
+        } else if (frame.op() == WireCodec.Op.LOGIN_FAIL) {
+            pendingLogin = null;
+        }
+        router.post(() -> router.publish(frame));
+    }
+
+    // Évènement du client lui-même (connexion, reconnexion...), distribué comme un SYSTEM_MSG du serveur
+    private void notifySystem(String text) {
+        WireCodec.Frame frame = WireCodec.Frame.of(WireCodec.Op.SYSTEM_MSG, text);
+        router.post(() -> router.publish(frame));
     }
 
-    @OnClose
     public void onClose(Session session) {
+        if (this.session != null && this.session != session) return; // ancienne connexion, déjà remplacée
         this.session = null;
+        SendQueue queue = sendQueue;
+        List<Object> unsent = queue != null ? queue.close() : Collections.emptyList();
         System.out.println("Déconnecté du serveur WebSocket.");
-        messageHandlers.forEach(handler -> handler.accept("SYSTEM_MSG:Disconnected"));
+        boolean reconnect = resumeToken != null || loginFrame != null; // connecté, et pas de déconnexion volontaire
+        synchronized (offlineOutbox) {
+            if (reconnect) {
+                // Les messages pas encore partis repassent en tête de la file hors ligne
+                for (int i = unsent.size() - 1; i >= 0; i--) offlineOutbox.addFirst(unsent.get(i));
+                recovering = true;
+            }
+        }
+        failPendingRequests("Disconnected"); // leurs réponses ne viendront plus sur cette connexion
+        notifySystem("Disconnected");
+        if (reconnect) scheduleReconnect();
     }
 
-    @OnError
     public void onError(Session session, Throwable throwable) {
         System.err.println("Erreur WebSocket : " + throwable.getMessage());
         throwable.printStackTrace();
-        messageHandlers.forEach(handler -> handler.accept("SYSTEM_MSG:Error:" + throwable.getMessage()));
+        notifySystem("Error:" + throwable.getMessage());
     }
 
     // MÉTHODES MANQUANTES - AJOUTÉES ICI
 
     /**
-     * Envoie un message au serveur
+     * Envoie un message au serveur. Retourne tout de suite : le message part en arrière-plan, dans l'ordre.
      */
     public void sendMessage(String message) {
-        if (session != null && session.isOpen()) {
-            try {
-                session.getBasicRemote().sendText(message);
-                System.out.println("Message envoyé au serveur : " + message);
-            } catch (IOException e) {
-                System.err.println("Erreur lors de l'envoi du message : " + e.getMessage());
-                e.printStackTrace();
+        enqueue(message, null);
+    }
+
+    /**
+     * Même chose ; un message encore en attente avec la même clé de regroupement est remplacé par celui-ci
+     * (par ex. plusieurs mises à jour du profil : seule la dernière part).
+     */
+    public void sendMessage(String message, String coalesceKey) {
+        enqueue(message, coalesceKey);
+    }
+
+    /**
+     * Envoie un message construit champ par champ : en binaire, les champs peuvent contenir ':'.
+     */
+    public void sendFrame(WireCodec.Frame frame) {
+        if (frame.op() == WireCodec.Op.LOGIN) pendingLogin = frame;
+        enqueue(frame, null);
+    }
+
+    /**
+     * Compteurs de la file d'envoi (profondeur, latence d'envoi...), null avant la première connexion.
+     */
+    public SendQueue.Stats getSendStats() {
+        SendQueue queue = sendQueue;
+        return queue == null ? null : queue.stats();
+    }
+
+    private void enqueue(Object payload, String coalesceKey) {
+        boolean full;
+        synchronized (offlineOutbox) {
+            full = recovering && offlineOutbox.size() >= OFFLINE_OUTBOX_CAPACITY;
+            if (recovering && !full) {
+                // Hors ligne (ou reconnexion pas terminée) : envoyé après la reprise, dans l'ordre
+                offlineOutbox.addLast(payload);
+                return;
             }
-        } else {
+        }
+        if (full) {
+            System.err.println("File hors ligne pleine, message abandonné : " + payload);
+            notifySystem("Send_Queue_Full");
+            return;
+        }
+        SendQueue queue = sendQueue;
+        if (session == null || !session.isOpen() || queue == null) {
             System.err.println("Impossible d'envoyer le message, session inactive.");
-            messageHandlers.forEach(handler -> handler.accept("SYSTEM_MSG:Not_Connected_Cannot_Send"));
+            notifySystem("Not_Connected_Cannot_Send");
+        } else if (!queue.offer(payload, coalesceKey)) {
+            System.err.println("File d'envoi pleine, message abandonné : " + payload);
+            notifySystem("Send_Queue_Full");
         }
     }
 
     /**
-     * Vérifie si la connexion est active
+     * Envoie une commande corrélée : la réponse du serveur (la première portant le même id) est passée
+     * à {@code onResponse}, sur le thread de distribution, au lieu des abonnés.
+     * Plusieurs requêtes peuvent être en cours à la fois.
+     *
+     * @return l'id de corrélation
      */
-    public boolean isConnected() {
-        return session != null && session.isOpen();
+    public long request(String command, Consumer<WireCodec.Frame> onResponse) {
+        long id = register(onResponse);
+        sendMessage(WireCodec.CORRELATION_PREFIX + id + ":" + command);
+        return id;
+    }
+
+    /**
+     * Prépare un lot de commandes envoyées dans une seule trame BATCH ; le serveur les exécute dans l'ordre.
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    public class Batch {
+        private final JsonCodec.Writer json = new JsonCodec.Writer(256).beginArray();
+        private int size = 0;
+
+        private Batch() {}
+
+        /** Commande sans réponse attendue (ses réponses vont aux abonnés). */
+        public Batch add(String command) {
+            json.value(command);
+            size++;
+            return this;
+        }
+
+        /** Commande corrélée : sa réponse est passée à {@code onResponse}, comme avec {@link #request}. */
+        public Batch add(String command, Consumer<WireCodec.Frame> onResponse) {
+            return add(WireCodec.CORRELATION_PREFIX + register(onResponse) + ":" + command);
+        }
+
+        public void send() {
+            if (size > 0) sendMessage("BATCH:" + json.endArray());
+        }
+    }
+
+    // Chaque requête en attente reçoit une réponse ERROR:reason (sur le thread de distribution), puis est oubliée
+    private void failPendingRequests(String reason) {
+        long upTo = nextCorrelationId.get();
+        abandonedUpTo = upTo;
+        WireCodec.Frame error = WireCodec.Frame.of(WireCodec.Op.ERROR, reason);
+        for (Long id : pendingRequests.keySet()) {
+            if (id > upTo) continue; // envoyée depuis, sur la nouvelle connexion
+            Consumer<WireCodec.Frame> callback = pendingRequests.remove(id);
+            if (callback != null) router.post(() -> callback.accept(error));
+        }
+    }
+
+    private long register(Consumer<WireCodec.Frame> onResponse) {
+        long id = nextCorrelationId.incrementAndGet();
+        pendingRequests.put(id, onResponse);
+        return id;
+    }
+
+    /**
+     * Salle à rejoindre si la reconnexion doit refaire un LOGIN (une reprise RESUME la retrouve seule).
+     */
+    public void setCurrentRoom(String code) {
+        this.currentRoom = code;
+    }
+
+    /** Vrai entre une coupure et la fin de la reprise : les messages envoyés sont mis de côté, pas perdus. */
+    public boolean isReconnecting() {
+        synchronized (offlineOutbox) {
+            return recovering;
+        }
+    }
+
+    /** Connecté, ou en cours de reconnexion (le message partira après). */
+    public boolean canSend() {
+        return isConnected() || isReconnecting();
+    }
+
+    private void scheduleReconnect() {
+        int attempt = reconnectAttempt.getAndIncrement();
+        if (attempt >= RECONNECT_MAX_ATTEMPTS) {
+            giveUp();
+            return;
+        }
+        long delay = reconnectDelayMillis(attempt);
+        System.out.println("Reconnexion dans " + delay + " ms (tentative " + (attempt + 1) + ")");
+        notifySystem("Reconnecting:" + (attempt + 1) + ":" + delay);
+        reconnectTask = reconnector.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Délai exponentiel plafonné, dont la moitié est tirée au hasard (« equal jitter »)
+    private static long reconnectDelayMillis(int attempt) {
+        long ceiling = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(attempt, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private void reconnect() {
+        if (!isReconnecting()) return;
+        resumeOnOpen = resumeToken != null;
+        try {
+            open(lastPath); // la suite (RESUME ou LOGIN, puis la file hors ligne) part de onOpen
+        } catch (Exception e) {
+            System.err.println("Reconnexion impossible : " + e.getMessage());
+        }
+        if (!isConnected()) {
+            resumeOnOpen = false;
+            scheduleReconnect();
+        }
+    }
+
+    private void relogin() {
+        relogging = true;
+        sendDirect(loginFrame);
     }
 
     /**
-     * Ajoute un gestionnaire de messages
+     * Réponses à la reprise pendant une reconnexion.
+     *
+     * @return true si le message est absorbé ici (LOGIN automatique : l'écran de connexion n'a pas à le voir)
      */
-    public void addMessageHandler(Consumer<String> handler) {
-        this.messageHandlers.add(handler);
+    private boolean handleRecoveryMessage(WireCodec.Frame frame) {
+        switch (frame.op()) {
+            case RESUMED:
+                finishRecovery(false);
+                return false;
+            case RESUME_FAIL:
+                // Jeton expiré (ou serveur redémarré) : on refait le LOGIN si on a de quoi
+                if (loginFrame == null) {
+                    giveUp();
+                    return false;
+                }
+                relogin();
+                return true;
+            case LOGIN_SUCCESS:
+                if (!relogging) return false;
+                relogging = false;
+                String room = currentRoom;
+                if (room != null) sendDirect("MEETING_CODE:" + room);
+                finishRecovery(true);
+                return true;
+            case LOGIN_FAIL:
+                if (!relogging) return false;
+                relogging = false;
+                loginFrame = null;
+                giveUp();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Reprise réussie : la file hors ligne part, dans l'ordre, avant tout nouveau message.
+    private void finishRecovery(boolean relogged) {
+        reconnectAttempt.set(0);
+        int dropped = 0;
+        synchronized (offlineOutbox) {
+            recovering = false;
+            SendQueue queue = sendQueue;
+            Object payload;
+            while ((payload = offlineOutbox.pollFirst()) != null) {
+                if (queue == null || !queue.offer(payload, null)) dropped++;
+            }
+        }
+        if (dropped > 0) notifySystem("Send_Queue_Full");
+        if (relogged) notifySystem("Relogged_In");
+    }
+
+    private void giveUp() {
+        int lost;
+        synchronized (offlineOutbox) {
+            recovering = false;
+            lost = offlineOutbox.size();
+            offlineOutbox.clear();
+        }
+        reconnectAttempt.set(0);
+        resumeToken = null;
+        loginFrame = null;
+        failPendingRequests("Reconnect failed");
+        System.err.println("Reconnexion abandonnée, " + lost + " message(s) non envoyé(s).");
+        notifySystem("Reconnect_Failed:" + lost);
+    }
+
+    // Messages du protocole lui-même (PROTO, RESUME, LOGIN automatique) : jamais mis de côté.
+    private void sendDirect(Object payload) {
+        SendQueue queue = sendQueue;
+        if (queue != null) queue.offer(payload, null);
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    private void trackResumeState(WireCodec.Frame frame) {
+        switch (frame.op()) {
+            case RESUME_TOKEN:
+                // RESUME_TOKEN:jeton:séquence (la séquence courante du serveur, utile si aucun message n'a encore été reçu)
+                resumeToken = frame.string(0);
+                lastSeq = Math.max(lastSeq, frame.number(1));
+                break;
+            case RESUME_FAIL:
+                resumeToken = null;
+                break;
+            case SYSTEM_MSG:
+                if (frame.string(0).equals("Logged in from another location.")) {
+                    // Remplacée par une autre connexion : se reconnecter la lui reprendrait, et ainsi de suite
+                    resumeToken = null;
+                    loginFrame = null;
+                }
+                break;
+            case MSG_SEQ:
+            case DM_RECEIVE_SEQ:
+                lastSeq = Math.max(lastSeq, frame.number(0));
+                break;
+            default:
+                break;
+        }
     }
 
     /**
-     * Supprime un gestionnaire de messages
+     * Vérifie si la connexion est active
      */
-    public void removeMessageHandler(Consumer<String> handler) {
-        this.messageHandlers.remove(handler);
+    public boolean isConnected() {
+        return session != null && session.isOpen();
+    }
+
+    /**
+     * Abonne un gestionnaire aux messages des opcodes donnés (les évènements du client arrivent en SYSTEM_MSG).
+     * Il est appelé hors du thread JavaFX : seule la mise à jour de l'interface doit passer par Platform.runLater.
+     * Le texte des messages sans opcode (discussion simple) est en RAW.
+     */
+    public MessageRouter.Subscription subscribe(Consumer<WireCodec.Frame> handler, WireCodec.Op... ops) {
+        return router.subscribe(handler, ops);
     }
 
     /**
      * Ferme la connexion WebSocket
      */
     public void close() {
+        // Fermeture volontaire (déconnexion) : la session ne doit plus être reprise
+        resumeToken = null;
+        resumeOnOpen = false;
+        lastSeq = 0;
+        loginFrame = null;
+        pendingLogin = null;
+        ScheduledFuture<?> task = reconnectTask;
+        if (task != null) task.cancel(false);
+        synchronized (offlineOutbox) {
+            recovering = false;
+            offlineOutbox.clear();
+        }
+        abandonedUpTo = nextCorrelationId.get();
+        pendingRequests.clear(); // fermeture volontaire : personne n'attend plus ces réponses
         if (session != null && session.isOpen()) {
             try {
                 session.close();
@@ -148,5 +574,6 @@ public class WebSocketClientService {
                 e.printStackTrace();
             }
         }
+        if (deflate != null) deflate.close(); // recrée ses Deflater / Inflater à la prochaine connexion
     }
 }
\ No newline at end of file
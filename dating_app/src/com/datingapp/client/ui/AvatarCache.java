@@ -0,0 +1,138 @@
+package com.datingapp.client.ui;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Avatar images shared by every list cell, keyed by URL and display size.
+ * An avatar is downloaded and decoded once, on a background pool, directly at the size it is shown; cells
+ * reused while scrolling then only look it up. Concurrent requests for an avatar still loading wait for that
+ * load, failed URLs are not retried for a while, and decoded images are evicted least recently shown first
+ * once they exceed a byte budget (4 bytes per pixel). Failures are forgotten once their retry delay is over,
+ * oldest first beyond a maximum count.
+ * <p>
+ * Everything but the download runs on the FX thread, so the cache itself needs no locking.
+ */
+final class AvatarCache {
+
+    private static final long BYTE_BUDGET = Long.getLong("ui.avatarCache.bytes", 4L * 1024 * 1024);
+    private static final long FAILURE_RETRY_MILLIS = Long.getLong("ui.avatarCache.failureRetryMillis", 5 * 60_000L);
+    private static final int MAX_FAILURES = Integer.getInteger("ui.avatarCache.maxFailures", 256);
+    private static final ExecutorService loader = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "avatar-loader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Entry {
+        Image image;                                  // null while loading, or after a failure
+        long failedAt;                                // > 0: failed, retried after FAILURE_RETRY_MILLIS
+        List<ImageView> waiting = new ArrayList<>();  // views shown while loading; null once settled
+    }
+
+    // Access order: iteration starts with the least recently shown avatar
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private static long cachedBytes;
+    // Keys of the failed entries, oldest failure first
+    private static final LinkedHashSet<String> failures = new LinkedHashSet<>();
+
+    private AvatarCache() {}
+
+    /**
+     * Shows the avatar at {@code url} in {@code view}, decoded at size x size. The view stays hidden while the
+     * avatar loads, and for good if there is none (null or empty url) or it cannot be loaded. FX thread only.
+     */
+    static void show(ImageView view, String url, int size) {
+        String key = (url == null || url.isEmpty()) ? null : size + " " + url;
+        view.setUserData(key); // a load finishing later only updates views still showing this avatar
+        Entry entry = key == null ? null : entries.get(key);
+        if (entry != null && entry.failedAt > 0 && System.currentTimeMillis() - entry.failedAt > FAILURE_RETRY_MILLIS) {
+            entries.remove(key);
+            failures.remove(key);
+            entry = null;
+        }
+        if (key != null && entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+            load(key, url, size, entry);
+        }
+        if (entry != null && entry.waiting != null) entry.waiting.add(view);
+        Image image = entry == null ? null : entry.image;
+        view.setImage(image);
+        view.setVisible(image != null);
+    }
+
+    private static void load(String key, String url, int size, Entry entry) {
+        loader.execute(() -> {
+            Image image;
+            try {
+                image = new Image(url, size, size, true, true, false); // blocks this thread, not the FX one
+                if (image.isError()) {
+                    System.err.println("Error loading avatar " + url + ": " + image.getException());
+                    image = null;
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Error loading avatar " + url + ": " + e.getMessage());
+                image = null;
+            }
+            Image loaded = image;
+            Platform.runLater(() -> settle(key, entry, loaded));
+        });
+    }
+
+    private static void settle(String key, Entry entry, Image image) {
+        List<ImageView> waiting = entry.waiting;
+        entry.waiting = null;
+        if (image == null) {
+            entry.failedAt = System.currentTimeMillis();
+            failures.add(key);
+            forgetOldFailures(entry.failedAt);
+        } else {
+            entry.image = image;
+            cachedBytes += bytesOf(image);
+            evictOverBudget();
+        }
+        for (ImageView view : waiting) {
+            if (key.equals(view.getUserData())) {
+                view.setImage(image);
+                view.setVisible(image != null);
+            }
+        }
+    }
+
+    private static void evictOverBudget() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (cachedBytes > BYTE_BUDGET && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.image == null) continue; // loading or failed: holds no pixels
+            cachedBytes -= bytesOf(entry.image);
+            it.remove();
+        }
+    }
+
+    // Failures are in the order they happened: drop them from the head while expired or too many
+    private static void forgetOldFailures(long now) {
+        Iterator<String> it = failures.iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            Entry entry = entries.get(key);
+            boolean expired = entry == null || entry.failedAt == 0 || now - entry.failedAt > FAILURE_RETRY_MILLIS;
+            if (!expired && failures.size() <= MAX_FAILURES) break;
+            it.remove();
+            if (entry != null && entry.failedAt > 0) entries.remove(key);
+        }
+    }
+
+    private static long bytesOf(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+}
@@ -3,8 +3,13 @@ package com.datingapp.client.ui;
 import com.datingapp.MainClient;
 import com.datingapp.client.model.ChatMessage;
 import com.datingapp.client.model.UserProfile;
+import com.datingapp.client.services.MessageRouter;
+import com.datingapp.client.services.SendQueue;
 import com.datingapp.client.services.WebSocketClientService;
+import com.datingapp.common.JsonCodec;
+import com.datingapp.common.WireCodec;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -12,10 +17,11 @@ import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
@@ -28,15 +34,22 @@ import javafx.stage.Stage;
 import java.io.IOException;
 
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.Queue;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChatController {
 
@@ -61,38 +74,51 @@ public class ChatController {
 
     private MainClient mainClientApp;
     private WebSocketClientService webSocketService;
-    private String currentUsername;
-    private String currentUserAvatarUrl;
+    private volatile String currentUsername; // also read while parsing history off the FX thread
+    private volatile String currentUserAvatarUrl; // also read while building live messages off the FX thread
     private ObservableList<ChatMessage> chatMessages = FXCollections.observableArrayList();
     private ObservableList<String> activeUsernames = FXCollections.observableArrayList();
     private String currentDmPartner = null;
+    // Room joined with the last MEETING_CODE (the text field may have been edited since)
+    private String currentRoom = "public";
+    // Bumped on every room/DM switch: answers to requests made for an earlier context are dropped
+    private long contextGeneration = 0;
+
+    // History paging: cursor = id of the oldest loaded message (0 = nothing older to fetch)
+    private static final int HISTORY_PAGE_SIZE = 50;
+    // Messages kept in memory while following the conversation at the bottom; older ones are evicted and paged back in
+    private static final int MAX_CHAT_MESSAGES = Math.max(HISTORY_PAGE_SIZE, Integer.getInteger("ui.chat.maxMessages", 500));
+    private ScrollBar chatScrollBar;
+    private long olderHistoryCursor = 0;
+    private boolean historyRequestInFlight = false;
+    // Queued sends from which the status label reports a slow network
+    private static final int SEND_BACKLOG_WARNING = 5;
+    // Sequences of the last live messages shown: a RESUME replay may repeat some of them (dispatch thread only)
+    private static final int SEEN_SEQ_CAPACITY = 500;
+    private final Set<Long> seenSeqs = new LinkedHashSet<>();
 
     private Map<String, UserProfile> userProfilesCache = new ConcurrentHashMap<>();
-    private static final Pattern JSON_PROPERTY_PATTERN = Pattern.compile("\"([^\"]+)\":\"([^\"]*)\"");
-
-    // Define EMOJI_MAP (Using Map.of for Java 9+)
-    // For Java 8, use a static block with HashMap.put.
-    private static final Map<String, String> EMOJI_MAP = Map.of(
-            ":)", "☺",        // U+263A White Smiling Face
-            ":(", "☹",        // U+2639 White Frowning Face
-            "<3", "❤",        // U+2764 Heavy Black Heart
-            ":D", "😃",        // U+1F603 Smiling Face With Open Mouth
-            ";)", "😉",        // U+1F609 Winking Face
-            ":P", "😛",        // U+1F61B Face With Stuck-Out Tongue
-            ":O", "😮",        // U+1F62E Face With Open Mouth
-            ":'(", "😢",       // U+1F622 Crying Face
-            "xD", "😂"         // U+1F602 Face With Tears of Joy (approximation for xD)
-    );
-
-    // Helper method to replace shortcodes with emojis
-    private String replaceEmojiShortcodes(String text) {
-        String result = text;
-        for (Map.Entry<String, String> entry : EMOJI_MAP.entrySet()) {
-            result = result.replace(entry.getKey(), entry.getValue());
+    // Profiles whose newer version was announced, fetched together with one REQ_PROFILES (per PROFILES_PER_REQUEST names)
+    private final Set<String> pendingProfileFetches = new LinkedHashSet<>();
+    private static final int PROFILES_PER_REQUEST = 100; // the server's REQ_PROFILES limit
+
+    // UI updates posted by the frame handlers, applied together once per pulse: a busy room then costs one
+    // addAll, one scroll and one user-list change per frame instead of one FX task and re-layout per message.
+    private final Queue<Runnable> pendingUpdates = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean pulseRequested = new AtomicBoolean();
+    private final AnimationTimer pulseTimer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            onPulse();
         }
-        return result;
-    }
-
+    };
+    // Built while a pulse applies its updates, published at its end (FX thread only)
+    private final List<ChatMessage> pulseMessages = new ArrayList<>();
+    private Set<String> pulseUsers;       // working copy of activeUsernames, null = untouched this pulse
+    private boolean pulseRefreshLists;    // profiles changed: cells must redraw avatars
+    // -Dui.pulseStats=true prints, every second, the FX time spent applying server updates
+    private static final boolean PULSE_STATS = Boolean.getBoolean("ui.pulseStats");
+    private long statsWindowStart = System.nanoTime(), statsPulseNanos, statsUpdates, statsPulses;
 
     public void initialize() {
         chatListView.setItems(chatMessages);
@@ -100,6 +126,8 @@ public class ChatController {
         chatListView.setCellFactory(listView -> new ChatMessageCell());
         userListView.setCellFactory(listView -> new UserListCell());
 
+        installLoadOlderOnScrollTop();
+
         userListView.setOnMouseClicked(event -> {
             String selectedUser = userListView.getSelectionModel().getSelectedItem();
             if (selectedUser != null && !selectedUser.equals(currentUsername)) {
@@ -168,215 +196,365 @@ public class ChatController {
         }
     }
 
-    // 4. REMPLACER la méthode handleServerMessage (version améliorée)
-    private void handleServerMessage(String rawMessage) {
-        Platform.runLater(() -> {
-            System.out.println("Processing raw server message: " + rawMessage);
-            ChatMessage chatMsg = null;
-            List<ChatMessage> historyMessages = new ArrayList<>();
-            String[] parts;
-
-            if (rawMessage.startsWith("LOGIN_SUCCESS:")) {
-                parts = rawMessage.split(":", 4);
-                if (parts.length == 4) {
-                    String welcomeMsgAndUser = parts[1];
-                    String username = welcomeMsgAndUser.substring("Welcome ".length()).trim();
-                    String avatarUrl = parts[2];
-                    String bio = parts[3];
-                    setUsername(username);
-                    setCurrentUserAvatarUrl(avatarUrl);
-                    userProfilesCache.computeIfAbsent(username, k -> new UserProfile(k, avatarUrl, null)).setBio(bio);
-                    meetingStatusLabel.getStyleClass().setAll("label", "status-label-success");
-                    meetingStatusLabel.setText("Logged in as " + currentUsername);
-
-                    // CORRECTION: Initialiser le contexte en "public"
-                    updateUserListContext("public");
-                }
-            }
-            else if (rawMessage.startsWith("CLEAR_USER_LIST:")) {
-                // NOUVEAU: Message pour vider la liste des utilisateurs
-                System.out.println("Clearing user list");
-                activeUsernames.clear();
-            }
-            else if (rawMessage.startsWith("USER_JOINED:")) {
-                parts = rawMessage.split(":", 3);
-                if (parts.length >= 2) {
-                    String userJoined = parts[1];
-                    String avatarUrl = parts.length > 2 ? parts[2] : "";
-                    userProfilesCache.put(userJoined, new UserProfile(userJoined, avatarUrl, ""));
-
-                    // CORRECTION: Ajouter à la liste seulement si pas en mode DM et pas déjà présent
-                    if (currentDmPartner == null && !userJoined.equals(currentUsername)) {
-                        if (!activeUsernames.contains(userJoined)) {
-                            activeUsernames.add(userJoined);
-                            System.out.println("Added " + userJoined + " to active users list");
-                        }
-                        // Message de système seulement pour les nouveaux arrivants (pas pour le refresh)
-                        if (!rawMessage.contains("REFRESH")) {
-                            chatMsg = new ChatMessage("System", userJoined + " has joined.", null, false, ChatMessage.MessageType.USER_EVENT);
-                        }
-                    }
-                }
-            }
-            else if (rawMessage.startsWith("USER_LEFT:")) {
-                String userLeft = rawMessage.substring("USER_LEFT:".length());
-                activeUsernames.remove(userLeft);
-                userProfilesCache.remove(userLeft);
-
-                // Message seulement si pas en mode DM
-                if (currentDmPartner == null) {
-                    chatMsg = new ChatMessage("System", userLeft + " has left.", null, false, ChatMessage.MessageType.USER_EVENT);
-                }
-                System.out.println("Removed " + userLeft + " from active users list");
-            }
-            else if (rawMessage.startsWith("USER_PROFILE_UPDATE:")) {
-                parts = rawMessage.split(":", 4);
-                if (parts.length == 4) {
-                    String updatedUser = parts[1];
-                    String newAvatarUrl = parts[2];
-                    String newBio = parts[3].replace("\\n", "\n").replace("\\\"", "\"").replace("\\\\", "\\");
-                    UserProfile profile = userProfilesCache.computeIfAbsent(updatedUser, k -> new UserProfile(k, null, null));
-                    profile.setAvatarUrl(newAvatarUrl);
-                    profile.setBio(newBio);
-                    if (updatedUser.equals(currentUsername)) {
-                        setCurrentUserAvatarUrl(newAvatarUrl);
-                    }
-                    chatListView.refresh();
-                    userListView.refresh();
-                    chatMsg = new ChatMessage("System", updatedUser + "'s profile updated.", null, false, ChatMessage.MessageType.SYSTEM_NOTIFICATION, null);
-                }
-            }
-            else if (rawMessage.startsWith("RESP_DM_HIST:")) {
-                parts = rawMessage.split(":", 3);
-                if (parts.length == 3) {
-                    String otherUser = parts[1]; String jsonArrayStr = parts[2];
-                    if (currentDmPartner != null && currentDmPartner.equals(otherUser)) {
-                        List<Map<String, String>> parsedMessages = parseSimpleJsonArray(jsonArrayStr);
-                        for (Map<String, String> msgMap : parsedMessages) {
-                            try {
-                                LocalDateTime ts = LocalDateTime.parse(msgMap.get("timestamp"), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-                                String senderUsername = msgMap.get("sender_username");
-                                UserProfile senderProfile = userProfilesCache.get(senderUsername);
-                                String senderAvatar = (senderProfile != null) ? senderProfile.getAvatarUrl() : null;
-                                historyMessages.add(new ChatMessage(senderUsername, msgMap.get("content"), ts, senderUsername.equals(currentUsername), ChatMessage.MessageType.DIRECT, senderAvatar));
-                            } catch (Exception e) { System.err.println("Error parsing DM history message: " + e); }
-                        }
-                    }
-                }
-            }
-            else if (rawMessage.startsWith("RESP_MEETING_HIST:")) {
-                parts = rawMessage.split(":", 3);
-                if (parts.length == 3) {
-                    String meetingCodeFromServer = parts[1]; String jsonArrayStr = parts[2];
-                    String currentClientMeetingCode = meetingCodeField.getText().trim().isEmpty() ? "public" : meetingCodeField.getText().trim();
-                    if (currentDmPartner == null && meetingCodeFromServer.equals(currentClientMeetingCode)) {
-                        List<Map<String, String>> parsedMessages = parseSimpleJsonArray(jsonArrayStr);
-                        for (Map<String, String> msgMap : parsedMessages) {
-                            try {
-                                LocalDateTime ts = LocalDateTime.parse(msgMap.get("timestamp"), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-                                String senderUsername = msgMap.get("sender_username");
-                                UserProfile senderProfile = userProfilesCache.get(senderUsername);
-                                String senderAvatar = (senderProfile != null) ? senderProfile.getAvatarUrl() : null;
-                                historyMessages.add(new ChatMessage(senderUsername, msgMap.get("content"), ts, senderUsername.equals(currentUsername), ChatMessage.MessageType.GENERAL, senderAvatar));
-                            } catch (Exception e) { System.err.println("Error parsing Meeting history message: " + e); }
-                        }
-                    }
-                }
-            }
-            else if (rawMessage.startsWith("MSG:")) {
-                parts = rawMessage.split(":", 3);
-                if (parts.length == 3) {
-                    String sender = parts[1]; String content = parts[2];
-                    UserProfile senderProfile = userProfilesCache.get(sender);
-                    String senderAvatar = (senderProfile != null) ? senderProfile.getAvatarUrl() : null;
-                    if (currentDmPartner == null) {
-                        chatMsg = new ChatMessage(sender, content, null, sender.equals(currentUsername), ChatMessage.MessageType.GENERAL, senderAvatar);
-                    }
-                }
-            }
-            else if (rawMessage.startsWith("DM_RECEIVE:")) {
-                parts = rawMessage.split(":", 3);
-                if (parts.length == 3) {
-                    String sender = parts[1]; String content = parts[2];
-                    UserProfile senderProfile = userProfilesCache.get(sender);
-                    String senderAvatar = (senderProfile != null) ? senderProfile.getAvatarUrl() : null;
-                    if (currentDmPartner != null && currentDmPartner.equals(sender)) {
-                        chatMsg = new ChatMessage(sender, content, null, false, ChatMessage.MessageType.DIRECT, senderAvatar);
-                    }
-                }
-            }
-            else if (rawMessage.startsWith("DM_SENT_CONFIRM:")) {
-                parts = rawMessage.split(":", 3);
-                if (parts.length == 3) {
-                    String recipient = parts[1]; String content = parts[2];
-                    if (currentDmPartner != null && currentDmPartner.equals(recipient)) {
-                        chatMsg = new ChatMessage(currentUsername, content, null, true, ChatMessage.MessageType.DIRECT, currentUserAvatarUrl);
-                    }
+    // Server messages shown by this view, one handler per opcode. Handlers run on the service's dispatch
+    // thread, where they parse what they need (JSON history, profiles); only the UI update goes through onFx.
+    @FunctionalInterface
+    private interface FrameHandler {
+        // generation >= 0: answer to a request made for that room/DM context, dropped if the user has switched since.
+        void handle(WireCodec.Frame frame, long generation);
+    }
+
+    private final Map<WireCodec.Op, FrameHandler> frameHandlers = buildFrameHandlers();
+    private MessageRouter.Subscription subscription;
+
+    private Map<WireCodec.Op, FrameHandler> buildFrameHandlers() {
+        Map<WireCodec.Op, FrameHandler> handlers = new EnumMap<>(WireCodec.Op.class);
+        handlers.put(WireCodec.Op.LOGIN_SUCCESS, this::onLoginSuccess);
+        handlers.put(WireCodec.Op.RAW, (f, g) -> onPlainMessage(f.string(0), g));
+        handlers.put(WireCodec.Op.USER_JOINED, (f, g) -> onUserJoined(f.string(0), (int) f.number(1), g));
+        handlers.put(WireCodec.Op.USER_LEFT, (f, g) -> onUserLeft(f.string(0), g));
+        handlers.put(WireCodec.Op.USER_PROFILE_UPDATE, (f, g) -> onProfileUpdate(f.string(0), (int) f.number(1), g));
+        handlers.put(WireCodec.Op.RESP_PROFILES, (f, g) -> onProfiles(parseJsonArray(f.string(0)), g));
+        handlers.put(WireCodec.Op.RESP_DM_HIST, (f, g) -> onDmHistory(f.string(0), 0, f.string(1), g));
+        handlers.put(WireCodec.Op.RESP_DM_HIST_PAGE, (f, g) -> onDmHistory(f.string(1), f.number(0), f.string(2), g));
+        handlers.put(WireCodec.Op.RESP_MEETING_HIST, (f, g) -> onMeetingHistory(f.string(0), 0, f.string(1), g));
+        handlers.put(WireCodec.Op.RESP_MEETING_HIST_PAGE, (f, g) -> onMeetingHistory(f.string(1), f.number(0), f.string(2), g));
+        // MSG_SEQ / DM_RECEIVE_SEQ may be replayed after a RESUME
+        handlers.put(WireCodec.Op.MSG, (f, g) -> onRoomMessage(0, f.string(0), f.string(1), g));
+        handlers.put(WireCodec.Op.MSG_SEQ, (f, g) -> { if (firstSeen(f.number(0))) onRoomMessage(f.number(0), f.string(1), f.string(2), g); });
+        handlers.put(WireCodec.Op.DM_RECEIVE, (f, g) -> onDirectMessage(0, f.string(0), f.string(1), g));
+        handlers.put(WireCodec.Op.DM_RECEIVE_SEQ, (f, g) -> { if (firstSeen(f.number(0))) onDirectMessage(f.number(0), f.string(1), f.string(2), g); });
+        handlers.put(WireCodec.Op.DM_SENT_CONFIRM, (f, g) -> onDmSent(f.string(0), f.string(1), g));
+        handlers.put(WireCodec.Op.RESUMED, (f, g) -> onFx(g, () -> showStatus("Reconnected.", false)));
+        handlers.put(WireCodec.Op.RESUME_DONE, (f, g) -> onResumeDone(f.string(0), g));
+        handlers.put(WireCodec.Op.RESUME_FAIL, (f, g) -> onFx(g, () -> {
+            showMessage(systemNotice("Connection lost: " + f.string(0)));
+            showStatus("Disconnected.", true);
+        }));
+        handlers.put(WireCodec.Op.MEETING_CODE_STATUS, (f, g) -> onFx(g, () -> showStatus(f.string(0), false)));
+        handlers.put(WireCodec.Op.ERROR, (f, g) -> onFx(g, () -> {
+            historyRequestInFlight = false; // may answer a history page request: let the user retry by scrolling
+            showMessage(systemNotice("Server Error: " + f.string(0)));
+            showStatus(f.string(0), true);
+        }));
+        handlers.put(WireCodec.Op.SYSTEM_MSG, (f, g) -> onSystemMessage(f.string(0), g));
+        return handlers;
+    }
+
+    private void handleFrame(WireCodec.Frame frame, long generation) {
+        FrameHandler handler = frameHandlers.get(frame.op());
+        if (handler != null) handler.handle(frame, generation);
+    }
+
+    // Queues a UI update for the next pulse, where it is dropped if it answers a request made for a context
+    // the user has left since.
+    private void onFx(long generation, Runnable update) {
+        pendingUpdates.add(() -> {
+            if (generation >= 0 && generation != contextGeneration) return;
+            update.run();
+        });
+        if (pulseRequested.compareAndSet(false, true)) {
+            Platform.runLater(pulseTimer::start);
+        }
+    }
+
+    // Runs on every pulse while updates keep coming; the timer stops once a pulse finds nothing new.
+    private void onPulse() {
+        pulseRequested.set(false); // updates posted from now on are for the next pulse
+        long start = System.nanoTime();
+        int applied = 0;
+        Runnable update;
+        while ((update = pendingUpdates.poll()) != null) {
+            update.run();
+            applied++;
+        }
+        publishPulse();
+        if (!pulseRequested.get()) pulseTimer.stop();
+        if (PULSE_STATS && applied > 0) recordPulse(System.nanoTime() - start, applied);
+    }
+
+    private void publishPulse() {
+        if (pulseUsers != null) {
+            activeUsernames.setAll(pulseUsers);
+            pulseUsers = null;
+        }
+        if (!pulseMessages.isEmpty()) {
+            boolean anchored = isAnchoredAtBottom();
+            chatMessages.addAll(pulseMessages);
+            pulseMessages.clear();
+            if (anchored) trimToWindow();
+            chatListView.scrollTo(chatMessages.size() - 1);
+        }
+        if (pulseRefreshLists) {
+            pulseRefreshLists = false;
+            chatListView.refresh();
+            userListView.refresh();
+        }
+        flushProfileFetches();
+    }
+
+    private void recordPulse(long nanos, int applied) {
+        statsPulseNanos += nanos;
+        statsUpdates += applied;
+        statsPulses++;
+        long now = System.nanoTime();
+        if (now - statsWindowStart >= 1_000_000_000L) {
+            System.out.printf("FX pulses: %d updates in %d pulses, %.1f ms of FX time in %.1f s%n",
+                    statsUpdates, statsPulses, statsPulseNanos / 1e6, (now - statsWindowStart) / 1e9);
+            statsWindowStart = now;
+            statsPulseNanos = statsUpdates = statsPulses = 0;
+        }
+    }
+
+    // The user list as changed by this pulse so far; published with one setAll at its end.
+    private Set<String> pulseUsers() {
+        if (pulseUsers == null) pulseUsers = new LinkedHashSet<>(activeUsernames);
+        return pulseUsers;
+    }
+
+    private void onLoginSuccess(WireCodec.Frame frame, long generation) {
+        // LOGIN_SUCCESS:Welcome username:avatarUrl:bio
+        String welcome = frame.string(0);
+        String username = welcome.startsWith("Welcome ") ? welcome.substring("Welcome ".length()).trim() : welcome;
+        String avatarUrl = frame.string(1);
+        String bio = frame.string(2);
+        onFx(generation, () -> {
+            setUsername(username);
+            setCurrentUserAvatarUrl(avatarUrl);
+            userProfilesCache.computeIfAbsent(username, k -> new UserProfile(k, avatarUrl, null)).setBio(bio);
+            showStatus("Logged in as " + currentUsername, false);
+            // CORRECTION: Initialiser le contexte en "public"
+            updateUserListContext("public");
+        });
+    }
+
+    // Text without a known opcode: plain "sender:content" chat (or a bare server notice).
+    private void onPlainMessage(String text, long generation) {
+        if (text.startsWith("CLEAR_USER_LIST:")) {
+            onFx(generation, () -> pulseUsers().clear());
+            return;
+        }
+        String[] parts = text.split(":", 2);
+        ChatMessage message = parts.length == 2
+                ? new ChatMessage(parts[0], parts[1], null, parts[0].equals(currentUsername), ChatMessage.MessageType.GENERAL, avatarOf(parts[0]))
+                : new ChatMessage("Server", text, null, false, ChatMessage.MessageType.GENERAL, null);
+        onFx(generation, () -> {
+            if (currentDmPartner == null) showMessage(message);
+        });
+    }
+
+    private void onUserJoined(String userJoined, int profileVersion, long generation) {
+        onFx(generation, () -> {
+            requestProfileIfStale(userJoined, profileVersion);
+            // CORRECTION: Ajouter à la liste seulement si pas en mode DM et pas déjà présent
+            if (currentDmPartner == null && !userJoined.equals(currentUsername)) {
+                if (pulseUsers().add(userJoined)) {
+                    System.out.println("Added " + userJoined + " to active users list");
                 }
+                showMessage(new ChatMessage("System", userJoined + " has joined.", null, false, ChatMessage.MessageType.USER_EVENT));
             }
-            else if (rawMessage.startsWith("MEETING_CODE_STATUS:")) {
-                meetingStatusLabel.getStyleClass().setAll("label");
-                meetingStatusLabel.setText(rawMessage.substring("MEETING_CODE_STATUS:".length()));
-            }
-            else if (rawMessage.startsWith("ERROR:")) {
-                chatMsg = new ChatMessage("System", "Server Error: " + rawMessage.substring("ERROR:".length()), null, false, ChatMessage.MessageType.SYSTEM_NOTIFICATION);
-                meetingStatusLabel.getStyleClass().setAll("label", "status-label-error");
-                meetingStatusLabel.setText(rawMessage.substring("ERROR:".length()));
-            }
-            else if (rawMessage.startsWith("SYSTEM_MSG:")) {
-                chatMsg = new ChatMessage("System", rawMessage.substring("SYSTEM_MSG:".length()), null, false, ChatMessage.MessageType.SYSTEM_NOTIFICATION);
-            }
-            else if (!rawMessage.startsWith("LOGIN_") && !rawMessage.startsWith("REGISTER_") && !rawMessage.startsWith("AVATAR_UPDATE_") && !rawMessage.startsWith("PROFILE_UPDATE_")) {
-                parts = rawMessage.split(":", 2);
-                if (parts.length == 2 && currentDmPartner == null) {
-                    chatMsg = new ChatMessage(parts[0], parts[1],null, parts[0].equals(currentUsername), ChatMessage.MessageType.GENERAL, userProfilesCache.getOrDefault(parts[0], new UserProfile(parts[0],null, null)).getAvatarUrl());
-                } else if (currentDmPartner == null) {
-                    chatMsg = new ChatMessage("Server", rawMessage, null, false, ChatMessage.MessageType.GENERAL, null);
-                }
+        });
+    }
+
+    private void onUserLeft(String userLeft, long generation) {
+        onFx(generation, () -> {
+            pulseUsers().remove(userLeft);
+            // The profile stays cached: its version tells us whether to refetch it when the user comes back.
+            if (currentDmPartner == null) {
+                showMessage(new ChatMessage("System", userLeft + " has left.", null, false, ChatMessage.MessageType.USER_EVENT));
             }
+            System.out.println("Removed " + userLeft + " from active users list");
+        });
+    }
+
+    // USER_PROFILE_UPDATE:username:profileVersion (the profile itself comes with RESP_PROFILES)
+    private void onProfileUpdate(String updatedUser, int profileVersion, long generation) {
+        onFx(generation, () -> {
+            requestProfileIfStale(updatedUser, profileVersion);
+            showMessage(new ChatMessage("System", updatedUser + "'s profile updated.", null, false, ChatMessage.MessageType.SYSTEM_NOTIFICATION, null));
+        });
+    }
 
-            if (!historyMessages.isEmpty()) {
-                chatMessages.addAll(0, historyMessages);
-                if (chatMessages.size() > historyMessages.size() && historyMessages.size() < chatListView.getItems().size()) {
-                    chatListView.scrollTo(historyMessages.size() -1 );
-                } else {
-                    chatListView.scrollTo(0);
+    private void onProfiles(List<Map<String, String>> profiles, long generation) {
+        onFx(generation, () -> {
+            for (Map<String, String> p : profiles) {
+                String username = p.get("username");
+                if (username == null) continue;
+                UserProfile profile = userProfilesCache.computeIfAbsent(username, k -> new UserProfile(k, null, null));
+                int version = parseVersion(p.get("version"));
+                if (version < profile.getVersion()) continue; // an even newer one is on its way
+                profile.setVersion(version);
+                profile.setAvatarUrl(p.get("avatar_url"));
+                profile.setBio(p.get("bio"));
+                if (username.equals(currentUsername)) {
+                    setCurrentUserAvatarUrl(profile.getAvatarUrl());
                 }
             }
-            if (chatMsg != null) {
-                chatMessages.add(chatMsg);
-                chatListView.scrollTo(chatMessages.size() - 1);
-            }
+            pulseRefreshLists = true;
+        });
+    }
+
+    // RESP_DM_HIST:username:json, or RESP_DM_HIST_PAGE:nextCursor:username:json (paged = cursor given)
+    private void onDmHistory(String otherUser, long nextCursor, String json, long generation) {
+        List<ChatMessage> history = parseHistoryMessages(json, ChatMessage.MessageType.DIRECT);
+        onFx(generation, () -> {
+            if (otherUser.equals(currentDmPartner)) showHistoryPage(nextCursor, history);
+        });
+    }
+
+    // RESP_MEETING_HIST:code:json, or RESP_MEETING_HIST_PAGE:nextCursor:code:json
+    private void onMeetingHistory(String meetingCode, long nextCursor, String json, long generation) {
+        List<ChatMessage> history = parseHistoryMessages(json, ChatMessage.MessageType.GENERAL);
+        onFx(generation, () -> {
+            if (currentDmPartner == null && meetingCode.equals(currentMeetingCode())) showHistoryPage(nextCursor, history);
+        });
+    }
+
+    // id = the message's sequence (its row id), 0 for unsequenced frames
+    // The message (emoji replacement, formatted time) is built here on the dispatch thread, like history pages
+    private void onRoomMessage(long id, String sender, String content, long generation) {
+        ChatMessage message = new ChatMessage(id, sender, content, null, sender.equals(currentUsername), ChatMessage.MessageType.GENERAL, avatarOf(sender));
+        onFx(generation, () -> {
+            if (currentDmPartner == null) showMessage(message);
+        });
+    }
+
+    private void onDirectMessage(long id, String sender, String content, long generation) {
+        ChatMessage message = new ChatMessage(id, sender, content, null, false, ChatMessage.MessageType.DIRECT, avatarOf(sender));
+        onFx(generation, () -> {
+            if (sender.equals(currentDmPartner)) showMessage(message);
         });
     }
 
+    private void onDmSent(String recipient, String content, long generation) {
+        ChatMessage message = new ChatMessage(currentUsername, content, null, true, ChatMessage.MessageType.DIRECT, currentUserAvatarUrl);
+        onFx(generation, () -> {
+            if (recipient.equals(currentDmPartner)) showMessage(message);
+        });
+    }
+
+    private void onResumeDone(String outcome, long generation) {
+        if (!outcome.equals("truncated")) return;
+        // Too much was missed to replay: reload the conversation from its newest page
+        onFx(generation, () -> {
+            clearChat();
+            requestHistoryPage(0);
+        });
+    }
+
+    private void onSystemMessage(String text, long generation) {
+        if (text.equals("Disconnected") && webSocketService.isReconnecting()) {
+            // WebSocketClientService reconnects by itself; messages sent meanwhile go out afterwards
+            onFx(generation, () -> showMessage(systemNotice("Connection lost, reconnecting...")));
+        } else if (text.startsWith("Reconnecting:")) {
+            // Reconnecting:attempt:delayMs
+            String attempt = text.split(":", 3)[1];
+            onFx(generation, () -> showStatus("Reconnecting (attempt " + attempt + ")...", true));
+        } else if (text.equals("Relogged_In")) {
+            // The session could not be resumed: logged in again, so reload what may have been missed
+            onFx(generation, () -> {
+                showStatus("Reconnected.", false);
+                contextGeneration++;
+                clearChat();
+                updateUserListContext(currentDmPartner != null ? "DM" : currentRoom);
+                requestHistoryPage(0);
+            });
+        } else if (text.startsWith("Reconnect_Failed:")) {
+            onFx(generation, () -> {
+                showMessage(systemNotice("Could not reconnect to the server."));
+                showStatus("Disconnected.", true);
+            });
+        } else {
+            onFx(generation, () -> showMessage(systemNotice(text)));
+        }
+    }
+
+    // Appended (and scrolled to) with the other messages of this pulse.
+    private void showMessage(ChatMessage chatMsg) {
+        pulseMessages.add(chatMsg);
+    }
+
+    private void clearChat() {
+        pulseMessages.clear();
+        chatMessages.clear();
+    }
+
+    // A history page goes above what is shown; nextCursor 0 = unpaged history, or nothing older to fetch.
+    private void showHistoryPage(long nextCursor, List<ChatMessage> historyMessages) {
+        olderHistoryCursor = nextCursor;
+        historyRequestInFlight = false;
+        if (historyMessages.isEmpty()) return;
+        chatMessages.addAll(0, historyMessages);
+        if (chatMessages.size() > historyMessages.size() && historyMessages.size() < chatListView.getItems().size()) {
+            chatListView.scrollTo(historyMessages.size() -1 );
+        } else {
+            chatListView.scrollTo(0);
+        }
+        if (nextCursor != 0) Platform.runLater(this::fillViewportWithHistory);
+    }
+
+    // Without a scroll bar the user cannot reach the top to load older messages: keep paging until the
+    // messages overflow the list or there are no more.
+    private void fillViewportWithHistory() {
+        if (olderHistoryCursor == 0 || historyRequestInFlight || webSocketService == null || !webSocketService.isConnected()) return;
+        chatListView.layout(); // the scroll bar's visibility is only updated by a layout pass
+        if (chatScrollBar != null && !chatScrollBar.isVisible()) requestHistoryPage(olderHistoryCursor);
+    }
+
+    private void showStatus(String text, boolean error) {
+        if (error) meetingStatusLabel.getStyleClass().setAll("label", "status-label-error");
+        else meetingStatusLabel.getStyleClass().setAll("label");
+        meetingStatusLabel.setText(text);
+    }
+
+    private static ChatMessage systemNotice(String text) {
+        return new ChatMessage("System", text, null, false, ChatMessage.MessageType.SYSTEM_NOTIFICATION);
+    }
+
+    private String avatarOf(String username) {
+        UserProfile profile = userProfilesCache.get(username);
+        return profile != null ? profile.getAvatarUrl() : null;
+    }
+
     @FXML
     private void handleSendMessageAction(ActionEvent event) {
         String messageText = messageInputField.getText().trim();
-        if (!messageText.isEmpty() && webSocketService != null && webSocketService.isConnected()) {
+        if (!messageText.isEmpty() && webSocketService != null && webSocketService.canSend()) {
             if (currentDmPartner != null) {
-                webSocketService.sendMessage("DM_SEND:" + currentDmPartner + ":" + messageText);
+                webSocketService.sendFrame(WireCodec.Frame.of(WireCodec.Op.DM_SEND, currentDmPartner, messageText));
             } else {
-                webSocketService.sendMessage(messageText);
+                // An explicit CHAT frame: in binary, text that looks like a command still arrives as chat
+                webSocketService.sendFrame(WireCodec.Frame.of(WireCodec.Op.CHAT, messageText));
             }
             messageInputField.clear();
+            showSendBacklog();
         } else if (messageText.isEmpty()) { /* Optional: feedback */ } else {
             chatMessages.add(new ChatMessage("System", "Not connected to server.", null, false, ChatMessage.MessageType.SYSTEM_NOTIFICATION, null));
         }
     }
 
+    // Messages pile up in the send queue when the network is slow: say so instead of looking frozen.
+    private void showSendBacklog() {
+        SendQueue.Stats stats = webSocketService.getSendStats();
+        if (stats != null && stats.depth >= SEND_BACKLOG_WARNING) {
+            meetingStatusLabel.getStyleClass().setAll("label", "status-label-error");
+            meetingStatusLabel.setText(String.format("Slow network: %d message(s) waiting (%.0f ms per send)", stats.depth, stats.averageLatencyMs));
+        }
+    }
+
     private void switchToDmWithUser(String username) {
         currentDmPartner = username;
+        contextGeneration++;
         meetingCodeField.setDisable(true);
         joinMeetingButton.setDisable(true);
-        chatMessages.clear();
+        clearChat();
         meetingStatusLabel.setText("DM with " + username);
 
         // CORRECTION: Vider la liste et mettre à jour le contexte
         updateUserListContext("DM");
 
         if(webSocketService!=null && webSocketService.isConnected()){
-            webSocketService.sendMessage("REQ_DM_HIST:"+currentDmPartner);
+            requestHistoryPage(0);
         } else {
             chatMessages.add(new ChatMessage("System","No connection for DM history",null,false,ChatMessage.MessageType.SYSTEM_NOTIFICATION,null));
         }
@@ -388,16 +566,24 @@ public class ChatController {
         String effCode = code.isEmpty()?"public":code;
 
         if(webSocketService!=null && webSocketService.isConnected()){
-            webSocketService.sendMessage("MEETING_CODE:"+effCode);
             currentDmPartner=null;
+            currentRoom = effCode;
+            webSocketService.setCurrentRoom(effCode);
+            long generation = ++contextGeneration;
             meetingCodeField.setDisable(false);
             joinMeetingButton.setDisable(false);
-            chatMessages.clear();
+            clearChat();
 
             // CORRECTION: Mettre à jour le contexte utilisateur
             updateUserListContext(effCode);
 
-            webSocketService.sendMessage("REQ_MEETING_HIST:"+effCode);
+            // Join and first history page in one BATCH frame, each answer matched by its correlation id
+            olderHistoryCursor = 0;
+            historyRequestInFlight = true;
+            webSocketService.batch()
+                    .add("MEETING_CODE:" + effCode, frame -> handleFrame(frame, -1))
+                    .add(historyPageCommand(0), frame -> handleFrame(frame, generation))
+                    .send();
         } else {
             meetingStatusLabel.getStyleClass().setAll("label", "status-label-error");
             meetingStatusLabel.setText("Not connected");
@@ -411,81 +597,167 @@ public class ChatController {
 
     public void setWebSocketService(WebSocketClientService service) {
         this.webSocketService = service;
-        this.webSocketService.addMessageHandler(this::handleServerMessage);
+        this.subscription = service.subscribe(frame -> handleFrame(frame, -1), frameHandlers.keySet().toArray(new WireCodec.Op[0]));
     }
 
     public void cleanUp() {
-        if (webSocketService != null) {
-            webSocketService.removeMessageHandler(this::handleServerMessage);
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
         }
+        pulseTimer.stop();
+        pendingUpdates.clear();
     }
 
-    private List<Map<String, String>> parseSimpleJsonArray(String jsonArrayStr) {
-        List<Map<String, String>> list = new ArrayList<>();
-        if (jsonArrayStr == null || !jsonArrayStr.startsWith("[") || !jsonArrayStr.endsWith("]")) {
-            System.err.println("Invalid JSON: " + jsonArrayStr);
-            return list;
-        }
-        if (jsonArrayStr.equals("[]")) return list;
-        String content = jsonArrayStr.substring(1, jsonArrayStr.length() - 1).trim();
-        if (content.isEmpty()) return list;
-        String[] objectStrings = content.split("\\s*\\},\\s*\\{");
-        for (String objStr : objectStrings) {
-            Map<String, String> map = new HashMap<>();
-            String currentObjStr = objStr.trim();
-            if (!currentObjStr.startsWith("{")) currentObjStr = "{" + currentObjStr;
-            if (!currentObjStr.endsWith("}")) currentObjStr = currentObjStr + "}";
-            Matcher matcher = JSON_PROPERTY_PATTERN.matcher(currentObjStr);
-            while (matcher.find()) {
-                map.put(matcher.group(1), matcher.group(2).replace("\\\"", "\"").replace("\\\\", "\\"));
-            }
-            if (!map.isEmpty()) {
-                list.add(map);
+    // Queues a fetch of the user's profile if we don't hold `version` yet; fetches announced in the same
+    // pulse are sent as one REQ_PROFILES when it ends.
+    private void requestProfileIfStale(String username, int version) {
+        UserProfile cached = userProfilesCache.get(username);
+        if (cached != null && cached.getVersion() >= version) return;
+        pendingProfileFetches.add(username);
+    }
+
+    private void flushProfileFetches() {
+        if (pendingProfileFetches.isEmpty()) return;
+        if (webSocketService != null && webSocketService.isConnected()) {
+            List<String> names = new ArrayList<>(pendingProfileFetches);
+            for (int i = 0; i < names.size(); i += PROFILES_PER_REQUEST) {
+                webSocketService.sendMessage("REQ_PROFILES:" + String.join(",", names.subList(i, Math.min(names.size(), i + PROFILES_PER_REQUEST))));
             }
         }
-        return list;
+        pendingProfileFetches.clear();
     }
 
-    // CORRECTION: Partie de ChatController.java pour l'affichage des messages
+    private static int parseVersion(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
 
-    // Inner class pour les cellules de messages - VERSION CORRIGÉE
-    private class ChatMessageCell extends ListCell<ChatMessage> {
-        private HBox container = new HBox(10); // CORRECTION: Espacement entre éléments
-        private ImageView avatarImageView = new ImageView();
-        private VBox messageContentContainer = new VBox(2); // CORRECTION: Espacement réduit
-        private Label senderLabel = new Label();
-        private Label messageLabel = new Label(); // CORRECTION: Utiliser Label au lieu de TextFlow
-        private Label timestampLabel = new Label();
-        private static final double AVATAR_SIZE_CHAT = 30;
+    // False if this live message's sequence was already shown (replayed after a RESUME). Dispatch thread only.
+    private boolean firstSeen(long seq) {
+        if (seq <= 0) return true;
+        if (!seenSeqs.add(seq)) return false;
+        if (seenSeqs.size() > SEEN_SEQ_CAPACITY) {
+            Iterator<Long> oldest = seenSeqs.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        return true;
+    }
 
-        public ChatMessageCell() {
-            super();
+    private String currentMeetingCode() {
+        return currentRoom;
+    }
 
-            // Configuration avatar
-            avatarImageView.setFitHeight(AVATAR_SIZE_CHAT);
-            avatarImageView.setFitWidth(AVATAR_SIZE_CHAT);
-            avatarImageView.setPreserveRatio(true);
-            Circle clip = new Circle(AVATAR_SIZE_CHAT / 2, AVATAR_SIZE_CHAT / 2, AVATAR_SIZE_CHAT / 2);
-            avatarImageView.setClip(clip);
+    // Requests one page of the current conversation; beforeId 0 = newest page (and resets paging).
+    private void requestHistoryPage(long beforeId) {
+        if (beforeId == 0) olderHistoryCursor = 0;
+        historyRequestInFlight = true;
+        long generation = contextGeneration;
+        webSocketService.request(historyPageCommand(beforeId), frame -> handleFrame(frame, generation));
+    }
 
-            // CORRECTION: Configuration du message label pour affichage en ligne
-            messageLabel.setWrapText(true);
-            messageLabel.setMaxWidth(400); // Largeur maximum
-            messageLabel.getStyleClass().add("message-text-content");
+    private String historyPageCommand(long beforeId) {
+        if (currentDmPartner != null) {
+            return "REQ_DM_HIST_PAGE:" + beforeId + ":" + HISTORY_PAGE_SIZE + ":" + currentDmPartner;
+        }
+        return "REQ_MEETING_HIST_PAGE:" + beforeId + ":" + HISTORY_PAGE_SIZE + ":" + currentMeetingCode();
+    }
 
-            // Configuration des conteneurs
-            messageContentContainer.getChildren().addAll(senderLabel, messageLabel);
-            messageContentContainer.getStyleClass().add("message-bubble");
+    // Fetches the next older page when the user reaches the top of the chat list, and shrinks the list back
+    // to its window when they return to the bottom.
+    private void installLoadOlderOnScrollTop() {
+        chatListView.skinProperty().addListener((obs, oldSkin, newSkin) -> {
+            for (Node node : chatListView.lookupAll(".scroll-bar")) {
+                if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                    ScrollBar bar = (ScrollBar) node;
+                    chatScrollBar = bar;
+                    bar.valueProperty().addListener((o, oldValue, newValue) -> {
+                        if (newValue.doubleValue() <= bar.getMin() && olderHistoryCursor > 0 && !historyRequestInFlight
+                                && webSocketService != null && webSocketService.isConnected()) {
+                            requestHistoryPage(olderHistoryCursor);
+                        } else if (newValue.doubleValue() >= bar.getMax() && chatMessages.size() > MAX_CHAT_MESSAGES) {
+                            Platform.runLater(() -> { // not while the list is handling this scroll
+                                trimToWindow();
+                                chatListView.scrollTo(chatMessages.size() - 1);
+                            });
+                        }
+                    });
+                }
+            }
+        });
+    }
 
-            // CORRECTION: Configuration du container principal
-            container.setAlignment(Pos.CENTER_LEFT);
-            container.setSpacing(10);
-            container.setPadding(new Insets(3, 5, 3, 5));
+    private boolean isAnchoredAtBottom() {
+        return chatScrollBar == null || !chatScrollBar.isVisible() || chatScrollBar.getValue() >= chatScrollBar.getMax();
+    }
 
-            // Styles
-            senderLabel.getStyleClass().add("message-sender");
-            timestampLabel.getStyleClass().add("message-timestamp");
+    // Evicts the oldest messages beyond MAX_CHAT_MESSAGES. The history cursor moves just past the newest
+    // evicted message with an id, so scrolling back to the top pages the evicted ones in again.
+    private void trimToWindow() {
+        int excess = chatMessages.size() - MAX_CHAT_MESSAGES;
+        if (excess <= 0) return;
+        long newestEvictedId = 0;
+        for (int i = 0; i < excess; i++) newestEvictedId = Math.max(newestEvictedId, chatMessages.get(i).getId());
+        chatMessages.remove(0, excess);
+        if (newestEvictedId > 0) olderHistoryCursor = newestEvictedId + 1;
+    }
+
+    // Reads a history page in one pass: [{"id":..,"content":"..","timestamp":epochMillis,"sender_username":".."},...]
+    private List<ChatMessage> parseHistoryMessages(String jsonArrayStr, ChatMessage.MessageType type) {
+        List<ChatMessage> messages = new ArrayList<>();
+        try {
+            JsonCodec.Reader reader = new JsonCodec.Reader(jsonArrayStr);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String senderUsername = null, content = null; LocalDateTime ts = null; long id = 0;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "id": id = reader.nextLong(); break;
+                        case "sender_username": senderUsername = reader.nextString(); break;
+                        case "content": content = reader.nextString(); break;
+                        case "timestamp":
+                            ts = reader.peek() == '"' // ISO string from older servers
+                                    ? LocalDateTime.parse(reader.nextString(), DateTimeFormatter.ISO_LOCAL_DATE_TIME)
+                                    : LocalDateTime.ofInstant(Instant.ofEpochMilli(reader.nextLong()), ZoneId.systemDefault());
+                            break;
+                        default: reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (senderUsername == null) continue;
+                UserProfile senderProfile = userProfilesCache.get(senderUsername);
+                String senderAvatar = (senderProfile != null) ? senderProfile.getAvatarUrl() : null;
+                messages.add(new ChatMessage(id, senderUsername, content, ts, senderUsername.equals(currentUsername), type, senderAvatar));
+            }
+            reader.endArray();
+        } catch (JsonCodec.MalformedJsonException | DateTimeParseException e) {
+            System.err.println("Error parsing history messages: " + e.getMessage());
+        }
+        return messages;
+    }
+
+    private List<Map<String, String>> parseJsonArray(String jsonArrayStr) {
+        try {
+            return JsonCodec.parseObjectArray(jsonArrayStr);
+        } catch (JsonCodec.MalformedJsonException e) {
+            System.err.println("Invalid JSON (" + e.getMessage() + "): " + jsonArrayStr);
+            return new ArrayList<>();
         }
+    }
+
+    // CORRECTION: Partie de ChatController.java pour l'affichage des messages
+
+    // Inner class pour les cellules de messages - VERSION CORRIGÉE
+    // Une mise en page construite une fois par type de message (envoyé, reçu, système) : la cellule bascule
+    // de l'une à l'autre et ne fait que remplir les textes, sans reconstruire son graphe de nœuds.
+    private class ChatMessageCell extends ListCell<ChatMessage> {
+        private static final double AVATAR_SIZE_CHAT = 30;
+        private MessageLayout sentLayout, receivedLayout, systemLayout; // créées à la première utilisation
 
         @Override
         protected void updateItem(ChatMessage message, boolean empty) {
@@ -494,64 +766,82 @@ public class ChatController {
             if (empty || message == null) {
                 setText(null);
                 setGraphic(null);
-                avatarImageView.setImage(null);
                 return;
             }
 
-            // CORRECTION: Configurer le contenu du message
-            senderLabel.setText(message.getSender());
-
-            // CORRECTION: Traitement des emojis et affichage du contenu
-            String processedContent = replaceEmojiShortcodes(message.getContent());
-            messageLabel.setText(processedContent);
-
-            timestampLabel.setText(message.getFormattedTimestamp());
-
-            // Configuration de l'avatar
-            String avatarUrl = message.getSenderAvatarUrl();
-            Image img = null;
-            if (avatarUrl != null && !avatarUrl.isEmpty()) {
-                try {
-                    img = new Image(avatarUrl, true);
-                    avatarImageView.setImage(img);
-                } catch (Exception e) {
-                    System.err.println("Erreur chargement avatar: " + avatarUrl);
-                    avatarImageView.setImage(null);
-                }
-            } else {
-                avatarImageView.setImage(null);
-            }
-            avatarImageView.setVisible(img != null && !img.isError());
-
-            // CORRECTION: Layout selon le type de message
-            container.getChildren().clear();
+            MessageLayout layout = layoutFor(message);
+            layout.senderLabel.setText(message.getSender());
+            layout.messageLabel.setText(message.getDisplayContent()); // emojis déjà remplacés
+            if (layout.timestampLabel != null) layout.timestampLabel.setText(message.getFormattedTimestamp());
+            // Avatar : cache partagé, décodé une seule fois à la taille affichée
+            if (layout.avatarImageView != null) AvatarCache.show(layout.avatarImageView, message.getSenderAvatarUrl(), (int) AVATAR_SIZE_CHAT);
+            if (getGraphic() != layout.container) setGraphic(layout.container);
+        }
 
+        private MessageLayout layoutFor(ChatMessage message) {
             if (message.isSentByCurrentUser()) {
-                // Messages envoyés - alignés à droite
-                container.setAlignment(Pos.CENTER_RIGHT);
-                messageContentContainer.getStyleClass().setAll("message-bubble", "sent");
-                senderLabel.setVisible(false); // Masquer le nom pour ses propres messages
-                container.getChildren().addAll(timestampLabel, messageContentContainer, avatarImageView);
-
+                // Messages envoyés - alignés à droite, sans le nom
+                if (sentLayout == null) sentLayout = new MessageLayout("sent", Pos.CENTER_RIGHT, true, true, false);
+                return sentLayout;
             } else if (message.getType() == ChatMessage.MessageType.SYSTEM_NOTIFICATION ||
                     message.getType() == ChatMessage.MessageType.USER_EVENT) {
-                // Messages système - centrés
-                container.setAlignment(Pos.CENTER);
-                messageContentContainer.getStyleClass().setAll("message-bubble", "system");
-                senderLabel.setVisible(true);
-                avatarImageView.setVisible(false);
-                container.getChildren().addAll(messageContentContainer);
-                timestampLabel.setVisible(false);
-
+                // Messages système - centrés, sans avatar ni heure
+                if (systemLayout == null) systemLayout = new MessageLayout("system", Pos.CENTER, false, false, true);
+                return systemLayout;
             } else {
                 // Messages reçus - alignés à gauche
-                container.setAlignment(Pos.CENTER_LEFT);
-                messageContentContainer.getStyleClass().setAll("message-bubble", "received");
-                senderLabel.setVisible(true);
-                container.getChildren().addAll(avatarImageView, messageContentContainer, timestampLabel);
+                if (receivedLayout == null) receivedLayout = new MessageLayout("received", Pos.CENTER_LEFT, true, true, true);
+                return receivedLayout;
             }
+        }
+    }
+
+    // Les nœuds d'une mise en page de message ; avatar et heure absents (null) pour les messages système.
+    private static class MessageLayout {
+        final HBox container = new HBox(10); // CORRECTION: Espacement entre éléments
+        final VBox messageContentContainer = new VBox(2); // CORRECTION: Espacement réduit
+        final Label senderLabel = new Label();
+        final Label messageLabel = new Label(); // CORRECTION: Utiliser Label au lieu de TextFlow
+        final Label timestampLabel;
+        final ImageView avatarImageView;
 
-            setGraphic(container);
+        MessageLayout(String bubbleStyle, Pos alignment, boolean withAvatar, boolean withTimestamp, boolean showSender) {
+            // CORRECTION: Configuration du message label pour affichage en ligne
+            messageLabel.setWrapText(true);
+            messageLabel.setMaxWidth(400); // Largeur maximum
+            messageLabel.getStyleClass().add("message-text-content");
+            senderLabel.getStyleClass().add("message-sender");
+            senderLabel.setVisible(showSender);
+
+            messageContentContainer.getChildren().addAll(senderLabel, messageLabel);
+            messageContentContainer.getStyleClass().setAll("message-bubble", bubbleStyle);
+
+            if (withAvatar) {
+                avatarImageView = new ImageView();
+                avatarImageView.setFitHeight(ChatMessageCell.AVATAR_SIZE_CHAT);
+                avatarImageView.setFitWidth(ChatMessageCell.AVATAR_SIZE_CHAT);
+                avatarImageView.setPreserveRatio(true);
+                double r = ChatMessageCell.AVATAR_SIZE_CHAT / 2;
+                avatarImageView.setClip(new Circle(r, r, r));
+            } else {
+                avatarImageView = null;
+            }
+            if (withTimestamp) {
+                timestampLabel = new Label();
+                timestampLabel.getStyleClass().add("message-timestamp");
+            } else {
+                timestampLabel = null;
+            }
+
+            container.setAlignment(alignment);
+            container.setPadding(new Insets(3, 5, 3, 5));
+            if (alignment == Pos.CENTER_RIGHT) {
+                container.getChildren().addAll(timestampLabel, messageContentContainer, avatarImageView);
+            } else if (withAvatar) {
+                container.getChildren().addAll(avatarImageView, messageContentContainer, timestampLabel);
+            } else {
+                container.getChildren().add(messageContentContainer);
+            }
         }
     }
 
@@ -579,28 +869,11 @@ public class ChatController {
             if (empty || username == null) {
                 setText(null);
                 setGraphic(null);
-                avatarView.setImage(null);
+                AvatarCache.show(avatarView, null, (int) USER_LIST_AVATAR_SIZE);
             } else {
                 usernameLabel.setText(username);
                 UserProfile userProfile = userProfilesCache.get(username);
-                Image img = null;
-                if (userProfile != null && userProfile.getAvatarUrl() != null && !userProfile.getAvatarUrl().isEmpty()) {
-                    try {
-                        img = new Image(userProfile.getAvatarUrl(), true);
-                        avatarView.setImage(img);
-                        img.errorProperty().addListener((obs, oldError, newError) -> {
-                            if (newError) {
-                                System.err.println("Error loading user list avatar for " + username + ": " + userProfile.getAvatarUrl());
-                            }
-                        });
-                    } catch (Exception e) {
-                        System.err.println("Exception creating image for user list avatar " + username + ": " + e.getMessage());
-                        avatarView.setImage(null);
-                    }
-                } else {
-                    avatarView.setImage(null);
-                }
-                avatarView.setVisible(avatarView.getImage() != null);
+                AvatarCache.show(avatarView, userProfile != null ? userProfile.getAvatarUrl() : null, (int) USER_LIST_AVATAR_SIZE);
                 setGraphic(hbox);
             }
         }
@@ -608,6 +881,7 @@ public class ChatController {
 
     private void updateUserListContext(String newContext) {
         // Vider la liste des utilisateurs pour le nouveau contexte
+        pulseUsers = null;
         activeUsernames.clear();
 
         // Mettre à jour l'affichage selon le contexte
@@ -1,7 +1,9 @@
 package com.datingapp.client.ui;
 
 import com.datingapp.MainClient; // Will be used to switch scenes
+import com.datingapp.client.services.MessageRouter;
 import com.datingapp.client.services.WebSocketClientService; // To send messages
+import com.datingapp.common.WireCodec;
 
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
@@ -20,6 +22,7 @@ public class LoginController {
 
     private WebSocketClientService webSocketService;
     private MainClient mainClientApp; // To call scene switching methods
+    private MessageRouter.Subscription subscription;
 
     public void initialize() {
         // Get the WebSocket service instance (e.g., from MainClient or a singleton)
@@ -33,21 +36,28 @@ public class LoginController {
     public void setWebSocketService(WebSocketClientService service) {
         this.webSocketService = service;
         // Define how to handle messages from the server related to login
-        this.webSocketService.addMessageHandler(message -> {
+        this.subscription = service.subscribe(frame -> {
             Platform.runLater(() -> {
-                if (message.startsWith("LOGIN_SUCCESS:")) {
+                if (frame.op() == WireCodec.Op.LOGIN_SUCCESS) {
                     statusLabel.getStyleClass().setAll("label", "status-label-success");
-                    statusLabel.setText(message.substring("LOGIN_SUCCESS:".length()));
+                    statusLabel.setText(frame.string(0));
                     // Navigate to chat view (to be implemented in MainClient)
                     if (mainClientApp != null) {
                         mainClientApp.showChatView(usernameField.getText());
                     }
-                } else if (message.startsWith("LOGIN_FAIL:")) {
+                } else {
                     statusLabel.getStyleClass().setAll("label", "status-label-error");
-                    statusLabel.setText(message.substring("LOGIN_FAIL:".length()));
+                    statusLabel.setText(frame.string(0));
                 }
             });
-        });
+        }, WireCodec.Op.LOGIN_SUCCESS, WireCodec.Op.LOGIN_FAIL);
+    }
+
+    public void cleanUp() {
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
     }
 
 
@@ -64,7 +74,7 @@ public class LoginController {
         statusLabel.getStyleClass().setAll("label"); // Reset to default label style
         statusLabel.setText("Attempting login...");
         if (webSocketService != null && webSocketService.isConnected()) {
-            webSocketService.sendMessage("LOGIN:" + username + ":" + password);
+            webSocketService.sendFrame(WireCodec.Frame.of(WireCodec.Op.LOGIN, username, password));
         } else {
             statusLabel.setText("Not connected to server. Please try again later.");
         }
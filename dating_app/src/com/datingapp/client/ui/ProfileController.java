@@ -1,7 +1,10 @@
 package com.datingapp.client.ui;
 
 import com.datingapp.client.model.UserProfile; 
+import com.datingapp.client.services.MessageRouter;
 import com.datingapp.client.services.WebSocketClientService;
+import com.datingapp.common.WireCodec;
+import com.datingapp.common.JsonCodec;
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -24,6 +27,7 @@ public class ProfileController {
     private Stage dialogStage;
     private UserProfile currentUserProfile; // Store the whole profile
     private boolean profileDataChanged = false;
+    private MessageRouter.Subscription subscription;
 
 
     public void setDialogStage(Stage dialogStage) {
@@ -33,7 +37,9 @@ public class ProfileController {
     public void setWebSocketService(WebSocketClientService webSocketService) {
         this.webSocketService = webSocketService;
         // Add a single handler for all profile-related server messages
-        this.webSocketService.addMessageHandler(this::handleServerProfileMessages);
+        this.subscription = webSocketService.subscribe(this::handleServerProfileMessages,
+                WireCodec.Op.AVATAR_UPDATE_SUCCESS, WireCodec.Op.AVATAR_UPDATE_FAIL,
+                WireCodec.Op.PROFILE_UPDATE_SUCCESS, WireCodec.Op.PROFILE_UPDATE_FAIL);
     }
 
     // Method to set current user data
@@ -54,37 +60,41 @@ public class ProfileController {
         return currentUserProfile;
     }
 
-    private void handleServerProfileMessages(String message) {
+    // Called off the FX thread: the bio is parsed here, only the UI update is posted.
+    private void handleServerProfileMessages(WireCodec.Frame frame) {
+        String value = frame.string(0);
+        if (frame.op() == WireCodec.Op.PROFILE_UPDATE_SUCCESS) {
+            // JSON payload: {"bio":"content"}
+            String newBio = "";
+            try {
+                String parsed = JsonCodec.readStringMember(value, "bio");
+                if (parsed != null) newBio = parsed;
+            } catch (JsonCodec.MalformedJsonException e) {
+                System.err.println("Error parsing bio from PROFILE_UPDATE_SUCCESS: " + value);
+            }
+            String bio = newBio;
+            Platform.runLater(() -> {
+                statusLabel.getStyleClass().setAll("label","status-label-success");
+                statusLabel.setText("Profile bio updated successfully!");
+                if (currentUserProfile != null) currentUserProfile.setBio(bio);
+                bioTextArea.setText(bio);
+                profileDataChanged = true;
+            });
+            return;
+        }
         Platform.runLater(() -> {
-            if (message.startsWith("AVATAR_UPDATE_SUCCESS:")) {
+            if (frame.op() == WireCodec.Op.AVATAR_UPDATE_SUCCESS) {
                 statusLabel.getStyleClass().setAll("label","status-label-success");
                 statusLabel.setText("Avatar URL updated successfully!");
-                String newAvatarUrl = message.substring("AVATAR_UPDATE_SUCCESS:".length());
-                if (currentUserProfile != null) currentUserProfile.setAvatarUrl(newAvatarUrl);
-                avatarUrlField.setText(newAvatarUrl); // ensure field shows the saved one
+                if (currentUserProfile != null) currentUserProfile.setAvatarUrl(value);
+                avatarUrlField.setText(value); // ensure field shows the saved one
                 profileDataChanged = true; 
-            } else if (message.startsWith("AVATAR_UPDATE_FAIL:")) {
+            } else if (frame.op() == WireCodec.Op.AVATAR_UPDATE_FAIL) {
                 statusLabel.getStyleClass().setAll("label","status-label-error");
-                statusLabel.setText("Avatar Error: " + message.substring("AVATAR_UPDATE_FAIL:".length()));
-            } else if (message.startsWith("PROFILE_UPDATE_SUCCESS:")) { 
-                String jsonPayload = message.substring("PROFILE_UPDATE_SUCCESS:".length());
-                String newBio = "";
-                // Basic JSON parsing for {"bio":"content"}
-                if (jsonPayload.startsWith("{\"bio\":\"") && jsonPayload.endsWith("\"}")) {
-                     newBio = jsonPayload.substring("{\"bio\":\"".length(), jsonPayload.length() - 2);
-                     // Unescape basic characters that server might have escaped for JSON
-                     newBio = newBio.replace("\\\"", "\"").replace("\\\\", "\\").replace("\\n", "\n").replace("\\r", "").replace("\\t", "\t");
-                } else {
-                    System.err.println("Error parsing bio from PROFILE_UPDATE_SUCCESS: " + jsonPayload);
-                }
-                statusLabel.getStyleClass().setAll("label","status-label-success");
-                statusLabel.setText("Profile bio updated successfully!");
-                if (currentUserProfile != null) currentUserProfile.setBio(newBio);
-                bioTextArea.setText(newBio); 
-                profileDataChanged = true;
-            } else if (message.startsWith("PROFILE_UPDATE_FAIL:")) {
+                statusLabel.setText("Avatar Error: " + value);
+            } else if (frame.op() == WireCodec.Op.PROFILE_UPDATE_FAIL) {
                 statusLabel.getStyleClass().setAll("label","status-label-error");
-                statusLabel.setText("Profile Error: " + message.substring("PROFILE_UPDATE_FAIL:".length()));
+                statusLabel.setText("Profile Error: " + value);
             }
         });
     }
@@ -100,7 +110,7 @@ public class ProfileController {
         if (webSocketService != null && webSocketService.isConnected()) {
             statusLabel.getStyleClass().setAll("label"); // Reset status label style
             statusLabel.setText("Saving avatar URL...");
-            webSocketService.sendMessage("UPDATE_AVATAR_URL:" + newAvatarUrl);
+            webSocketService.sendMessage("UPDATE_AVATAR_URL:" + newAvatarUrl, "avatar"); // a newer URL replaces one not sent yet
         } else { 
             statusLabel.getStyleClass().setAll("label","status-label-error");
             statusLabel.setText("Not connected to server.");
@@ -116,18 +126,12 @@ public class ProfileController {
             return;
         }
         
-        // Escape for JSON: quotes, backslashes, newlines, tabs, carriage returns
-        String escapedBio = newBio.replace("\\", "\\\\")
-                                  .replace("\"", "\\\"")
-                                  .replace("\n", "\\n")
-                                  .replace("\r", "\\r")
-                                  .replace("\t", "\\t");
-        String clientJsonPayload = "{\"bio\":\"" + escapedBio + "\"}";
+        String clientJsonPayload = JsonCodec.objectOf("bio", newBio); // escaped for JSON
 
         if (webSocketService != null && webSocketService.isConnected()) {
             statusLabel.getStyleClass().setAll("label"); // Reset status label style
             statusLabel.setText("Saving bio...");
-            webSocketService.sendMessage("UPDATE_PROFILE:" + clientJsonPayload);
+            webSocketService.sendMessage("UPDATE_PROFILE:" + clientJsonPayload, "bio");
         } else {
             statusLabel.getStyleClass().setAll("label","status-label-error");
             statusLabel.setText("Not connected to server.");
@@ -140,6 +144,6 @@ public class ProfileController {
     }
     
     public void cleanup() { 
-         if (webSocketService != null) { webSocketService.removeMessageHandler(this::handleServerProfileMessages); }
+         if (subscription != null) { subscription.cancel(); subscription = null; }
     }
 }
@@ -1,7 +1,9 @@
 package com.datingapp.client.ui;
 
 import com.datingapp.MainClient;
+import com.datingapp.client.services.MessageRouter;
 import com.datingapp.client.services.WebSocketClientService;
+import com.datingapp.common.WireCodec;
 
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
@@ -22,6 +24,7 @@ public class RegistrationController {
     
     private WebSocketClientService webSocketService;
     private MainClient mainClientApp;
+    private MessageRouter.Subscription subscription;
 
     public void setMainApp(MainClient mainClientApp) {
         this.mainClientApp = mainClientApp;
@@ -30,18 +33,25 @@ public class RegistrationController {
     public void setWebSocketService(WebSocketClientService service) {
         this.webSocketService = service;
         // Define how to handle messages from the server related to registration
-         this.webSocketService.addMessageHandler(message -> {
+         this.subscription = service.subscribe(frame -> {
             Platform.runLater(() -> {
-                if (message.startsWith("REGISTER_SUCCESS:")) {
+                if (frame.op() == WireCodec.Op.REGISTER_SUCCESS) {
                     statusLabel.getStyleClass().setAll("label", "status-label-success");
-                    statusLabel.setText(message.substring("REGISTER_SUCCESS:".length()));
+                    statusLabel.setText(frame.string(0));
                     // Optionally clear fields or navigate to login
-                } else if (message.startsWith("REGISTER_FAIL:")) {
+                } else {
                     statusLabel.getStyleClass().setAll("label", "status-label-error");
-                    statusLabel.setText(message.substring("REGISTER_FAIL:".length()));
+                    statusLabel.setText(frame.string(0));
                 }
             });
-        });
+        }, WireCodec.Op.REGISTER_SUCCESS, WireCodec.Op.REGISTER_FAIL);
+    }
+
+    public void cleanUp() {
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
     }
 
     @FXML
@@ -71,7 +81,7 @@ public class RegistrationController {
         statusLabel.getStyleClass().setAll("label"); // Reset to default label style
         statusLabel.setText("Attempting registration...");
         if (webSocketService != null && webSocketService.isConnected()) {
-            webSocketService.sendMessage("REGISTER:" + username + ":" + password + ":" + email);
+            webSocketService.sendFrame(WireCodec.Frame.of(WireCodec.Op.REGISTER, username, password, email)); // the password may contain ':'
         } else {
             statusLabel.setText("Not connected to server. Please try again later.");
         }
@@ -0,0 +1,396 @@
+package com.datingapp.common;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single-pass JSON writer and reader for the protocol's payloads (history pages, profiles, bios),
+ * shared by the server and the client.
+ * <p>
+ * The writer appends straight to one StringBuilder with full string escaping; timestamps are written as
+ * epoch milliseconds (or ISO strings for clients predating them, see {@link #toJsonArray(List, boolean)}). The reader walks the text once, pull-style ({@link Reader#nextName()},
+ * {@link Reader#nextString()}...), without regexes or intermediate substrings of whole objects.
+ * Only what the protocol needs is supported: objects, arrays, strings, numbers, booleans and null.
+ */
+public final class JsonCodec {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Thrown by the reader on input that is not valid JSON (or not of the expected shape). */
+    public static class MalformedJsonException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedJsonException(String message) {
+            super(message);
+        }
+    }
+
+    private JsonCodec() {}
+
+    /**
+     * Serializes rows as an array of objects, in each map's iteration order.
+     * Numbers and booleans are written as such, LocalDateTime as epoch millis, null as null, anything else as a string.
+     */
+    public static String toJsonArray(List<? extends Map<String, ?>> rows) {
+        return toJsonArray(rows, false);
+    }
+
+    /**
+     * Same, with LocalDateTime written as an ISO-8601 string ("2024-05-01T12:30:00") when {@code isoTimestamps}
+     * is set: the format of older clients, which only read string values.
+     */
+    public static String toJsonArray(List<? extends Map<String, ?>> rows, boolean isoTimestamps) {
+        Writer writer = new Writer(16 + rows.size() * 96);
+        writer.beginArray();
+        for (Map<String, ?> row : rows) {
+            writer.beginObject();
+            for (Map.Entry<String, ?> entry : row.entrySet()) {
+                Object value = entry.getValue();
+                if (isoTimestamps && value instanceof LocalDateTime) value = ((LocalDateTime) value).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+                writer.name(entry.getKey()).value(value);
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        return writer.toString();
+    }
+
+    /**
+     * Parses an array of flat objects; every value is returned as its text (numbers unchanged, null as null).
+     * Nested values are skipped.
+     */
+    public static List<Map<String, String>> parseObjectArray(String json) {
+        List<Map<String, String>> rows = new ArrayList<>();
+        Reader reader = new Reader(json);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Map<String, String> row = new HashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peekIsNested()) reader.skipValue();
+                else row.put(name, reader.nextValueAsText());
+            }
+            reader.endObject();
+            rows.add(row);
+        }
+        reader.endArray();
+        reader.endDocument();
+        return rows;
+    }
+
+    /**
+     * Reads one string member of a JSON object, e.g. "bio" from {"bio":"..."}.
+     *
+     * @return The value, or null if the object has no such member (or it is not a string).
+     */
+    public static String readStringMember(String json, String member) {
+        Reader reader = new Reader(json);
+        reader.beginObject();
+        String found = null;
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (found == null && name.equals(member) && reader.peek() == '"') found = reader.nextString();
+            else reader.skipValue();
+        }
+        reader.endObject();
+        reader.endDocument();
+        return found;
+    }
+
+    /** Single-member object, e.g. {"bio":"..."}. */
+    public static String objectOf(String name, String value) {
+        return new Writer(value.length() + name.length() + 8).beginObject().name(name).value(value).endObject().toString();
+    }
+
+    public static long toEpochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Appends JSON to a StringBuilder. Commas are inserted automatically; callers only pair begin/end calls.
+     */
+    public static final class Writer {
+        private final StringBuilder out;
+        private boolean needsComma = false;
+
+        public Writer(int initialCapacity) {
+            this.out = new StringBuilder(initialCapacity);
+        }
+
+        public Writer beginArray() {
+            separate();
+            out.append('[');
+            needsComma = false;
+            return this;
+        }
+
+        public Writer endArray() {
+            out.append(']');
+            needsComma = true;
+            return this;
+        }
+
+        public Writer beginObject() {
+            separate();
+            out.append('{');
+            needsComma = false;
+            return this;
+        }
+
+        public Writer endObject() {
+            out.append('}');
+            needsComma = true;
+            return this;
+        }
+
+        public Writer name(String name) {
+            separate();
+            writeString(name);
+            out.append(':');
+            needsComma = false;
+            return this;
+        }
+
+        public Writer value(String value) {
+            separate();
+            if (value == null) out.append("null");
+            else writeString(value);
+            needsComma = true;
+            return this;
+        }
+
+        public Writer value(long value) {
+            separate();
+            out.append(value);
+            needsComma = true;
+            return this;
+        }
+
+        public Writer value(Object value) {
+            if (value == null || value instanceof String) return value((String) value);
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                return value(((Number) value).longValue());
+            }
+            separate();
+            if (value instanceof Number || value instanceof Boolean) out.append(value);
+            else if (value instanceof LocalDateTime) out.append(toEpochMillis((LocalDateTime) value));
+            else writeString(value.toString());
+            needsComma = true;
+            return this;
+        }
+
+        private void separate() {
+            if (needsComma) out.append(',');
+        }
+
+        private void writeString(String s) {
+            out.append('"');
+            int runStart = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') continue;
+                out.append(s, runStart, i);
+                switch (c) {
+                    case '"': out.append("\\\""); break;
+                    case '\\': out.append("\\\\"); break;
+                    case '\n': out.append("\\n"); break;
+                    case '\r': out.append("\\r"); break;
+                    case '\t': out.append("\\t"); break;
+                    default:
+                        out.append("\\u").append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF])
+                                .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+                }
+                runStart = i + 1;
+            }
+            out.append(s, runStart, s.length()).append('"');
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+
+    /**
+     * Pull reader over a JSON text. Inside an object or array, loop on {@link #hasNext()};
+     * in an object, read {@link #nextName()} then exactly one value.
+     */
+    public static final class Reader {
+        private final String in;
+        private int pos = 0;
+        private boolean expectComma = false;
+
+        public Reader(String in) {
+            if (in == null) throw new MalformedJsonException("No JSON.");
+            this.in = in;
+        }
+
+        public void beginArray() {
+            expect('[');
+            expectComma = false;
+        }
+
+        public void endArray() {
+            expect(']');
+            expectComma = true;
+        }
+
+        public void beginObject() {
+            expect('{');
+            expectComma = false;
+        }
+
+        public void endObject() {
+            expect('}');
+            expectComma = true;
+        }
+
+        /** Whether the current array or object has another element (consumes the separating comma). */
+        public boolean hasNext() {
+            char c = peek();
+            if (c == ']' || c == '}') return false;
+            if (expectComma) {
+                if (c != ',') throw error("Expected ','");
+                pos++;
+                expectComma = false;
+            }
+            return true;
+        }
+
+        public String nextName() {
+            String name = nextString();
+            expect(':');
+            expectComma = false;
+            return name;
+        }
+
+        public String nextString() {
+            expect('"');
+            StringBuilder sb = null;
+            int runStart = pos;
+            while (true) {
+                if (pos >= in.length()) throw error("Unterminated string");
+                char c = in.charAt(pos);
+                if (c == '"') break;
+                if (c != '\\') {
+                    pos++;
+                    continue;
+                }
+                if (sb == null) sb = new StringBuilder(pos - runStart + 16);
+                sb.append(in, runStart, pos);
+                if (pos + 1 >= in.length()) throw error("Unterminated escape");
+                char e = in.charAt(pos + 1);
+                pos += 2;
+                switch (e) {
+                    case '"': sb.append('"'); break;
+                    case '\\': sb.append('\\'); break;
+                    case '/': sb.append('/'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > in.length()) throw error("Truncated \\u escape");
+                        try {
+                            sb.append((char) Integer.parseInt(in.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw error("Invalid \\u escape");
+                        }
+                        pos += 4;
+                        break;
+                    default: throw error("Invalid escape \\" + e);
+                }
+                runStart = pos;
+            }
+            String value = sb == null ? in.substring(runStart, pos) : sb.append(in, runStart, pos).toString();
+            pos++; // closing quote
+            expectComma = true;
+            return value;
+        }
+
+        public long nextLong() {
+            String literal = nextLiteral();
+            try {
+                return Long.parseLong(literal);
+            } catch (NumberFormatException e) {
+                throw error("Expected an integer, got " + literal);
+            }
+        }
+
+        /** A string, number, boolean or null value as text (null for JSON null). */
+        public String nextValueAsText() {
+            if (peek() == '"') return nextString();
+            String literal = nextLiteral();
+            return literal.equals("null") ? null : literal;
+        }
+
+        /** Skips one value of any kind, nested ones included. */
+        public void skipValue() {
+            char c = peek();
+            if (c == '"') {
+                nextString();
+            } else if (c == '{' || c == '[') {
+                boolean object = c == '{';
+                if (object) beginObject(); else beginArray();
+                while (hasNext()) {
+                    if (object) nextName();
+                    skipValue();
+                }
+                if (object) endObject(); else endArray();
+            } else {
+                nextLiteral();
+            }
+        }
+
+        boolean peekIsNested() {
+            char c = peek();
+            return c == '{' || c == '[';
+        }
+
+        /** The next significant character (after whitespace), without consuming it. */
+        public char peek() {
+            skipWhitespace();
+            if (pos >= in.length()) throw error("Unexpected end of input");
+            return in.charAt(pos);
+        }
+
+        /** Fails unless only whitespace is left. */
+        public void endDocument() {
+            skipWhitespace();
+            if (pos < in.length()) throw error("Trailing characters");
+        }
+
+        private String nextLiteral() {
+            skipWhitespace();
+            int start = pos;
+            while (pos < in.length()) {
+                char c = in.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || c == ':' || c == '"' || Character.isWhitespace(c)) break;
+                pos++;
+            }
+            if (start == pos) throw error("Expected a value");
+            expectComma = true;
+            return in.substring(start, pos);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) throw error("Expected '" + c + "'");
+            pos++;
+        }
+
+        private void skipWhitespace() {
+            while (pos < in.length() && Character.isWhitespace(in.charAt(pos))) pos++;
+        }
+
+        private MalformedJsonException error(String message) {
+            return new MalformedJsonException(message + " at offset " + pos + ".");
+        }
+    }
+}
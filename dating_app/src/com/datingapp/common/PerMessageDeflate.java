@@ -0,0 +1,282 @@
+package com.datingapp.common;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Extension;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.glassfish.tyrus.core.extension.ExtendedExtension;
+import org.glassfish.tyrus.core.frame.Frame;
+
+/**
+ * The permessage-deflate WebSocket extension (RFC 7692) for Tyrus, used by both the server and the client.
+ * <p>
+ * Only messages of at least {@code thresholdBytes} are compressed. Small chat frames go out as they are,
+ * which the extension allows per message, so they cost no CPU. A message that does not get smaller is
+ * also sent raw.
+ * <p>
+ * Both directions negotiate no_context_takeover, so every message is compressed on its own. Deflaters and
+ * Inflaters are then borrowed from small bounded pools for one message instead of keeping a 32 KB window per
+ * connection for its whole life; those that don't fit back in a pool are end()ed, as are the pooled ones on
+ * {@link #close()}.
+ * <p>
+ * An incoming message inflating past {@code maxMessageBytes} closes the connection with 1009 (message too big).
+ * Tyrus ignores exceptions thrown by an extension, so the offending frame is replaced by a close frame carrying
+ * that code, which Tyrus then handles as if the peer had sent it.
+ */
+public class PerMessageDeflate implements ExtendedExtension {
+
+    public static final String NAME = "permessage-deflate";
+
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final byte[] TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+    private static final byte OPCODE_TEXT = 0x01;
+    private static final byte OPCODE_BINARY = 0x02;
+    private static final byte OPCODE_CONTINUATION = 0x00;
+    private static final byte OPCODE_CLOSE = 0x08;
+
+    // Context property keys
+    private static final String INFLATER = "pmd.inflater";     // borrowed while a fragmented message is inflated
+    private static final String INFLATED = "pmd.inflated";     // bytes inflated so far for that message
+
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // Counters for all connections of this JVM
+    private static final LongAdder compressedMessages = new LongAdder();
+    private static final LongAdder rawBytes = new LongAdder();          // size before compression
+    private static final LongAdder compressedBytes = new LongAdder();   // size after compression
+    private static final LongAdder belowThreshold = new LongAdder();
+    private static final LongAdder incompressible = new LongAdder();
+    private static final LongAdder inflatedMessages = new LongAdder();
+    private static final LongAdder inflatedBytes = new LongAdder();
+
+    /** An incoming message inflated past maxMessageBytes. */
+    private static class MessageTooBigException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        MessageTooBigException(String message) {
+            super(message);
+        }
+    }
+
+    private final int thresholdBytes;
+    private final int level;
+    private final int maxMessageBytes;
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * @param thresholdBytes  Messages smaller than this are never compressed.
+     * @param level           Deflater level (1 = fastest, 9 = smallest).
+     * @param maxMessageBytes Largest incoming message once inflated.
+     */
+    public PerMessageDeflate(int thresholdBytes, int level, int maxMessageBytes) {
+        this.thresholdBytes = Math.max(0, thresholdBytes);
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.maxMessageBytes = Math.max(1, maxMessageBytes);
+    }
+
+    public int getThresholdBytes() {
+        return thresholdBytes;
+    }
+
+    /** Counters of every permessage-deflate connection in this JVM, for logs and stats. */
+    public static String summary() {
+        long raw = rawBytes.sum(), compressed = compressedBytes.sum();
+        return "compressed=" + compressedMessages.sum() + " rawBytes=" + raw + " compressedBytes=" + compressed
+                + " ratio=" + (raw == 0 ? "n/a" : String.format("%.2f", (double) compressed / raw))
+                + " belowThreshold=" + belowThreshold.sum() + " incompressible=" + incompressible.sum()
+                + " inflated=" + inflatedMessages.sum() + " inflatedBytes=" + inflatedBytes.sum();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /** The client's offer. */
+    @Override
+    public List<Parameter> getParameters() {
+        List<Parameter> parameters = new ArrayList<>();
+        parameters.add(parameter(CLIENT_NO_CONTEXT_TAKEOVER));
+        parameters.add(parameter(SERVER_NO_CONTEXT_TAKEOVER));
+        return parameters;
+    }
+
+    /** Server side: accept the offer, without context takeover in either direction. */
+    @Override
+    public List<Parameter> onExtensionNegotiation(ExtensionContext context, List<Parameter> requestedParameters) {
+        return getParameters();
+    }
+
+    /** Client side: nothing to record, the server's answer can only make us compress less. */
+    @Override
+    public void onHandshakeResponse(ExtensionContext context, List<Parameter> responseParameters) {
+    }
+
+    @Override
+    public Frame processOutgoing(ExtensionContext context, Frame frame) {
+        if (frame.isControlFrame() || !frame.isFin() || frame.isRsv1()) return frame; // fragmented messages are sent raw
+        if (frame.getOpcode() != OPCODE_TEXT && frame.getOpcode() != OPCODE_BINARY) return frame;
+        byte[] payload = frame.getPayloadData();
+        if (payload.length < thresholdBytes) {
+            belowThreshold.increment();
+            return frame;
+        }
+        byte[] compressed = deflate(payload);
+        if (compressed.length >= payload.length) {
+            incompressible.increment();
+            return frame;
+        }
+        compressedMessages.increment();
+        rawBytes.add(payload.length);
+        compressedBytes.add(compressed.length);
+        return Frame.builder(frame).rsv1(true).payloadData(compressed).payloadLength(compressed.length).build();
+    }
+
+    @Override
+    public Frame processIncoming(ExtensionContext context, Frame frame) {
+        if (frame.isControlFrame()) return frame;
+        boolean continuing = context.getProperties().get(INFLATER) != null;
+        boolean starts = frame.isRsv1() && (frame.getOpcode() == OPCODE_TEXT || frame.getOpcode() == OPCODE_BINARY);
+        if (!starts && !(continuing && frame.getOpcode() == OPCODE_CONTINUATION)) return frame;
+
+        // No context takeover: each message is a fresh stream, inflated by an Inflater borrowed until its last frame
+        Inflater inflater = (Inflater) context.getProperties().remove(INFLATER);
+        if (starts && inflater != null) { release(inflater); inflater = null; } // leftover of an unfinished message
+        long soFar = inflater == null ? 0 : (Long) context.getProperties().get(INFLATED);
+        if (inflater == null) inflater = borrowInflater();
+        byte[] inflated;
+        try {
+            inflated = inflate(inflater, frame.getPayloadData(), frame.isFin(), maxMessageBytes - soFar);
+        } catch (MessageTooBigException e) {
+            release(inflater);
+            return closeFrame(frame, CloseReason.CloseCodes.TOO_BIG, e.getMessage());
+        } catch (RuntimeException e) {
+            release(inflater);
+            throw e;
+        }
+        if (frame.isFin()) {
+            release(inflater);
+            inflatedMessages.increment();
+        } else {
+            context.getProperties().put(INFLATER, inflater);
+            context.getProperties().put(INFLATED, soFar + inflated.length);
+        }
+        inflatedBytes.add(inflated.length);
+        return Frame.builder(frame).rsv1(false).payloadData(inflated).payloadLength(inflated.length).build();
+    }
+
+    // The frame turned into a close frame: code (2 bytes, big-endian) followed by the UTF-8 reason
+    private static Frame closeFrame(Frame frame, CloseReason.CloseCode code, String reason) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[2 + text.length];
+        payload[0] = (byte) (code.getCode() >> 8);
+        payload[1] = (byte) code.getCode();
+        System.arraycopy(text, 0, payload, 2, text.length);
+        return Frame.builder(frame).opcode(OPCODE_CLOSE).fin(true).rsv1(false).payloadData(payload).payloadLength(payload.length).build();
+    }
+
+    @Override
+    public void destroy(ExtensionContext context) {
+        Inflater inflater = (Inflater) context.getProperties().remove(INFLATER);
+        if (inflater != null) release(inflater);
+    }
+
+    /**
+     * Ends the pooled Deflaters and Inflaters. The extension remains usable and creates new ones as needed.
+     */
+    public void close() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) deflater.end();
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) inflater.end();
+    }
+
+    private Inflater borrowInflater() {
+        Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    private void release(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) inflater.end();
+    }
+
+    private byte[] deflate(byte[] payload) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(level, true);
+        try {
+            return deflate(deflater, payload);
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) deflater.end();
+        }
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] payload) {
+        deflater.setInput(payload);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, payload.length / 2));
+        byte[] buffer = new byte[Math.min(8192, payload.length + 64)];
+        int n;
+        // SYNC_FLUSH ends the message on a byte boundary with 00 00 FF FF, which the extension strips.
+        while ((n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH)) > 0) {
+            out.write(buffer, 0, n);
+            if (n < buffer.length) break;
+        }
+        byte[] compressed = out.toByteArray();
+        int length = compressed.length;
+        if (length >= 4 && compressed[length - 4] == 0 && compressed[length - 3] == 0
+                && compressed[length - 2] == (byte) 0xFF && compressed[length - 1] == (byte) 0xFF) {
+            length -= 4;
+        }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(compressed, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] payload, boolean last, long maxBytes) {
+        if (last) {
+            byte[] withTail = new byte[payload.length + TAIL.length];
+            System.arraycopy(payload, 0, withTail, 0, payload.length);
+            System.arraycopy(TAIL, 0, withTail, payload.length, TAIL.length);
+            payload = withTail;
+        }
+        inflater.setInput(payload);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(maxBytes, payload.length * 4L));
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.needsInput()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.finished() || inflater.needsDictionary())) break;
+                if (out.size() + n > maxBytes) throw new MessageTooBigException("Inflated message larger than the limit");
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Invalid permessage-deflate payload: " + e.getMessage(), e);
+        }
+        return out.toByteArray();
+    }
+
+    private static Parameter parameter(String name) {
+        return new Parameter() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public String getValue() {
+                return null;
+            }
+        };
+    }
+}
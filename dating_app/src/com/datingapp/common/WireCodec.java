@@ -0,0 +1,395 @@
+package com.datingapp.common;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary encoding of the chat protocol, shared by the server and the client.
+ * <p>
+ * A binary WebSocket frame is: the opcode as a varint, then the opcode's fields in order, each either
+ * a UTF-8 string prefixed with its byte length (varint) or a number as a zigzag varint. The field layout
+ * of every opcode is fixed by {@link Op}, so fields are never split on ':' and may contain any character.
+ * Opcode 0 ({@link Op#RAW}) carries a complete text-protocol message, for anything without a layout.
+ * <p>
+ * The text protocol stays the default: a client opts in with PROTO:bin1 and the server answers PROTO_OK:bin1
+ * before its first binary frame. {@link Frame#toText()} and {@link #fromText(String, boolean)} convert between the two,
+ * so either side can keep handling messages as text.
+ * <p>
+ * Any message may carry a correlation id: "CORR:id:message" in text, or the reserved opcode 63 followed by
+ * the id (varint) and the message's own opcode in binary. The server tags every reply to a correlated
+ * command with the command's id, so a client can keep several requests in flight and match each answer.
+ */
+public final class WireCodec {
+
+    /** Version announced with PROTO; bump it whenever an opcode's layout changes. */
+    public static final String PROTOCOL_VERSION = "bin1";
+
+    /**
+     * Opcodes and their field layout: 'S' = string, 'L' = number. The codes are part of the wire format.
+     */
+    public enum Op {
+        RAW(0, "S"),
+        // Client -> server
+        CHAT(1, "S"),
+        LOGIN(2, "SS"),
+        REGISTER(3, "SSS"),
+        RESUME(4, "SL"),
+        PROTO(5, "S"),
+        MEETING_CODE(6, "S"),
+        DM_SEND(7, "SS"),
+        REQ_DM_HIST(8, "S"),
+        REQ_MEETING_HIST(9, "S"),
+        REQ_DM_HIST_PAGE(10, "LLS"),
+        REQ_MEETING_HIST_PAGE(11, "LLS"),
+        UPDATE_AVATAR_URL(12, "S"),
+        UPDATE_PROFILE(13, "S"),
+        REQ_PROFILES(14, "S"),
+        BATCH(15, "S"),
+        // Server -> client
+        PROTO_OK(32, "S"),
+        MSG(33, "SS"),
+        MSG_SEQ(34, "LSS"),
+        DM_RECEIVE(35, "SS"),
+        DM_RECEIVE_SEQ(36, "LSS"),
+        DM_SENT_CONFIRM(37, "SS"),
+        USER_JOINED(38, "SL"),
+        USER_LEFT(39, "S"),
+        USER_PROFILE_UPDATE(40, "SL"),
+        LOGIN_SUCCESS(41, "SSS"),
+        LOGIN_FAIL(42, "S"),
+        REGISTER_SUCCESS(43, "S"),
+        REGISTER_FAIL(44, "S"),
+        RESUME_TOKEN(45, "SL"),
+        RESUMED(46, "SS"),
+        RESUME_DONE(47, "S"),
+        RESUME_FAIL(48, "S"),
+        MEETING_CODE_STATUS(49, "S"),
+        SYSTEM_MSG(50, "S"),
+        ERROR(51, "S"),
+        RESP_DM_HIST(52, "SS"),
+        RESP_MEETING_HIST(53, "SS"),
+        RESP_DM_HIST_PAGE(54, "LSS"),
+        RESP_MEETING_HIST_PAGE(55, "LSS"),
+        RESP_PROFILES(56, "S"),
+        AVATAR_UPDATE_SUCCESS(57, "S"),
+        AVATAR_UPDATE_FAIL(58, "S"),
+        PROFILE_UPDATE_SUCCESS(59, "S"),
+        PROFILE_UPDATE_FAIL(60, "S");
+
+        private final int code;
+        private final String layout;
+
+        Op(int code, String layout) {
+            this.code = code;
+            this.layout = layout;
+        }
+
+        public int code() {
+            return code;
+        }
+
+        public int fieldCount() {
+            return layout.length();
+        }
+
+        boolean isNumber(int field) {
+            return layout.charAt(field) == 'L';
+        }
+
+        /** True for the replies that report a failed command (ERROR and the *_FAIL answers). */
+        public boolean isFailure() {
+            switch (this) {
+                case ERROR: case LOGIN_FAIL: case REGISTER_FAIL: case RESUME_FAIL:
+                case AVATAR_UPDATE_FAIL: case PROFILE_UPDATE_FAIL:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /** Text prefix of a correlated message: CORR:id:message. */
+    public static final String CORRELATION_PREFIX = "CORR:";
+    // Binary marker of a correlated message, never used by an Op
+    private static final int CORRELATED = 63;
+
+    private static final Op[] BY_CODE = new Op[CORRELATED];
+    private static final Map<String, Op> BY_NAME = new HashMap<>();
+
+    static {
+        for (Op op : Op.values()) {
+            BY_CODE[op.code] = op;
+            // RAW and CHAT have no text opcode: a text frame without a known opcode is plain chat
+            if (op != Op.RAW && op != Op.CHAT) BY_NAME.put(op.name(), op);
+        }
+    }
+
+    /** Thrown when a binary frame cannot be decoded. */
+    public static class MalformedFrameException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedFrameException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * One decoded message: an opcode and its fields (String or Long, as given by the layout),
+     * plus its correlation id (0 = none).
+     */
+    public static final class Frame {
+        private final Op op;
+        private final Object[] fields;
+        private final long correlationId;
+
+        private Frame(Op op, Object[] fields) {
+            this(op, fields, 0);
+        }
+
+        private Frame(Op op, Object[] fields, long correlationId) {
+            this.op = op;
+            this.fields = fields;
+            this.correlationId = correlationId;
+        }
+
+        /**
+         * Builds a frame; numbers are given as any {@link Number}, strings as any object (String.valueOf, null = "").
+         */
+        public static Frame of(Op op, Object... values) {
+            if (values.length != op.fieldCount()) {
+                throw new IllegalArgumentException(op + " takes " + op.fieldCount() + " field(s), got " + values.length);
+            }
+            Object[] fields = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                Object v = values[i];
+                if (op.isNumber(i)) {
+                    fields[i] = ((Number) v).longValue();
+                } else {
+                    fields[i] = v == null ? "" : String.valueOf(v);
+                }
+            }
+            return new Frame(op, fields);
+        }
+
+        public Op op() {
+            return op;
+        }
+
+        public int fieldCount() {
+            return fields.length;
+        }
+
+        public String string(int field) {
+            return String.valueOf(fields[field]);
+        }
+
+        public long number(int field) {
+            return (Long) fields[field];
+        }
+
+        public long correlationId() {
+            return correlationId;
+        }
+
+        /** The same message with another correlation id (0 removes it); the fields are shared. */
+        public Frame withCorrelation(long id) {
+            return id == correlationId ? this : new Frame(op, fields, id);
+        }
+
+        /**
+         * The equivalent text-protocol message ("OPCODE:field:field"; the content alone for CHAT and RAW),
+         * prefixed with "CORR:id:" if correlated.
+         */
+        public String toText() {
+            String prefix = correlationId == 0 ? "" : CORRELATION_PREFIX + correlationId + ":";
+            if (op == Op.RAW || op == Op.CHAT) return prefix + fields[0];
+            StringBuilder sb = new StringBuilder(prefix).append(op.name());
+            for (Object field : fields) sb.append(':').append(field);
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return (correlationId == 0 ? "" : "#" + correlationId + " ") + op + Arrays.toString(fields);
+        }
+    }
+
+    private WireCodec() {}
+
+    /**
+     * Parses a text-protocol message with the same rules as the text handlers (split on ':', the last field
+     * keeps the remaining colons). Messages without a known opcode become CHAT when {@code clientToServer},
+     * otherwise RAW; so do messages that do not fit their opcode's layout. A "CORR:id:" prefix becomes the
+     * frame's correlation id.
+     */
+    public static Frame fromText(String text, boolean clientToServer) {
+        long correlationId = correlationOf(text);
+        if (correlationId != 0) return fromText(withoutCorrelation(text), clientToServer).withCorrelation(correlationId);
+        Op op = opOf(text);
+        if (op == null) return new Frame(clientToServer ? Op.CHAT : Op.RAW, new Object[]{text});
+        Object[] fields = new Object[op.fieldCount()];
+        int start = op.name().length() + 1;
+        for (int i = 0; i < fields.length; i++) {
+            int end = i == fields.length - 1 ? text.length() : text.indexOf(':', start);
+            if (end < 0) return new Frame(Op.RAW, new Object[]{text});
+            String value = text.substring(start, end);
+            if (op.isNumber(i)) {
+                try {
+                    fields[i] = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    return new Frame(Op.RAW, new Object[]{text});
+                }
+            } else {
+                fields[i] = value;
+            }
+            start = end + 1;
+        }
+        return new Frame(op, fields);
+    }
+
+    /** The opcode of a text-protocol message (its text before the first ':'), null if there is no known one. */
+    public static Op opOf(String text) {
+        int colon = text.indexOf(':');
+        return colon > 0 ? BY_NAME.get(text.substring(0, colon)) : null;
+    }
+
+    /**
+     * The id of a "CORR:id:message" text, 0 if the text is not correlated (or the id is not a positive number).
+     */
+    public static long correlationOf(String text) {
+        if (!text.startsWith(CORRELATION_PREFIX)) return 0;
+        int end = text.indexOf(':', CORRELATION_PREFIX.length());
+        if (end < 0) return 0;
+        try {
+            long id = Long.parseLong(text.substring(CORRELATION_PREFIX.length(), end));
+            return Math.max(id, 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** The message inside a "CORR:id:message" text; only valid if {@link #correlationOf(String)} is not 0. */
+    public static String withoutCorrelation(String text) {
+        return text.substring(text.indexOf(':', CORRELATION_PREFIX.length()) + 1);
+    }
+
+    /**
+     * Encodes a frame into a new heap buffer, positioned at 0 and limited to the encoded length.
+     */
+    public static ByteBuffer encode(Frame frame) {
+        Object[] fields = frame.fields;
+        // Strings are converted once; the buffer is then allocated at its exact size.
+        byte[][] utf8 = new byte[fields.length][];
+        int size = varintSize(frame.op.code);
+        if (frame.correlationId != 0) size += varintSize(CORRELATED) + varintSize(frame.correlationId);
+        for (int i = 0; i < fields.length; i++) {
+            if (frame.op.isNumber(i)) {
+                size += varintSize(zigzag((Long) fields[i]));
+            } else {
+                utf8[i] = ((String) fields[i]).getBytes(StandardCharsets.UTF_8);
+                size += varintSize(utf8[i].length) + utf8[i].length;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        if (frame.correlationId != 0) {
+            writeVarint(buffer, CORRELATED);
+            writeVarint(buffer, frame.correlationId);
+        }
+        writeVarint(buffer, frame.op.code);
+        for (int i = 0; i < fields.length; i++) {
+            if (utf8[i] == null) {
+                writeVarint(buffer, zigzag((Long) fields[i]));
+            } else {
+                writeVarint(buffer, utf8[i].length);
+                buffer.put(utf8[i]);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes one frame from the buffer's remaining bytes, which must hold exactly one frame.
+     *
+     * @throws MalformedFrameException on an unknown opcode, a truncated field or trailing bytes.
+     */
+    public static Frame decode(ByteBuffer buffer) {
+        try {
+            long code = readVarint(buffer);
+            long correlationId = 0;
+            if (code == CORRELATED) {
+                correlationId = readVarint(buffer);
+                code = readVarint(buffer);
+            }
+            Op op = code >= 0 && code < BY_CODE.length ? BY_CODE[(int) code] : null;
+            if (op == null) throw new MalformedFrameException("Unknown opcode " + code + ".");
+            Object[] fields = new Object[op.fieldCount()];
+            for (int i = 0; i < fields.length; i++) {
+                if (op.isNumber(i)) {
+                    fields[i] = unzigzag(readVarint(buffer));
+                } else {
+                    long length = readVarint(buffer);
+                    if (length < 0) throw new MalformedFrameException("Field " + i + " of " + op + " has a negative length.");
+                    if (length > buffer.remaining()) throw new MalformedFrameException("Field " + i + " of " + op + " is truncated.");
+                    fields[i] = readUtf8(buffer, (int) length);
+                }
+            }
+            if (buffer.hasRemaining()) throw new MalformedFrameException(buffer.remaining() + " trailing byte(s) after " + op + ".");
+            return new Frame(op, fields, correlationId);
+        } catch (BufferUnderflowException e) {
+            throw new MalformedFrameException("Frame is truncated.");
+        }
+    }
+
+    private static String readUtf8(ByteBuffer buffer, int length) {
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static void writeVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new MalformedFrameException("Varint is too long.");
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
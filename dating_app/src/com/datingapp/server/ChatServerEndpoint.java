@@ -1,5 +1,10 @@
 package com.datingapp.server;
 
+import com.datingapp.MainServer;
+import com.datingapp.common.JsonCodec;
+import com.datingapp.common.WireCodec;
+import com.datingapp.common.WireCodec.Op;
+import com.datingapp.server.CommandRegistry.Scope;
 // ... (all existing imports from previous versions)
 import jakarta.websocket.OnClose;
 import jakarta.websocket.OnError;
@@ -8,125 +13,315 @@ import jakarta.websocket.OnOpen;
 import jakarta.websocket.Session;
 import jakarta.websocket.server.PathParam;
 import jakarta.websocket.server.ServerEndpoint;
+import org.glassfish.tyrus.core.TyrusSession;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher; // For simple JSON parsing
-import java.util.regex.Pattern; // For simple JSON parsing
-import java.util.stream.Collectors;
 
 
-@ServerEndpoint(value = "/chat/{clientUsername}")
+@ServerEndpoint(value = "/chat/{clientUsername}", configurator = DeflateConfigurator.class)
 public class ChatServerEndpoint {
 
-    // ... (static fields: activeSessions, userSessions, sessionMeetingCodes, sessionUsernames, userAvatarUrls, MESSAGE_HISTORY_LIMIT - assumed present)
+    // ... (static fields: activeSessions, userSessions, sessionUsernames, userAvatarUrls, MESSAGE_HISTORY_LIMIT - assumed present)
     private static Set<Session> activeSessions = Collections.synchronizedSet(new HashSet<>());
     private static Map<String, Session> userSessions = new ConcurrentHashMap<>();
-    private static Map<Session, String> sessionMeetingCodes = new ConcurrentHashMap<>();
+    private static final RoomRegistry rooms = new RoomRegistry(); // meeting code -> member sessions
     private static Map<Session, String> sessionUsernames = new ConcurrentHashMap<>();
-    private static Map<String, String> userAvatarUrls = new ConcurrentHashMap<>(); 
-    private static Map<String, String> userBios = new ConcurrentHashMap<>(); // Cache for user bios
+    // Avatars and bios live in ProfileCache (versioned, kept across disconnects)
 
     private static final int MESSAGE_HISTORY_LIMIT = 50;
-    // Updated pattern to be more robust for simple cases, but still basic.
-    // Looks for "bio":" possibly_escaped_value "
-    private static final Pattern JSON_BIO_PATTERN = Pattern.compile("\"bio\"\\s*:\\s*\"((?:\\\\\"|[^\"])*)\"");
+    private static final int MAX_HISTORY_PAGE_SIZE = 200;
+    private static final int MAX_PROFILES_PER_REQUEST = 100;
+    private static final int MAX_USERNAME_LENGTH = 50; // users.username VARCHAR(50)
+    // Missed messages replayed by RESUME; beyond this the client reloads history by paging instead
+    private static final int RESUME_MAX_REPLAY = MainServer.getIntProperty("session.resume.maxReplay", 200);
+    // Whether PROTO:bin1 is accepted; otherwise clients stay on the text protocol
+    private static final boolean BINARY_PROTOCOL = Boolean.parseBoolean(MainServer.getProperty("wire.binary.enabled", "true"));
+    // Set on sessions that sent PROTO (any version) or RESUME: only those clients understand the sequenced
+    // MSG_SEQ / DM_RECEIVE_SEQ forms and the versioned presence events. Older clients keep receiving plain
+    // MSG / DM_RECEIVE and the avatar-carrying USER_JOINED / USER_PROFILE_UPDATE.
+    private static final String NEGOTIATED_KEY = "protocolNegotiated";
+    // Set once the session's first frame has been dispatched (PROTO is only a command as the first frame)
+    private static final String FIRST_FRAME_SEEN_KEY = "firstFrameSeen";
+    // Most commands one BATCH frame may carry
+    private static final int MAX_BATCH_COMMANDS = MainServer.getIntProperty("protocol.batch.maxCommands", 32);
+
+    // Opcode -> handler table; each entry keeps its own latency histogram and error counter.
+    private static final CommandRegistry<ChatServerEndpoint> commands = new CommandRegistry<ChatServerEndpoint>()
+            .register("REGISTER", false, (ep, c, s, u) -> ep.handleRegistration(c, s))
+            .register("LOGIN", false, (ep, c, s, u) -> ep.handleLogin(c, s))
+            // Opcodes newer than the legacy clients: text such a client sends with them is chat, as it always was
+            .register("PROTO", Scope.FIRST_FRAME, false, (ep, c, s, u) -> ep.handleProtocol(c, s))
+            .register("RESUME", Scope.NEGOTIATED, false, (ep, c, s, u) -> ep.handleResume(c, s))
+            .register("BATCH", Scope.NEGOTIATED, false, (ep, c, s, u) -> ep.handleBatch(c, s))
+            .register("MEETING_CODE", true, ChatServerEndpoint::handleMeetingCode)
+            .register("DM_SEND", true, ChatServerEndpoint::handleDirectMessage)
+            .register("REQ_DM_HIST", true, ChatServerEndpoint::handleRequestDmHistory)
+            .register("REQ_MEETING_HIST", true, ChatServerEndpoint::handleRequestMeetingHistory)
+            .register("REQ_DM_HIST_PAGE", Scope.NEGOTIATED, true, ChatServerEndpoint::handleRequestDmHistoryPage)
+            .register("REQ_MEETING_HIST_PAGE", Scope.NEGOTIATED, true, ChatServerEndpoint::handleRequestMeetingHistoryPage)
+            .register("UPDATE_AVATAR_URL", true, ChatServerEndpoint::handleUpdateAvatarUrl)
+            .register("UPDATE_PROFILE", true, ChatServerEndpoint::handleUpdateProfile)
+            .register("REQ_PROFILES", Scope.NEGOTIATED, true, ChatServerEndpoint::handleRequestProfiles)
+            .fallback("MSG", true, (ep, c, s, u) -> ep.handleChatMessage(c.raw(), s, u));
 
 
     @OnOpen
     public void onOpen(Session session, @PathParam("clientUsername") String clientUsername) { 
-        activeSessions.add(session); System.out.println("New connection: " + session.getId());
+        activeSessions.add(session); SessionOutbox.of(session); System.out.println("New connection: " + session.getId());
+        // Same limit as permessage-deflate applies once inflated: larger messages close the session with 1009
+        session.setMaxTextMessageBufferSize(DeflateConfigurator.MAX_MESSAGE_BYTES);
+        session.setMaxBinaryMessageBufferSize(DeflateConfigurator.MAX_MESSAGE_BYTES);
     }
 
     @OnMessage
     public void onMessage(String message, Session session) {
-        System.out.println("Raw message from " + session.getId() + " ("+ sessionUsernames.get(session) +"): " + message);
+        // The I/O thread only enqueues; handlers (BCrypt, JDBC) run on the command executor, in order per session.
+        CommandExecutor.submitFromClient(session, () -> dispatch(message, session));
+    }
+
+    // Binary frames (WireCodec), from clients that negotiated PROTO:bin1. Decoded here, dispatched like text.
+    @OnMessage
+    public void onBinaryMessage(ByteBuffer message, Session session) {
+        WireCodec.Frame frame;
+        try {
+            frame = WireCodec.decode(message);
+        } catch (WireCodec.MalformedFrameException e) {
+            System.err.println("Malformed binary frame on session " + session.getId() + ": " + e.getMessage());
+            sendMessage(session, "ERROR:Malformed frame.");
+            return;
+        }
+        CommandExecutor.submitFromClient(session, () -> dispatch(frame, session));
+    }
+
+    // PROTO:bin1 -> PROTO_OK:bin1, after which this session's frames are sent binary. Anything else: PROTO_OK:text.
+    // Either way the client is a current one, which opts it in to the sequenced message forms.
+    private void handleProtocol(CommandRegistry.Command message, Session session) {
+        String[] parts = message.parts(2);
+        session.getUserProperties().put(NEGOTIATED_KEY, Boolean.TRUE);
+        if (BINARY_PROTOCOL && parts.length == 2 && WireCodec.PROTOCOL_VERSION.equals(parts[1])) {
+            sendMessage(session, "PROTO_OK:" + WireCodec.PROTOCOL_VERSION); // still text: the client switches on reading it
+            SessionOutbox.of(session).useBinary();
+        } else sendMessage(session, "PROTO_OK:text");
+    }
+
+    // CORR:id:command runs the command in a correlation scope: its replies to this session come back as CORR:id:reply.
+    // CORR: is only understood on negotiated sessions; from a legacy client the text is chat like any other.
+    private void dispatch(String message, Session session) {
+        boolean firstFrame = session.getUserProperties().putIfAbsent(FIRST_FRAME_SEEN_KEY, Boolean.TRUE) == null;
+        boolean negotiated = negotiated(session);
+        long correlationId = negotiated ? WireCodec.correlationOf(message) : 0;
+        if (correlationId != 0) {
+            String command = WireCodec.withoutCorrelation(message);
+            Correlation.run(new Correlation(session, correlationId), () -> dispatch(command, session));
+            return;
+        }
         String currentUsername = sessionUsernames.get(session);
+        if (!commands.dispatch(this, message, session, currentUsername, negotiated, firstFrame)) {
+            sendMessage(session, "ERROR:Authentication required.");
+        }
+    }
+    private void dispatch(WireCodec.Frame frame, Session session) {
+        session.getUserProperties().putIfAbsent(FIRST_FRAME_SEEN_KEY, Boolean.TRUE);
+        Correlation scope = frame.correlationId() == 0 ? null : new Correlation(session, frame.correlationId());
+        Correlation.run(scope, () -> {
+            if (!commands.dispatch(this, frame, session, sessionUsernames.get(session))) {
+                sendMessage(session, "ERROR:Authentication required.");
+            }
+        });
+    }
 
-        if (message.startsWith("REGISTER:")) { handleRegistration(message, session); }
-        else if (message.startsWith("LOGIN:")) { handleLogin(message, session); }
-        else if (currentUsername == null) { sendMessage(session, "ERROR:Authentication required."); return; }
-        else if (message.startsWith("MEETING_CODE:")) { handleMeetingCode(message, session, currentUsername); }
-        else if (message.startsWith("DM_SEND:")) { handleDirectMessage(message, session, currentUsername); }
-        else if (message.startsWith("REQ_DM_HIST:")) { handleRequestDmHistory(message, session, currentUsername); }
-        else if (message.startsWith("REQ_MEETING_HIST:")) { handleRequestMeetingHistory(message, session, currentUsername); }
-        else if (message.startsWith("UPDATE_AVATAR_URL:")) { handleUpdateAvatarUrl(message, session, currentUsername); }
-        else if (message.startsWith("UPDATE_PROFILE:")) { handleUpdateProfile(message, session, currentUsername); } // New handler
-        else { handleChatMessage(message, session, currentUsername); }
+    // BATCH:["cmd","CORR:7:cmd",...] - the commands run in order, one after the other, before anything the client sent
+    // after the batch; each is checked and answered (and correlated) as if it had come in its own frame.
+    private void handleBatch(CommandRegistry.Command message, Session session) {
+        List<String> batch = new ArrayList<>();
+        try {
+            JsonCodec.Reader reader = new JsonCodec.Reader(message.parts(2)[1]);
+            reader.beginArray();
+            while (reader.hasNext()) batch.add(reader.nextString());
+            reader.endArray();
+            reader.endDocument();
+        } catch (RuntimeException e) { sendMessage(session, "ERROR:Invalid batch."); return; }
+        if (batch.size() > MAX_BATCH_COMMANDS) { sendMessage(session, "ERROR:Batch too large (max " + MAX_BATCH_COMMANDS + ")."); return; }
+        // A batch inside a batch would multiply the limit above (and run outside its ordering guarantee)
+        for (String command : batch) {
+            String inner = command;
+            while (WireCodec.correlationOf(inner) != 0) inner = WireCodec.withoutCorrelation(inner); // dispatch unwraps CORR: recursively
+            if (inner.equals("BATCH") || inner.startsWith("BATCH:")) { sendMessage(session, "ERROR:Nested batches are not allowed."); return; }
+        }
+        List<Runnable> steps = new ArrayList<>(batch.size());
+        for (String command : batch) steps.add(() -> dispatch(command, session));
+        CommandExecutor.runNext(session, steps);
     }
 
-    private void handleLogin(String message, Session session) {
-        String[] parts = message.split(":", 3);
+    private void handleLogin(CommandRegistry.Command message, Session session) {
+        String[] parts = message.parts(3);
         if (parts.length == 3) {
             String username = parts[1];
             String password = parts[2];
+            String ip = remoteAddress(session);
+            // Throttle before touching the DB or hashing anything
+            if (!LoginThrottle.allow(username, ip)) { sendMessage(session, "LOGIN_FAIL:Too many failed attempts, try again later."); return; }
             // Fetch avatar_url and bio
-            String sql = "SELECT id, password_hash, avatar_url, bio FROM users WHERE username = ?";
+            String sql = "SELECT id, password_hash, avatar_url, bio, profile_version FROM users WHERE username = ?";
+            int userId; String storedPasswordHash; String avatarUrl; String bio; int profileVersion;
             try (Connection conn = DatabaseUtil.getConnection();
                  PreparedStatement pstmt = conn.prepareStatement(sql)) {
                 pstmt.setString(1, username);
                 ResultSet rs = pstmt.executeQuery();
-                if (rs.next()) {
-                    String storedPasswordHash = rs.getString("password_hash");
-                    int userId = rs.getInt("id");
-                    String avatarUrl = rs.getString("avatar_url");
-                    String bio = rs.getString("bio");
-
-                    if (avatarUrl == null) avatarUrl = "";
-                    if (bio == null) bio = "";
-
-                    if (PasswordUtil.checkPassword(password, storedPasswordHash)) {
-                        // ... (handle old session as before) ...
-                        Session oldSession = userSessions.get(username);
-                        if (oldSession != null && oldSession.isOpen()) { sendMessage(oldSession, "SYSTEM_MSG:Logged in from another location."); try { oldSession.close(); } catch (IOException e) { e.printStackTrace(); } }
-                        
-                        userSessions.put(username, session);
-                        sessionUsernames.put(session, username);
-                        session.getUserProperties().put("userId", userId);
-                        userAvatarUrls.put(username, avatarUrl);
-                        userBios.put(username, bio); // Cache bio
-
-                        // LOGIN_SUCCESS:Welcome username:avatar_url_or_empty:bio_or_empty
-                        sendMessage(session, "LOGIN_SUCCESS:Welcome " + username + ":" + avatarUrl + ":" + bio);
-                        System.out.println("User " + username + " (ID: " + userId + ", Avatar: " + avatarUrl + ", Bio: " + bio.substring(0, Math.min(bio.length(), 20)) + "...) logged in.");
-                        
-                        String meetingCode = sessionMeetingCodes.getOrDefault(session, "public");
-                        sessionMeetingCodes.put(session, meetingCode);
-                        broadcastUserStatus(username, meetingCode, true, session, false); 
-                    } else sendMessage(session, "LOGIN_FAIL:Invalid credentials.");
-                } else sendMessage(session, "LOGIN_FAIL:User not found.");
-            } catch (SQLException e) { sendMessage(session, "LOGIN_FAIL:DB Error: " + e.getMessage()); e.printStackTrace(); }
+                if (!rs.next()) { LoginThrottle.recordUnknownUser(ip); sendMessage(session, "LOGIN_FAIL:User not found."); return; }
+                storedPasswordHash = rs.getString("password_hash");
+                userId = rs.getInt("id");
+                avatarUrl = rs.getString("avatar_url");
+                bio = rs.getString("bio");
+                profileVersion = rs.getInt("profile_version");
+            } catch (SQLException e) { sendMessage(session, "LOGIN_FAIL:DB Error: " + e.getMessage()); e.printStackTrace(); return; }
+
+            if (avatarUrl == null) avatarUrl = "";
+            if (bio == null) bio = "";
+            String finalAvatarUrl = avatarUrl, finalBio = bio;
+
+            // BCrypt runs on the hashing pool; this session's next commands wait for the result without holding a thread.
+            CommandExecutor.continueAfter(PasswordUtil.checkPasswordAsync(password, storedPasswordHash), (matches, error) -> {
+                if (error != null) {
+                    if (PasswordUtil.isBusy(error)) sendMessage(session, "LOGIN_FAIL:busy");
+                    else { sendMessage(session, "LOGIN_FAIL:Server error."); error.printStackTrace(); }
+                } else if (!matches) {
+                    LoginThrottle.recordFailure(username, ip);
+                    sendMessage(session, "LOGIN_FAIL:Invalid credentials.");
+                } else {
+                    LoginThrottle.recordSuccess(username, ip);
+                    if (PasswordUtil.needsRehash(storedPasswordHash)) rehashPassword(session, userId, password);
+                    completeLogin(session, username, userId, finalAvatarUrl, finalBio, profileVersion);
+                }
+            });
         } else sendMessage(session, "LOGIN_FAIL:Invalid format.");
     }
+
+    private void completeLogin(Session session, String username, int userId, String avatarUrl, String bio, int profileVersion) {
+        if (!session.isOpen()) return;
+        // ... (handle old session as before) ...
+        Session oldSession = userSessions.get(username);
+        if (oldSession != null && oldSession.isOpen()) { sendMessage(oldSession, "SYSTEM_MSG:Logged in from another location."); SessionOutbox.of(oldSession).closeWhenDrained(); }
+        
+        userSessions.put(username, session);
+        sessionUsernames.put(session, username);
+        session.getUserProperties().put("userId", userId);
+        UserDirectory.put(username, userId);
+        ProfileCache.put(username, profileVersion, avatarUrl, bio);
+
+        // LOGIN_SUCCESS:Welcome username:avatar_url_or_empty:bio_or_empty
+        sendFrame(session, WireCodec.Frame.of(Op.LOGIN_SUCCESS, "Welcome " + username, avatarUrl, bio));
+        // RESUME_TOKEN:token:seq lets the client reconnect with RESUME (no password check) and replay what it missed after seq
+        long currentSeq = MessagePersister.lastAssignedId();
+        sendMessage(session, "RESUME_TOKEN:" + ResumeTokens.issue(session, username, userId) + ":" + currentSeq);
+        HistoryCache.track(HistoryCache.inboxKey(userId), currentSeq);
+        System.out.println("User " + username + " (ID: " + userId + ", Avatar: " + avatarUrl + ", Bio: " + bio.substring(0, Math.min(bio.length(), 20)) + "...) logged in.");
+        
+        String meetingCode = rooms.roomOf(session);
+        rooms.join(session, meetingCode);
+        broadcastUserStatus(username, meetingCode, true, session, false); 
+    }
+
+    // RESUME:token:lastSeq, sent after a reconnect instead of LOGIN. Answers RESUMED:username:room, a new RESUME_TOKEN,
+    // the missed MSG_SEQ / DM_RECEIVE_SEQ frames with a sequence above lastSeq, then RESUME_DONE:complete
+    // (or RESUME_DONE:truncated when the gap is too large to replay: the client then reloads history by paging).
+    private void handleResume(CommandRegistry.Command message, Session session) {
+        String[] parts = message.parts(3);
+        if (parts.length != 3) { sendMessage(session, "RESUME_FAIL:Invalid format."); return; }
+        long lastSeq;
+        try { lastSeq = Long.parseLong(parts[2]); } catch (NumberFormatException e) { sendMessage(session, "RESUME_FAIL:Invalid sequence."); return; }
+        ResumeTokens.Grant grant = ResumeTokens.redeem(parts[1]);
+        if (grant == null) { sendMessage(session, "RESUME_FAIL:Session expired, please log in again."); return; }
+        session.getUserProperties().put(NEGOTIATED_KEY, Boolean.TRUE);
+
+        // The old connection may not have been noticed as dead yet
+        Session oldSession = grant.session();
+        String room = RoomRegistry.normalize(oldSession != null ? rooms.roomOf(oldSession) : grant.room());
+        if (oldSession != null && oldSession.isOpen() && oldSession != session) SessionOutbox.of(oldSession).closeWhenDrained();
+
+        userSessions.put(grant.username, session);
+        sessionUsernames.put(session, grant.username);
+        session.getUserProperties().put("userId", grant.userId);
+        rooms.join(session, room);
+        sendMessage(session, "RESUMED:" + grant.username + ":" + room);
+        sendMessage(session, "RESUME_TOKEN:" + ResumeTokens.issue(session, grant.username, grant.userId) + ":" + lastSeq);
+        System.out.println("User " + grant.username + " resumed session in room " + room + " after seq " + lastSeq + ".");
+
+        // Joined first: a message committed meanwhile may arrive twice (live and replayed), never zero times. Clients drop duplicate sequences.
+        replayMissedMessages(session, grant.userId, room, lastSeq);
+        HistoryCache.track(HistoryCache.inboxKey(grant.userId), MessagePersister.lastAssignedId());
+        broadcastUserStatus(grant.username, room, true, session, false);
+    }
+
+    private void replayMissedMessages(Session session, int userId, String room, long lastSeq) {
+        List<Map<String,Object>> roomMessages, directMessages;
+        try {
+            // From the in-memory rings when they reach back far enough, otherwise one indexed range query each
+            roomMessages = HistoryCache.since(HistoryCache.roomKey(room), lastSeq, RESUME_MAX_REPLAY + 1);
+            if (roomMessages == null) roomMessages = DatabaseUtil.getMeetingCodeHistoryAfter(room, lastSeq, RESUME_MAX_REPLAY + 1);
+            directMessages = HistoryCache.since(HistoryCache.inboxKey(userId), lastSeq, RESUME_MAX_REPLAY + 1);
+            if (directMessages == null) directMessages = DatabaseUtil.getDirectMessagesToUserAfter(userId, lastSeq, RESUME_MAX_REPLAY + 1);
+        } catch (SQLException e) {
+            System.err.println("Could not load missed messages for user " + userId + ": " + e.getMessage());
+            sendMessage(session, "RESUME_DONE:truncated");
+            return;
+        }
+        if (roomMessages.size() + directMessages.size() > RESUME_MAX_REPLAY) { sendMessage(session, "RESUME_DONE:truncated"); return; }
+        // Both lists are in id order: merge them so the client sees one increasing sequence
+        int r = 0, d = 0;
+        while (r < roomMessages.size() || d < directMessages.size()) {
+            boolean takeRoom = d >= directMessages.size()
+                    || (r < roomMessages.size() && (Long) roomMessages.get(r).get("id") < (Long) directMessages.get(d).get("id"));
+            Map<String,Object> row = takeRoom ? roomMessages.get(r++) : directMessages.get(d++);
+            if (row.get("sender_username") == null) continue; // sender deleted
+            sendFrame(session, WireCodec.Frame.of(takeRoom ? Op.MSG_SEQ : Op.DM_RECEIVE_SEQ, (Long) row.get("id"), row.get("sender_username"), row.get("content")));
+        }
+        sendMessage(session, "RESUME_DONE:complete");
+    }
+
+    // The stored hash was made with another BCrypt cost: replace it in the background (skipped if the pool is busy).
+    private void rehashPassword(Session session, int userId, String password) {
+        PasswordUtil.hashPasswordAsync(password).thenAccept(newHash -> CommandExecutor.submit(session, () -> {
+            try (Connection conn = DatabaseUtil.getConnection(); PreparedStatement pstmt = conn.prepareStatement("UPDATE users SET password_hash = ? WHERE id = ?")) {
+                pstmt.setString(1, newHash); pstmt.setInt(2, userId); pstmt.executeUpdate();
+            } catch (SQLException e) { System.err.println("Could not store rehashed password for user " + userId + ": " + e.getMessage()); }
+        }));
+    }
+
+    private static String remoteAddress(Session session) {
+        return session instanceof TyrusSession ? ((TyrusSession) session).getRemoteAddr() : null;
+    }
     
     private String parseJsonBio(String jsonPayload) {
-        Matcher matcher = JSON_BIO_PATTERN.matcher(jsonPayload);
-        if (matcher.find()) {
-            String bio = matcher.group(1);
-            // Basic unescaping for \", \\, \n, \r, \t
-            return bio.replace("\\\"", "\"")
-                      .replace("\\\\", "\\")
-                      .replace("\\n", "\n")
-                      .replace("\\r", "")   // Typically remove \r
-                      .replace("\\t", "\t");
+        try {
+            String bio = JsonCodec.readStringMember(jsonPayload, "bio");
+            if (bio != null) return bio.replace("\r", ""); // Typically remove \r
+        } catch (JsonCodec.MalformedJsonException e) {
+            System.err.println("Could not parse bio from JSON (" + e.getMessage() + "): " + jsonPayload);
+            return null;
         }
         System.err.println("Could not parse bio from JSON: " + jsonPayload);
         return null;
     }
 
-    private void handleUpdateProfile(String message, Session session, String currentUsername) {
+    private void handleUpdateProfile(CommandRegistry.Command message, Session session, String currentUsername) {
         // Format: UPDATE_PROFILE:{"bio":"new bio text"}
-        String[] parts = message.split(":", 2);
+        String[] parts = message.parts(2);
         if (parts.length == 2) {
             String jsonPayload = parts[1];
             String newBio = parseJsonBio(jsonPayload); // Use the updated parser
@@ -143,19 +338,18 @@ public class ChatServerEndpoint {
             Integer userId = (Integer) session.getUserProperties().get("userId");
             if (userId == null) { sendMessage(session, "PROFILE_UPDATE_FAIL:User ID not found."); return; }
 
-            String sql = "UPDATE users SET bio = ? WHERE id = ?";
+            String sql = "UPDATE users SET bio = ?, profile_version = profile_version + 1 WHERE id = ?";
             try (Connection conn = DatabaseUtil.getConnection();
                  PreparedStatement pstmt = conn.prepareStatement(sql)) {
                 pstmt.setString(1, newBio);
                 pstmt.setInt(2, userId);
                 int affectedRows = pstmt.executeUpdate();
                 if (affectedRows > 0) {
-                    userBios.put(currentUsername, newBio); // Update cache
-                    // Construct the success payload to send back, ensuring bio is correctly escaped for JSON
-                    String escapedBio = newBio.replace("\\", "\\\\").replace("\"", "\\\"");
-                    String successPayload = "{\"bio\":\"" + escapedBio + "\"}";
+                    ProfileCache.invalidate(currentUsername); // reloaded with its new version by the broadcast
+                    // Construct the success payload to send back, with the bio escaped for JSON
+                    String successPayload = JsonCodec.objectOf("bio", newBio);
                     sendMessage(session, "PROFILE_UPDATE_SUCCESS:" + successPayload); 
-                    broadcastUserStatus(currentUsername, sessionMeetingCodes.getOrDefault(session, "public"), true, session, true); // true for isProfileUpdate
+                    broadcastUserStatus(currentUsername, rooms.roomOf(session), true, session, true); // true for isProfileUpdate
                 } else {
                     sendMessage(session, "PROFILE_UPDATE_FAIL:Could not update bio in DB.");
                 }
@@ -169,81 +363,123 @@ public class ChatServerEndpoint {
     }
 
     private void broadcastUserStatus(String username, String meetingCode, boolean joined, Session sourceSession, boolean isProfileUpdate) {
-        String avatarUrl = userAvatarUrls.getOrDefault(username, "");
-        String bio = userBios.getOrDefault(username, ""); 
-        String statusMessage;
+        // Events only carry the profile version; clients holding an older one fetch it with REQ_PROFILES.
+        ProfileCache.Profile profile = joined || isProfileUpdate ? ProfileCache.get(username) : null;
+        int version = profile != null ? profile.version : 0;
+        String avatarUrl = profile != null ? profile.avatarUrl : "";
+        WireCodec.Frame statusMessage;
+        String legacyMessage; // what clients that did not negotiate read: the avatar (and bio) in place of the version
 
         if (isProfileUpdate) { 
-             // Ensure bio is escaped for JSON-like structure if it contains special characters
+             statusMessage = WireCodec.Frame.of(Op.USER_PROFILE_UPDATE, username, version);
+             String bio = profile != null ? profile.bio : "";
              String escapedBio = bio.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
-             statusMessage = "USER_PROFILE_UPDATE:" + username + ":" + avatarUrl + ":" + escapedBio;
+             legacyMessage = "USER_PROFILE_UPDATE:" + username + ":" + avatarUrl + ":" + escapedBio;
         } else { 
-             if (joined) statusMessage = "USER_JOINED:" + username + ":" + avatarUrl;
-             else statusMessage = "USER_LEFT:" + username; 
+             if (joined) { statusMessage = WireCodec.Frame.of(Op.USER_JOINED, username, version); legacyMessage = "USER_JOINED:" + username + ":" + avatarUrl; }
+             else { statusMessage = WireCodec.Frame.of(Op.USER_LEFT, username); legacyMessage = null; }
         }
 
-        String effectiveCode = (meetingCode == null || meetingCode.trim().isEmpty()) ? "public" : meetingCode.trim();
-        System.out.println("Broadcasting status: " + statusMessage + " to code: " + effectiveCode);
-
-        for (Session s : activeSessions) {
-            if (s.isOpen() && (isProfileUpdate || !s.equals(sourceSession))) { 
-                String targetSessionMeetingCode = sessionMeetingCodes.getOrDefault(s, "public");
-                
-                // Simplified broadcast logic:
-                // If event is for "public", only "public" users get it.
-                // If event is for a specific code, only users in that code get it.
-                // If it's a profile update, this rule still applies.
-                if (targetSessionMeetingCode.equals(effectiveCode)) {
-                    sendMessage(s, statusMessage);
-                }
+        String effectiveCode = RoomRegistry.normalize(meetingCode);
+        System.out.println("Broadcasting status: " + statusMessage.toText() + " to code: " + effectiveCode);
+
+        // Only members of the room receive the event; profile updates are echoed to the source too.
+        // Successive presence events for the same user may be coalesced in a backed-up outbox.
+        String coalesceKey = "presence:" + username;
+        PreparedFrame frame = new PreparedFrame(statusMessage); // encoded once for the whole room
+        PreparedFrame legacyFrame = legacyMessage == null ? frame : new PreparedFrame(legacyMessage);
+        for (Session s : rooms.members(effectiveCode)) {
+            if (s.isOpen() && (isProfileUpdate || !s.equals(sourceSession))) {
+                SessionOutbox.of(s).offer(negotiated(s) ? frame : legacyFrame, coalesceKey);
             }
         }
     }
     
-    private void handleUpdateAvatarUrl(String message, Session session, String currentUsername) {
-        String[] parts = message.split(":", 2);
+    private void handleUpdateAvatarUrl(CommandRegistry.Command message, Session session, String currentUsername) {
+        String[] parts = message.parts(2);
         if (parts.length == 2) {
             String newAvatarUrl = parts[1]; Integer userId = (Integer) session.getUserProperties().get("userId");
             if (userId == null) { sendMessage(session, "AVATAR_UPDATE_FAIL:User ID not found."); return; }
             if (newAvatarUrl.length() > 512 || (!newAvatarUrl.isEmpty() && !newAvatarUrl.matches("^https?://.*"))) {
                  sendMessage(session, "AVATAR_UPDATE_FAIL:Invalid URL."); return;
             }
-            String sql = "UPDATE users SET avatar_url = ? WHERE id = ?";
+            String sql = "UPDATE users SET avatar_url = ?, profile_version = profile_version + 1 WHERE id = ?";
             try (Connection conn = DatabaseUtil.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
                 pstmt.setString(1, newAvatarUrl.isEmpty() ? null : newAvatarUrl); // Store NULL if empty
                 pstmt.setInt(2, userId);
                 if (pstmt.executeUpdate() > 0) {
-                    userAvatarUrls.put(currentUsername, newAvatarUrl.isEmpty() ? "" : newAvatarUrl); 
+                    ProfileCache.invalidate(currentUsername);
                     sendMessage(session, "AVATAR_UPDATE_SUCCESS:" + newAvatarUrl);
-                    broadcastUserStatus(currentUsername, sessionMeetingCodes.getOrDefault(session, "public"), true, session, true); 
+                    broadcastUserStatus(currentUsername, rooms.roomOf(session), true, session, true); 
                 } else sendMessage(session, "AVATAR_UPDATE_FAIL:DB update failed.");
             } catch (SQLException e) { sendMessage(session, "AVATAR_UPDATE_FAIL:DB error: " + e.getMessage()); e.printStackTrace(); }
         } else sendMessage(session, "AVATAR_UPDATE_FAIL:Invalid format.");
     }
 
-    private String mapListToJsonArray(List<Map<String, Object>> list) {
-        return "[" + list.stream()
-            .map(messageMap -> "{" +
-                messageMap.entrySet().stream()
-                    .map(entry -> "\"" + entry.getKey().replace("\"", "\\\"") + "\":\"" +
-                                 (entry.getValue() instanceof LocalDateTime ? 
-                                  ((LocalDateTime)entry.getValue()).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME) : 
-                                  entry.getValue().toString().replace("\"", "\\\"").replace("\n", "\\n")) + // Escape newlines too
-                                 "\"")
-                    .collect(Collectors.joining(",")) +
-                "}")
-            .collect(Collectors.joining(",")) + "]";
+    // Request: REQ_PROFILES:name1,name2,... Response: RESP_PROFILES:[{"username","version","avatar_url","bio"},...]
+    private void handleRequestProfiles(CommandRegistry.Command m, Session s, String cu) {
+        String[] parts = m.parts(2); if (parts.length != 2 || parts[1].isEmpty()) { sendMessage(s, "ERROR:Invalid REQ_PROFILES"); return; }
+        // Bounded before splitting: at most MAX_PROFILES_PER_REQUEST names of at most MAX_USERNAME_LENGTH chars
+        if (parts[1].length() > MAX_PROFILES_PER_REQUEST * (MAX_USERNAME_LENGTH + 1)) { sendMessage(s, "ERROR:Too many profiles requested (max " + MAX_PROFILES_PER_REQUEST + ")."); return; }
+        Set<String> names = new LinkedHashSet<>(Arrays.asList(parts[1].split(",")));
+        if (names.size() > MAX_PROFILES_PER_REQUEST) { sendMessage(s, "ERROR:Too many profiles requested (max " + MAX_PROFILES_PER_REQUEST + ")."); return; }
+        for (String name : names) if (name.isEmpty() || name.length() > MAX_USERNAME_LENGTH) { sendMessage(s, "ERROR:Invalid username in REQ_PROFILES"); return; }
+        List<Map<String,Object>> rows = new ArrayList<>();
+        for (ProfileCache.Profile p : ProfileCache.getAll(names)) {
+            Map<String,Object> row = new LinkedHashMap<>();
+            row.put("username", p.username); row.put("version", p.version); row.put("avatar_url", p.avatarUrl); row.put("bio", p.bio);
+            rows.add(row);
+        }
+        sendMessage(s, "RESP_PROFILES:" + JsonCodec.toJsonArray(rows));
     }
 
     // Stubs for other methods (ensure they are complete in your actual file)
-    private void handleRequestDmHistory(String m, Session s, String cu) { 
-        String[] parts = m.split(":", 2); if (parts.length == 2) { String otherUsername = parts[1]; Integer cuid = (Integer) s.getUserProperties().get("userId"); Integer ouid = getUserIdByUsername(otherUsername); if (cuid!=null && ouid!=null) { List<Map<String,Object>> h = DatabaseUtil.getDmHistory(cuid,ouid,MESSAGE_HISTORY_LIMIT); sendMessage(s, "RESP_DM_HIST:"+otherUsername+":"+mapListToJsonArray(h)); } else {sendMessage(s, "ERROR:User not found for DM history");}} else {sendMessage(s, "ERROR:Invalid REQ_DM_HIST");}
+    private void handleRequestDmHistory(CommandRegistry.Command m, Session s, String cu) { 
+        String[] parts = m.parts(2); if (parts.length == 2) { String otherUsername = parts[1]; Integer cuid = (Integer) s.getUserProperties().get("userId"); Integer ouid = getUserIdByUsername(otherUsername); if (cuid!=null && ouid!=null) { List<Map<String,Object>> h = HistoryCache.page(HistoryCache.dmKey(cuid,ouid), 0, MESSAGE_HISTORY_LIMIT, true, (b, n) -> DatabaseUtil.getDmHistory(cuid,ouid,b,n)); sendMessage(s, "RESP_DM_HIST:"+otherUsername+":"+historyJson(s, h)); } else {sendMessage(s, "ERROR:User not found for DM history");}} else {sendMessage(s, "ERROR:Invalid REQ_DM_HIST");}
+    }
+    private void handleRequestMeetingHistory(CommandRegistry.Command m, Session s, String cu) { 
+        String[] parts = m.parts(2); if (parts.length == 2) { String mc = parts[1]; if(mc.trim().isEmpty()){sendMessage(s,"ERROR:Meeting code empty"); return;} List<Map<String,Object>> h = HistoryCache.page(HistoryCache.roomKey(mc), 0, MESSAGE_HISTORY_LIMIT, inRoom(s, mc), (b, n) -> DatabaseUtil.getMeetingCodeHistory(mc,b,n)); sendMessage(s, "RESP_MEETING_HIST:"+mc+":"+historyJson(s, h));} else {sendMessage(s, "ERROR:Invalid REQ_MEETING_HIST");}
     }
-    private void handleRequestMeetingHistory(String m, Session s, String cu) { 
-        String[] parts = m.split(":", 2); if (parts.length == 2) { String mc = parts[1]; if(mc.trim().isEmpty()){sendMessage(s,"ERROR:Meeting code empty"); return;} List<Map<String,Object>> h = DatabaseUtil.getMeetingCodeHistory(mc,MESSAGE_HISTORY_LIMIT); sendMessage(s, "RESP_MEETING_HIST:"+mc+":"+mapListToJsonArray(h));} else {sendMessage(s, "ERROR:Invalid REQ_MEETING_HIST");}
+    // Keyset paging. Request: REQ_DM_HIST_PAGE:beforeId:pageSize:username (beforeId 0 = newest page).
+    // Response: RESP_DM_HIST_PAGE:nextCursor:username:json, nextCursor 0 when there is nothing older.
+    private void handleRequestDmHistoryPage(CommandRegistry.Command m, Session s, String cu) {
+        String[] parts = m.parts(4); if (parts.length != 4) { sendMessage(s, "ERROR:Invalid REQ_DM_HIST_PAGE"); return; }
+        long beforeId; int pageSize;
+        try { beforeId = Long.parseLong(parts[1]); pageSize = clampPageSize(Integer.parseInt(parts[2])); } catch (NumberFormatException e) { sendMessage(s, "ERROR:Invalid REQ_DM_HIST_PAGE cursor"); return; }
+        String otherUsername = parts[3]; Integer cuid = (Integer) s.getUserProperties().get("userId"); Integer ouid = getUserIdByUsername(otherUsername);
+        if (cuid == null || ouid == null) { sendMessage(s, "ERROR:User not found for DM history"); return; }
+        List<Map<String,Object>> h = HistoryCache.page(HistoryCache.dmKey(cuid, ouid), beforeId, pageSize, true, (b, n) -> DatabaseUtil.getDmHistory(cuid, ouid, b, n));
+        sendMessage(s, "RESP_DM_HIST_PAGE:" + nextCursor(h, pageSize) + ":" + otherUsername + ":" + historyJson(s, h));
     }
-    private void handleRegistration(String message, Session session) { 
-        String[] parts = message.split(":", 4);
+    // Request: REQ_MEETING_HIST_PAGE:beforeId:pageSize:code. Response: RESP_MEETING_HIST_PAGE:nextCursor:code:json.
+    private void handleRequestMeetingHistoryPage(CommandRegistry.Command m, Session s, String cu) {
+        String[] parts = m.parts(4); if (parts.length != 4) { sendMessage(s, "ERROR:Invalid REQ_MEETING_HIST_PAGE"); return; }
+        long beforeId; int pageSize;
+        try { beforeId = Long.parseLong(parts[1]); pageSize = clampPageSize(Integer.parseInt(parts[2])); } catch (NumberFormatException e) { sendMessage(s, "ERROR:Invalid REQ_MEETING_HIST_PAGE cursor"); return; }
+        String mc = parts[3]; if (mc.trim().isEmpty()) { sendMessage(s, "ERROR:Meeting code empty"); return; }
+        List<Map<String,Object>> h = HistoryCache.page(HistoryCache.roomKey(mc), beforeId, pageSize, inRoom(s, mc), (b, n) -> DatabaseUtil.getMeetingCodeHistory(mc, b, n));
+        sendMessage(s, "RESP_MEETING_HIST_PAGE:" + nextCursor(h, pageSize) + ":" + mc + ":" + historyJson(s, h));
+    }
+    private static int clampPageSize(int requested) {
+        return Math.max(1, Math.min(requested, MAX_HISTORY_PAGE_SIZE));
+    }
+    // Pages are oldest-first: the oldest id is the cursor for the next (older) page. A short page means we reached the start.
+    // Computed on the page as read, before rows of deleted senders are dropped.
+    private static long nextCursor(List<Map<String,Object>> page, int pageSize) {
+        return page.size() < pageSize ? 0 : (Long) page.get(0).get("id");
+    }
+    // Timestamps as epoch millis for negotiated clients, as the ISO strings older clients parse for the others.
+    private static String historyJson(Session s, List<Map<String,Object>> rows) {
+        return JsonCodec.toJsonArray(withKnownSenders(rows), !negotiated(s));
+    }
+    // History rows of deleted users have no sender_username: they are not sent (as when history joined on users).
+    private static List<Map<String,Object>> withKnownSenders(List<Map<String,Object>> rows) {
+        List<Map<String,Object>> known = new ArrayList<>(rows.size());
+        for (Map<String,Object> row : rows) if (row.get("sender_username") != null) known.add(row);
+        return known;
+    }
+    private void handleRegistration(CommandRegistry.Command message, Session session) { 
+        String[] parts = message.parts(4);
         if (parts.length == 4) {
             String username = parts[1]; String password = parts[2]; String email = parts[3];
             String checkUserSql = "SELECT id FROM users WHERE username = ? OR email = ?";
@@ -252,23 +488,34 @@ public class ChatServerEndpoint {
                 ResultSet rs = checkStmt.executeQuery();
                 if (rs.next()) { sendMessage(session, "REGISTER_FAIL:Username or email already exists."); return; }
             } catch (SQLException e) { sendMessage(session, "REGISTER_FAIL:DB error: " + e.getMessage()); return; }
-            String hashedPassword = PasswordUtil.hashPassword(password);
-            // Avatar URL and bio will be NULL by default from DB schema
-            String sql = "INSERT INTO users (username, password_hash, email) VALUES (?, ?, ?)"; 
-            try (Connection conn = DatabaseUtil.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                pstmt.setString(1, username); pstmt.setString(2, hashedPassword); pstmt.setString(3, email);
-                if (pstmt.executeUpdate() > 0) sendMessage(session, "REGISTER_SUCCESS:Registration successful. Please login.");
-                else sendMessage(session, "REGISTER_FAIL:Registration failed.");
-            } catch (SQLException e) { sendMessage(session, "REGISTER_FAIL:Error: " + e.getMessage()); e.printStackTrace();}
+            CommandExecutor.continueAfter(PasswordUtil.hashPasswordAsync(password), (hashedPassword, error) -> {
+                if (error != null) {
+                    if (PasswordUtil.isBusy(error)) sendMessage(session, "REGISTER_FAIL:busy");
+                    else { sendMessage(session, "REGISTER_FAIL:Server error."); error.printStackTrace(); }
+                    return;
+                }
+                insertUser(session, username, hashedPassword, email);
+            });
         } else sendMessage(session, "REGISTER_FAIL:Invalid format.");
     }
-    private void handleMeetingCode(String message, Session session, String currentUsername) { 
-        String[] parts = message.split(":", 2);
+    private void insertUser(Session session, String username, String hashedPassword, String email) {
+        // Avatar URL and bio will be NULL by default from DB schema
+        String sql = "INSERT INTO users (username, password_hash, email) VALUES (?, ?, ?)"; 
+        try (Connection conn = DatabaseUtil.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setString(1, username); pstmt.setString(2, hashedPassword); pstmt.setString(3, email);
+            if (pstmt.executeUpdate() > 0) {
+                try (ResultSet keys = pstmt.getGeneratedKeys()) { if (keys.next()) UserDirectory.put(username, keys.getInt(1)); }
+                sendMessage(session, "REGISTER_SUCCESS:Registration successful. Please login.");
+            }
+            else sendMessage(session, "REGISTER_FAIL:Registration failed.");
+        } catch (SQLException e) { sendMessage(session, "REGISTER_FAIL:Error: " + e.getMessage()); e.printStackTrace();}
+    }
+    private void handleMeetingCode(CommandRegistry.Command message, Session session, String currentUsername) { 
+        String[] parts = message.parts(2);
         if (parts.length == 2) {
-            String oldCode = sessionMeetingCodes.getOrDefault(session, "public");
-            String newCode = parts[1].trim();
-            if (newCode.isEmpty()) newCode = "public";
-            sessionMeetingCodes.put(session, newCode);
+            String newCode = RoomRegistry.normalize(parts[1]);
+            String oldCode = rooms.join(session, newCode);
+            if (oldCode == null) oldCode = RoomRegistry.DEFAULT_ROOM;
             sendMessage(session, "MEETING_CODE_STATUS:Joined code: " + newCode);
             if (!oldCode.equals(newCode)) {
                 broadcastUserStatus(currentUsername, oldCode, false, session, false); 
@@ -277,24 +524,38 @@ public class ChatServerEndpoint {
         } else sendMessage(session, "ERROR:Invalid meeting code format.");
     }
     private Integer getUserIdByUsername(String username) { 
-        String sql = "SELECT id FROM users WHERE username = ?"; try (Connection conn = DatabaseUtil.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) { pstmt.setString(1, username); ResultSet rs = pstmt.executeQuery(); if (rs.next()) { return rs.getInt("id"); } } catch (SQLException e) { e.printStackTrace(); } return null; 
+        return UserDirectory.idOf(username); // cached; queries users only on a miss
     }
-    private void handleDirectMessage(String message, Session senderSession, String senderUsername) { 
-        String[] parts = message.split(":", 3); if (parts.length == 3) { String ru = parts[1]; String mc = parts[2]; Integer sid = (Integer) senderSession.getUserProperties().get("userId"); if(sid==null){sendMessage(senderSession,"ERROR:SID Null");return;} if(ru.equals(senderUsername)){sendMessage(senderSession,"ERROR:DM Self");return;} Integer rid = getUserIdByUsername(ru); if(rid==null){sendMessage(senderSession,"ERROR:RID Null");return;} String sql = "INSERT INTO messages (sender_id, receiver_id, content, meeting_code) VALUES (?, ?, ?, ?)"; try (Connection conn = DatabaseUtil.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) { pstmt.setInt(1, sid); pstmt.setInt(2, rid); pstmt.setString(3, mc); pstmt.setString(4, "_DM_"); pstmt.executeUpdate(); sendMessage(senderSession, "DM_SENT_CONFIRM:" + ru + ":" + mc); Session rs = userSessions.get(ru); if (rs != null && rs.isOpen()) { sendMessage(rs, "DM_RECEIVE:" + senderUsername + ":" + mc); } else { sendMessage(senderSession, "SYSTEM_MSG:User " + ru + " is offline."); } } catch (SQLException e) { e.printStackTrace(); sendMessage(senderSession, "ERROR:DM Fail"); } } else sendMessage(senderSession, "ERROR:Invalid DM format.");
+    private void handleDirectMessage(CommandRegistry.Command message, Session senderSession, String senderUsername) { 
+        String[] parts = message.parts(3); if (parts.length == 3) { String ru = parts[1]; String mc = parts[2]; Integer sid = (Integer) senderSession.getUserProperties().get("userId"); if(sid==null){sendMessage(senderSession,"ERROR:SID Null");return;} if(ru.equals(senderUsername)){sendMessage(senderSession,"ERROR:DM Self");return;} Integer rid = getUserIdByUsername(ru); if(rid==null){sendMessage(senderSession,"ERROR:RID Null");return;} String hk = HistoryCache.dmKey(sid, rid), inbox = HistoryCache.inboxKey(rid); MessagePersister.enqueue(sid, rid, mc, "_DM_", id -> { HistoryCache.append(hk, id, senderUsername, mc); HistoryCache.append(inbox, id, senderUsername, mc); }).whenComplete(Correlation.bind((id, err) -> { if (err != null) { sendMessage(senderSession, "ERROR:DM Fail"); return; } sendFrame(senderSession, WireCodec.Frame.of(Op.DM_SENT_CONFIRM, ru, mc)); Session rs = userSessions.get(ru); if (rs != null && rs.isOpen()) { sendFrame(rs, negotiated(rs) ? WireCodec.Frame.of(Op.DM_RECEIVE_SEQ, id, senderUsername, mc) : WireCodec.Frame.of(Op.DM_RECEIVE, senderUsername, mc)); } else { sendMessage(senderSession, "SYSTEM_MSG:User " + ru + " is offline."); } })); } else sendMessage(senderSession, "ERROR:Invalid DM format.");
     }
     private void handleChatMessage(String messageContent, Session session, String senderUsername) { 
-        Integer sid = (Integer) session.getUserProperties().get("userId"); if(sid==null){sendMessage(session,"ERROR:UID Null");return;} String mc = sessionMeetingCodes.getOrDefault(session, "public"); String sql = "INSERT INTO messages (sender_id, content, meeting_code) VALUES (?, ?, ?)"; try (Connection conn = DatabaseUtil.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) { pstmt.setInt(1, sid); pstmt.setString(2, messageContent); pstmt.setString(3, mc); pstmt.executeUpdate(); } catch (SQLException e) { e.printStackTrace(); } String fm = "MSG:" + senderUsername + ":" + messageContent; broadcastMessage(fm, mc, null);
+        Integer sid = (Integer) session.getUserProperties().get("userId"); if(sid==null){sendMessage(session,"ERROR:UID Null");return;} String mc = rooms.roomOf(session);
+        // Broadcast once the batch holding the row is committed (immediately in ASYNC mode); a failed insert is logged and still delivered, as before.
+        // Delivered as MSG_SEQ:id:sender:content, the row id being the sequence number clients resume from; unsequenced MSG: if the insert
+        // failed, and to clients that did not negotiate the sequenced form.
+        // The committed row also goes into the room's history ring, if the room is cached.
+        String hk = HistoryCache.roomKey(mc);
+        MessagePersister.enqueue(sid, null, messageContent, mc, id -> HistoryCache.append(hk, id, senderUsername, messageContent))
+                .whenComplete((id, err) -> {
+                    WireCodec.Frame plain = WireCodec.Frame.of(Op.MSG, senderUsername, messageContent);
+                    broadcastMessage(err == null ? WireCodec.Frame.of(Op.MSG_SEQ, id, senderUsername, messageContent) : plain, plain, mc);
+                });
     }
     @OnClose public void onClose(Session session) { 
+        // Runs after any command still queued for this session, so a late LOGIN cannot re-register it.
+        CommandExecutor.submit(session, () -> cleanUpSession(session));
+    }
+    private void cleanUpSession(Session session) {
         activeSessions.remove(session);
+        SessionOutbox.of(session).close();
         String username = sessionUsernames.remove(session);
-        String meetingCode = sessionMeetingCodes.remove(session);
+        String meetingCode = rooms.leave(session);
         if (username != null) {
-            userSessions.remove(username); 
-            userAvatarUrls.remove(username); // Remove avatar from cache
-            userBios.remove(username);       // Remove bio from cache
+            ResumeTokens.sessionClosed(session, meetingCode);
             System.out.println("User " + username + " disconnected. Session: " + session.getId());
-            broadcastUserStatus(username, meetingCode, false, session, false); 
+            // Not "left" if the user already came back on another connection (login elsewhere or RESUME)
+            if (userSessions.remove(username, session)) broadcastUserStatus(username, meetingCode, false, session, false); 
         } else {
             System.out.println("Session " + session.getId() + " disconnected (was not fully authenticated).");
         }
@@ -303,10 +564,27 @@ public class ChatServerEndpoint {
         System.err.println("Error on session " + s.getId() + ": " + t.getMessage());
         t.printStackTrace(); 
     }
-    private void broadcastMessage(String message, String meetingCode, Session senderSession) { 
-        String ec = (meetingCode==null||meetingCode.trim().isEmpty())?"public":meetingCode.trim(); for(Session s:activeSessions){if(s.isOpen()){String tsc = sessionMeetingCodes.getOrDefault(s,"public"); if(tsc.equals(ec)){sendMessage(s,message);}}}
+    // `message` goes to negotiated sessions, `legacy` to the others; each is encoded once for the whole room.
+    private void broadcastMessage(WireCodec.Frame message, WireCodec.Frame legacy, String meetingCode) { 
+        PreparedFrame frame = new PreparedFrame(message), legacyFrame = legacy == message ? frame : new PreparedFrame(legacy);
+        for(Session s:rooms.members(meetingCode)){if(s.isOpen()){SessionOutbox.of(s).offer(negotiated(s) ? frame : legacyFrame, null);}}
     }
+    // Whether the session is in that room (an empty room's history is only cached for its members)
+    private static boolean inRoom(Session s, String meetingCode) {
+        return RoomRegistry.normalize(meetingCode).equals(rooms.roomOf(s));
+    }
+    private static boolean negotiated(Session s) {
+        return s.getUserProperties().get(NEGOTIATED_KEY) != null;
+    }
+    // Queues the frame on the session's outbox; delivery happens asynchronously. Replies to a correlated command are tagged.
     private void sendMessage(Session s, String m) { 
-        if(s!=null && s.isOpen()){try{s.getBasicRemote().sendText(m);}catch(IOException e){e.printStackTrace();}}
+        Op op = WireCodec.opOf(m);
+        if (op != null && op.isFailure()) CommandRegistry.markCurrentFailed(); // feeds cmd.* error counters
+        if(s!=null && s.isOpen()){SessionOutbox.of(s).offerReply(Correlation.tag(s, m));}
+    }
+    // Same, for a message built field by field (fields may contain ':' for binary clients).
+    private void sendFrame(Session s, WireCodec.Frame f) {
+        if (f.op().isFailure()) CommandRegistry.markCurrentFailed();
+        if(s!=null && s.isOpen()){SessionOutbox.of(s).offerReply(new PreparedFrame(Correlation.tag(s, f)));}
     }
 }
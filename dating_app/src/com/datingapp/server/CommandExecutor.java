@@ -0,0 +1,305 @@
+package com.datingapp.server;
+
+import com.datingapp.MainServer;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Session;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs client commands (login, DB writes, history queries...) off the WebSocket I/O threads.
+ * Commands of one session are executed strictly in submission order through a per-session serial queue;
+ * different sessions run in parallel on the shared executor.
+ * <p>
+ * executor.type=virtual uses a virtual-thread-per-task executor when the JVM provides one (Java 21+),
+ * otherwise a fixed pool of executor.threads platform threads is used.
+ * <p>
+ * A command that hands CPU-heavy work to another pool (password hashing) uses {@link #continueAfter}:
+ * the session's queue is parked, without holding a thread, until that work completes.
+ * A command carrying several commands (BATCH) uses {@link #runNext} to run them before anything queued after it.
+ * <p>
+ * Commands received from a client go through {@link #submitFromClient}: a session with more than
+ * executor.maxPendingPerSession commands waiting (a client sending faster than its commands run, or piling up
+ * behind a parked queue) is closed with 1008 instead of growing the server's memory without limit.
+ */
+public class CommandExecutor {
+
+    private static final String USER_PROPERTY_KEY = "commandQueue";
+    private static final int MAX_PENDING_PER_SESSION = MainServer.getIntProperty("executor.maxPendingPerSession", 256);
+    private static final ExecutorService executor = createExecutor();
+    private static final ThreadLocal<SerialQueue> currentQueue = new ThreadLocal<>();
+
+    // Timing counters, reported through ServerStats
+    private static final LongAdder executed = new LongAdder();
+    private static final LongAdder failed = new LongAdder();
+    private static final LongAdder queueWaitNanos = new LongAdder();
+    private static final LongAdder executionNanos = new LongAdder();
+    private static final AtomicLong maxQueueWaitNanos = new AtomicLong();
+    private static final AtomicLong maxExecutionNanos = new AtomicLong();
+    private static final AtomicInteger pending = new AtomicInteger();
+    private static final LongAdder overflowDisconnects = new LongAdder();
+
+    static {
+        ServerStats.register("commands", () -> {
+            long n = Math.max(1, executed.sum());
+            return "pending=" + pending.get() + " executed=" + executed.sum() + " failed=" + failed.sum()
+                    + " avgWaitMs=" + millis(queueWaitNanos.sum() / n) + " maxWaitMs=" + millis(maxQueueWaitNanos.get())
+                    + " avgExecMs=" + millis(executionNanos.sum() / n) + " maxExecMs=" + millis(maxExecutionNanos.get())
+                    + " overflowDisconnects=" + overflowDisconnects.sum();
+        });
+    }
+
+    private CommandExecutor() {}
+
+    /**
+     * Per-session FIFO: at most one drain task per session is active on the executor at any time.
+     */
+    private static final class SerialQueue {
+        final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger(); // of `tasks`
+        final AtomicBoolean overflowed = new AtomicBoolean(false);
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        final Queue<Task> next = new ArrayDeque<>(); // runNext(); only touched by the draining thread
+        Runnable barrier;  // set by continueAfter() while a command runs; only touched by the draining thread
+        Runnable resumeWith;
+    }
+
+    private static final class Task {
+        final Runnable command;
+        final long enqueuedAt = System.nanoTime();
+
+        Task(Runnable command) {
+            this.command = command;
+        }
+    }
+
+    /**
+     * Queues a command for a session. Returns immediately; the command runs after every command
+     * previously submitted for the same session.
+     */
+    public static void submit(Session session, Runnable command) {
+        SerialQueue queue = queueOf(session);
+        enqueue(queue, command);
+    }
+
+    /**
+     * Same as {@link #submit} for a command read from the client (called on the I/O thread): if the session
+     * already has executor.maxPendingPerSession commands waiting, the command is dropped and the session is closed
+     * with 1008 (policy violation).
+     */
+    public static void submitFromClient(Session session, Runnable command) {
+        SerialQueue queue = queueOf(session);
+        if (MAX_PENDING_PER_SESSION > 0 && queue.size.get() >= MAX_PENDING_PER_SESSION) {
+            if (queue.overflowed.compareAndSet(false, true)) disconnectFlooder(session);
+            return;
+        }
+        enqueue(queue, command);
+    }
+
+    /**
+     * An executor running its tasks one at a time, in submission order, on the shared executor: a serial queue
+     * like a session's, for work that belongs to no session (e.g. delivering committed messages in id order).
+     */
+    public static Executor serial() {
+        SerialQueue queue = new SerialQueue();
+        return command -> enqueue(queue, command);
+    }
+
+    private static void enqueue(SerialQueue queue, Runnable command) {
+        queue.tasks.add(new Task(command));
+        queue.size.incrementAndGet();
+        pending.incrementAndGet();
+        schedule(queue);
+    }
+
+    private static void disconnectFlooder(Session session) {
+        overflowDisconnects.increment();
+        System.err.println("Session " + session.getId() + " exceeded " + MAX_PENDING_PER_SESSION + " pending commands, disconnecting.");
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "Too many pending commands"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called from a running command: once the command returns, the session's later commands wait until
+     * `stage` completes, then `continuation` runs as the session's next command.
+     * Outside a command the continuation simply runs when the stage completes.
+     */
+    public static <T> void continueAfter(CompletableFuture<T> stage, BiConsumer<? super T, ? super Throwable> continuation) {
+        continuation = Correlation.bind(continuation); // replies of the continuation answer the same request
+        SerialQueue queue = currentQueue.get();
+        if (queue == null) {
+            stage.whenComplete(continuation);
+            return;
+        }
+        BiConsumer<? super T, ? super Throwable> resumed = continuation;
+        queue.barrier = () -> stage.whenComplete((result, error) -> {
+            queue.resumeWith = () -> resumed.accept(result, error);
+            try {
+                executor.execute(() -> drain(queue));
+            } catch (RejectedExecutionException e) {
+                queue.scheduled.set(false);
+                System.err.println("CommandExecutor: continuation rejected (server shutting down).");
+            }
+        });
+    }
+
+    /**
+     * Called from a running command: runs `commands` in order as the session's next commands, ahead of those
+     * already queued. Each one is a command of its own (it may park the queue with continueAfter).
+     * Outside a command they are simply submitted.
+     */
+    public static void runNext(Session session, List<Runnable> commands) {
+        SerialQueue queue = currentQueue.get();
+        if (queue == null || queue != queueOf(session)) {
+            commands.forEach(command -> submit(session, command));
+            return;
+        }
+        for (Runnable command : commands) queue.next.add(new Task(command));
+        pending.addAndGet(commands.size());
+    }
+
+    /**
+     * Stops accepting commands and waits for the queued ones to finish.
+     */
+    public static void shutdown(long timeoutSeconds) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+                System.err.println("CommandExecutor: " + pending.get() + " command(s) still pending at shutdown.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static SerialQueue queueOf(Session session) {
+        synchronized (session) {
+            SerialQueue queue = (SerialQueue) session.getUserProperties().get(USER_PROPERTY_KEY);
+            if (queue == null) {
+                queue = new SerialQueue();
+                session.getUserProperties().put(USER_PROPERTY_KEY, queue);
+            }
+            return queue;
+        }
+    }
+
+    private static void schedule(SerialQueue queue) {
+        if (!queue.tasks.isEmpty() && queue.scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> drain(queue));
+            } catch (RejectedExecutionException e) {
+                queue.scheduled.set(false);
+                System.err.println("CommandExecutor: command rejected (server shutting down).");
+            }
+        }
+    }
+
+    private static void drain(SerialQueue queue) {
+        boolean parked = false;
+        currentQueue.set(queue);
+        try {
+            Runnable resume = queue.resumeWith;
+            queue.resumeWith = null;
+            if (resume != null) {
+                long start = System.nanoTime();
+                run(resume);
+                record(executionNanos, maxExecutionNanos, System.nanoTime() - start);
+                parked = park(queue);
+            }
+            Task task;
+            while (!parked && ((task = queue.next.poll()) != null || (task = pollTask(queue)) != null)) {
+                pending.decrementAndGet();
+                long start = System.nanoTime();
+                record(queueWaitNanos, maxQueueWaitNanos, start - task.enqueuedAt);
+                run(task.command);
+                record(executionNanos, maxExecutionNanos, System.nanoTime() - start);
+                executed.increment();
+                parked = park(queue);
+            }
+        } finally {
+            currentQueue.remove();
+            if (!parked) {
+                queue.scheduled.set(false);
+                // A command may have been queued between the last poll and the reset above.
+                schedule(queue);
+            }
+        }
+    }
+
+    private static Task pollTask(SerialQueue queue) {
+        Task task = queue.tasks.poll();
+        if (task != null) queue.size.decrementAndGet();
+        return task;
+    }
+
+    private static void run(Runnable command) {
+        try {
+            command.run();
+        } catch (RuntimeException e) {
+            failed.increment();
+            System.err.println("CommandExecutor: command failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // If the command just run called continueAfter(), leaves the queue marked as scheduled (so submit() won't
+    // start another drain) and arms the continuation, which resumes draining.
+    private static boolean park(SerialQueue queue) {
+        Runnable barrier = queue.barrier;
+        if (barrier == null) return false;
+        queue.barrier = null;
+        barrier.run();
+        return true;
+    }
+
+    private static void record(LongAdder total, AtomicLong max, long nanos) {
+        total.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1_000_000.0);
+    }
+
+    private static ExecutorService createExecutor() {
+        String type = MainServer.getProperty("executor.type", "virtual").trim();
+        if ("virtual".equalsIgnoreCase(type)) {
+            try {
+                // Looked up reflectively so the server still builds and runs on JDKs without virtual threads.
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                System.out.println("CommandExecutor: using virtual threads.");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("CommandExecutor: virtual threads not available on this JVM, using a platform thread pool.");
+            }
+        }
+        int threads = MainServer.getIntProperty("executor.threads", Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        AtomicInteger counter = new AtomicInteger();
+        System.out.println("CommandExecutor: using " + threads + " platform threads.");
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "command-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,217 @@
+package com.datingapp.server;
+
+import com.datingapp.common.WireCodec;
+import jakarta.websocket.Session;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opcode -> handler dispatch table for the colon-delimited protocol and its binary form ({@link WireCodec}).
+ * The opcode (text before the first ':') is parsed once into a {@link Command} and looked up in a hash map,
+ * so dispatch cost does not depend on the number of commands. Every command records a latency histogram
+ * and an error counter, reported through ServerStats as "cmd.OPCODE".
+ * <p>
+ * Opcodes added along with protocol negotiation have a {@link Scope}: in a text frame where they are not
+ * allowed they are not commands, and the frame goes to the fallback as plain chat, as it did before they existed.
+ *
+ * @param <C> The context handlers are invoked on (the endpoint instance).
+ */
+public class CommandRegistry<C> {
+
+    /** Text frames in which an opcode is a command. Binary frames (sent only once negotiated) may use any. */
+    public enum Scope {
+        /** Every frame (the original opcodes). */
+        ALWAYS,
+        /** Only once the session has negotiated the protocol (PROTO). */
+        NEGOTIATED,
+        /** Only as the first frame of the session. */
+        FIRST_FRAME
+    }
+
+    @FunctionalInterface
+    public interface Handler<C> {
+        void handle(C context, Command command, Session session, String currentUsername);
+    }
+
+    /**
+     * Lightweight view of an incoming frame: the opcode is parsed once, fields are split on demand.
+     */
+    public static final class Command {
+        private String raw;
+        private final String opcode;
+        private final String[] fields; // opcode + fields of a binary frame, null for text
+
+        Command(String raw, String opcode) {
+            this.raw = raw;
+            this.opcode = opcode;
+            this.fields = null;
+        }
+
+        Command(WireCodec.Frame frame) {
+            this.opcode = frame.op().name();
+            this.fields = new String[frame.fieldCount() + 1];
+            fields[0] = opcode;
+            for (int i = 0; i < frame.fieldCount(); i++) fields[i + 1] = frame.string(i);
+        }
+
+        /** The whole frame as received, or its text equivalent for a binary frame. */
+        public String raw() {
+            if (raw == null) raw = String.join(":", fields);
+            return raw;
+        }
+
+        /** The opcode, or null for a frame without a known opcode (plain chat text). */
+        public String opcode() { return opcode; }
+
+        /**
+         * Equivalent to raw().split(":", limit) without the regex machinery:
+         * parts[0] is the opcode and the last part keeps any remaining colons.
+         * Fields of a binary frame are returned as sent, even if they contain ':'.
+         */
+        public String[] parts(int limit) {
+            if (fields != null) {
+                if (fields.length <= limit) return fields.clone();
+                String[] joined = Arrays.copyOf(fields, limit);
+                joined[limit - 1] = String.join(":", Arrays.asList(fields).subList(limit - 1, fields.length));
+                return joined;
+            }
+            String[] parts = new String[limit];
+            int count = 0;
+            int start = 0;
+            while (count < limit - 1) {
+                int colon = raw.indexOf(':', start);
+                if (colon < 0) break;
+                parts[count++] = raw.substring(start, colon);
+                start = colon + 1;
+            }
+            parts[count++] = raw.substring(start);
+            if (count == limit) return parts;
+            String[] shorter = new String[count];
+            System.arraycopy(parts, 0, shorter, 0, count);
+            return shorter;
+        }
+    }
+
+    private static final class Entry<C> {
+        final String opcode;
+        final Scope scope;
+        final boolean requiresAuth;
+        final Handler<C> handler;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+
+        Entry(String opcode, Scope scope, boolean requiresAuth, Handler<C> handler) {
+            this.opcode = opcode;
+            this.scope = scope;
+            this.requiresAuth = requiresAuth;
+            this.handler = handler;
+        }
+
+        boolean allowedIn(boolean negotiated, boolean firstFrame) {
+            switch (scope) {
+                case NEGOTIATED: return negotiated;
+                case FIRST_FRAME: return firstFrame;
+                default: return true;
+            }
+        }
+    }
+
+    private static final ThreadLocal<Entry<?>> current = new ThreadLocal<>();
+
+    private final Map<String, Entry<C>> handlers = new ConcurrentHashMap<>();
+    private Entry<C> fallback;
+
+    /**
+     * Registers a handler for frames of the form "OPCODE:...".
+     *
+     * @param requiresAuth Whether the session must be logged in; otherwise "ERROR:Authentication required." is sent.
+     */
+    public CommandRegistry<C> register(String opcode, boolean requiresAuth, Handler<C> handler) {
+        return register(opcode, Scope.ALWAYS, requiresAuth, handler);
+    }
+
+    /**
+     * Same, for an opcode that is a command only in the text frames given by `scope`.
+     */
+    public CommandRegistry<C> register(String opcode, Scope scope, boolean requiresAuth, Handler<C> handler) {
+        Entry<C> entry = new Entry<>(opcode, scope, requiresAuth, handler);
+        handlers.put(opcode, entry);
+        registerStats(entry);
+        return this;
+    }
+
+    /**
+     * Registers the handler for frames with no registered opcode (plain chat text).
+     */
+    public CommandRegistry<C> fallback(String name, boolean requiresAuth, Handler<C> handler) {
+        fallback = new Entry<>(name, Scope.ALWAYS, requiresAuth, handler);
+        registerStats(fallback);
+        return this;
+    }
+
+    /**
+     * Marks the command being dispatched on this thread as failed (e.g. it answered with an error).
+     */
+    public static void markCurrentFailed() {
+        Entry<?> entry = current.get();
+        if (entry != null) {
+            entry.errors.increment();
+            current.remove(); // count at most one error per command
+        }
+    }
+
+    /**
+     * Parses and dispatches one text frame.
+     *
+     * @param negotiated Whether the session has negotiated the protocol ({@link Scope#NEGOTIATED} opcodes are commands).
+     * @param firstFrame Whether this is the session's first frame ({@link Scope#FIRST_FRAME} opcodes are commands).
+     * @return false if the command requires authentication and the session has none.
+     */
+    public boolean dispatch(C context, String raw, Session session, String currentUsername, boolean negotiated, boolean firstFrame) {
+        Entry<C> entry = null;
+        String opcode = null;
+        int colon = raw.indexOf(':');
+        if (colon > 0) {
+            entry = handlers.get(raw.substring(0, colon));
+            if (entry != null && !entry.allowedIn(negotiated, firstFrame)) entry = null;
+            if (entry != null) opcode = entry.opcode;
+        }
+        if (entry == null) entry = fallback;
+        return invoke(entry, context, new Command(raw, opcode), session, currentUsername);
+    }
+
+    /**
+     * Dispatches one binary frame. CHAT (and any opcode without a handler) goes to the fallback with its text
+     * equivalent as the raw frame; RAW frames are dispatched as the text message they carry.
+     */
+    public boolean dispatch(C context, WireCodec.Frame frame, Session session, String currentUsername) {
+        if (frame.op() == WireCodec.Op.RAW) return dispatch(context, frame.string(0), session, currentUsername, true, false);
+        Entry<C> entry = frame.op() == WireCodec.Op.CHAT ? null : handlers.get(frame.op().name());
+        Command command = entry != null ? new Command(frame) : new Command(frame.toText(), null);
+        return invoke(entry != null ? entry : fallback, context, command, session, currentUsername);
+    }
+
+    private boolean invoke(Entry<C> entry, C context, Command command, Session session, String currentUsername) {
+        if (entry == null) return true;
+        if (entry.requiresAuth && currentUsername == null) return false;
+
+        long start = System.nanoTime();
+        current.set(entry);
+        try {
+            entry.handler.handle(context, command, session, currentUsername);
+        } catch (RuntimeException e) {
+            markCurrentFailed();
+            throw e;
+        } finally {
+            current.remove();
+            entry.latency.recordNanos(System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    private static void registerStats(Entry<?> entry) {
+        ServerStats.register("cmd." + entry.opcode, () -> entry.latency.summary() + " errors=" + entry.errors.sum());
+    }
+}
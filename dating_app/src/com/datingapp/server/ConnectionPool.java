@@ -0,0 +1,335 @@
+package com.datingapp.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small bounded JDBC connection pool.
+ * Callers use connections exactly like DriverManager ones: close() hands the physical connection
+ * back to the pool instead of tearing down the TCP/auth handshake.
+ * <ul>
+ *   <li>minSize connections are opened up front ({@link #prewarm()}), at most maxSize exist at once;</li>
+ *   <li>idle connections are validated on borrow unless they were used within validationIntervalMs;</li>
+ *   <li>connections older than maxLifetimeMs are retired when returned or borrowed;</li>
+ *   <li>connections held longer than leakDetectionMs are reported with the stack that borrowed them.</li>
+ * </ul>
+ */
+public class ConnectionPool {
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long connectionTimeoutMs;
+    private final long validationIntervalMs;
+    private final long maxLifetimeMs;
+    private final long leakDetectionMs;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Map<PooledConnection, Boolean> inUse = new ConcurrentHashMap<>();
+    private final Semaphore permits;
+    private final AtomicInteger total = new AtomicInteger();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean shutdown = false;
+
+    // Counters, reported through ServerStats
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder retired = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    private static final class PooledConnection {
+        final Connection physical;
+        final long createdAt = System.currentTimeMillis();
+        volatile long lastUsedAt = createdAt;
+        volatile long borrowedAt;
+        volatile Throwable borrowedBy;
+        volatile boolean leakReported;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+    }
+
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+                          long connectionTimeoutMs, long validationIntervalMs, long maxLifetimeMs, long leakDetectionMs) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.connectionTimeoutMs = connectionTimeoutMs;
+        this.validationIntervalMs = validationIntervalMs;
+        this.maxLifetimeMs = maxLifetimeMs;
+        this.leakDetectionMs = leakDetectionMs;
+        this.permits = new Semaphore(this.maxSize, true);
+
+        housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.scheduleWithFixedDelay(this::housekeep, 5, 5, TimeUnit.SECONDS);
+
+        ServerStats.register("dbPool", this::stats);
+    }
+
+    /**
+     * Opens minSize connections so the first requests don't pay the handshake.
+     * Throws if the database is unreachable, which lets MainServer refuse to start.
+     */
+    public void prewarm() throws SQLException {
+        while (total.get() < minSize) {
+            if (!reserveSlot()) break;
+            idle.offerLast(open());
+        }
+        System.out.println("DatabaseUtil: connection pool ready (" + total.get() + " open, max " + maxSize + ").");
+    }
+
+    /**
+     * Borrows a connection, waiting up to connectionTimeoutMs when maxSize connections are in use.
+     */
+    public Connection getConnection() throws SQLException {
+        if (shutdown) throw new SQLException("Connection pool is shut down.");
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(connectionTimeoutMs, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLException("Timed out after " + connectionTimeoutMs + " ms waiting for a database connection ("
+                        + inUse.size() + "/" + maxSize + " in use).");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", e);
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        borrows.increment();
+
+        try {
+            PooledConnection pooled = takeIdleOrOpen();
+            pooled.borrowedAt = System.currentTimeMillis();
+            pooled.borrowedBy = leakDetectionMs > 0 ? new Throwable("Connection borrowed here") : null;
+            pooled.leakReported = false;
+            inUse.put(pooled, Boolean.TRUE);
+            return wrap(pooled);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes every idle connection and refuses new borrows; connections in use are closed when returned.
+     */
+    public void shutdown() {
+        shutdown = true;
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            retire(pooled);
+        }
+    }
+
+    public String stats() {
+        long n = Math.max(1, borrows.sum());
+        return "active=" + inUse.size() + " idle=" + idle.size() + " total=" + total.get() + "/" + maxSize
+                + " borrows=" + borrows.sum() + " avgWaitMs=" + String.format("%.2f", waitNanos.sum() / n / 1_000_000.0)
+                + " maxWaitMs=" + String.format("%.2f", maxWaitNanos.get() / 1_000_000.0)
+                + " timeouts=" + timeouts.sum() + " created=" + created.sum() + " retired=" + retired.sum()
+                + " validationFailures=" + validationFailures.sum() + " leaks=" + leaks.sum();
+    }
+
+    // The caller holds a permit, so a free slot always exists: reuse an idle connection or open a new one.
+    private PooledConnection takeIdleOrOpen() throws SQLException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectionTimeoutMs);
+        while (true) {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isExpired(pooled)) {
+                    retire(pooled);
+                    continue;
+                }
+                if (System.currentTimeMillis() - pooled.lastUsedAt > validationIntervalMs && !isValid(pooled)) {
+                    validationFailures.increment();
+                    retire(pooled);
+                    continue;
+                }
+                return pooled;
+            }
+            if (reserveSlot()) return open();
+            // No slot left: the housekeeper holds it while opening a connection for the idle deque. Wait for that
+            // connection, waking up now and then in case the open failed and freed the slot instead.
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                timeouts.increment();
+                throw new SQLException("Timed out after " + connectionTimeoutMs + " ms waiting for a free connection slot.");
+            }
+            try {
+                pooled = idle.pollFirst(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(50)), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection.", e);
+            }
+            if (pooled != null) idle.offerFirst(pooled); // validated by the loop above
+        }
+    }
+
+    private boolean reserveSlot() {
+        int current;
+        do {
+            current = total.get();
+            if (current >= maxSize) return false;
+        } while (!total.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    // Opens a physical connection for a slot already counted in total.
+    private PooledConnection open() throws SQLException {
+        try {
+            PooledConnection pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+            created.increment();
+            return pooled;
+        } catch (SQLException e) {
+            total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.physical.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private boolean isExpired(PooledConnection pooled) {
+        return maxLifetimeMs > 0 && System.currentTimeMillis() - pooled.createdAt > maxLifetimeMs;
+    }
+
+    private void release(PooledConnection pooled) {
+        if (inUse.remove(pooled) == null) return; // already returned
+        pooled.borrowedBy = null;
+        pooled.lastUsedAt = System.currentTimeMillis();
+        boolean reusable = !shutdown && !isExpired(pooled);
+        if (reusable) {
+            try {
+                // Hand back a clean connection: no open transaction, default auto-commit.
+                if (pooled.physical.isClosed()) {
+                    reusable = false;
+                } else if (!pooled.physical.getAutoCommit()) {
+                    pooled.physical.rollback();
+                    pooled.physical.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                reusable = false;
+            }
+        }
+        if (reusable) {
+            idle.offerFirst(pooled); // LIFO keeps the hot connections hot
+        } else {
+            retire(pooled);
+        }
+        permits.release();
+    }
+
+    private void retire(PooledConnection pooled) {
+        total.decrementAndGet();
+        retired.increment();
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            // Already broken, nothing to do
+        }
+    }
+
+    private void housekeep() {
+        long now = System.currentTimeMillis();
+        if (leakDetectionMs > 0) {
+            for (PooledConnection pooled : inUse.keySet()) {
+                Throwable borrowedBy = pooled.borrowedBy;
+                if (!pooled.leakReported && borrowedBy != null && now - pooled.borrowedAt > leakDetectionMs) {
+                    pooled.leakReported = true;
+                    leaks.increment();
+                    System.err.println("DatabaseUtil: possible connection leak, held for " + (now - pooled.borrowedAt) + " ms:");
+                    borrowedBy.printStackTrace();
+                }
+            }
+        }
+        // Retire expired idle connections and top the pool back up to minSize.
+        for (PooledConnection pooled : idle) {
+            if (isExpired(pooled) && idle.remove(pooled)) {
+                retire(pooled);
+            }
+        }
+        try {
+            while (!shutdown && total.get() < minSize && reserveSlot()) {
+                idle.offerLast(open());
+            }
+        } catch (SQLException e) {
+            System.err.println("DatabaseUtil: could not refill connection pool: " + e.getMessage());
+        }
+    }
+
+    private Connection wrap(PooledConnection pooled) {
+        InvocationHandler handler = new InvocationHandler() {
+            private volatile boolean closed = false;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!closed) {
+                            closed = true;
+                            release(pooled);
+                        }
+                        return null;
+                    case "isClosed":
+                        return closed || pooled.physical.isClosed();
+                    case "toString":
+                        return "Pooled" + pooled.physical;
+                    // The physical connection never leaks out: closing it would bypass the pool
+                    case "unwrap":
+                        if (((Class<?>) args[0]).isInstance(proxy)) return proxy;
+                        throw new SQLException("A pooled connection cannot be unwrapped to " + ((Class<?>) args[0]).getName() + ".");
+                    case "isWrapperFor":
+                        return ((Class<?>) args[0]).isInstance(proxy);
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        if (closed) throw new SQLException("Connection has been returned to the pool.");
+                        try {
+                            return method.invoke(pooled.physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            }
+        };
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+    }
+}
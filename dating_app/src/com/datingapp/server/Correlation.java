@@ -0,0 +1,54 @@
+package com.datingapp.server;
+
+import com.datingapp.common.WireCodec;
+import jakarta.websocket.Session;
+import java.util.function.BiConsumer;
+
+/**
+ * The correlated command ("CORR:id:command") being handled on this thread, if any.
+ * While it is set, every reply to the requesting session is tagged with the command's id; broadcasts and
+ * messages to other sessions are not. {@link #bind} carries the scope over to asynchronous completions
+ * (password hashing, persisted messages) so their replies are tagged too.
+ */
+final class Correlation {
+
+    private static final ThreadLocal<Correlation> current = new ThreadLocal<>();
+
+    private final Session session;
+    private final long id;
+
+    Correlation(Session session, long id) {
+        this.session = session;
+        this.id = id;
+    }
+
+    /** Runs `action` with `scope` as the current correlation (null = none), restoring the previous one after. */
+    static void run(Correlation scope, Runnable action) {
+        Correlation previous = current.get();
+        current.set(scope);
+        try {
+            action.run();
+        } finally {
+            if (previous == null) current.remove();
+            else current.set(previous);
+        }
+    }
+
+    /** Wraps a completion callback so it runs in the correlation current at the time of the call. */
+    static <T, U> BiConsumer<T, U> bind(BiConsumer<T, U> callback) {
+        Correlation scope = current.get();
+        if (scope == null) return callback;
+        return (result, error) -> run(scope, () -> callback.accept(result, error));
+    }
+
+    /** The message, tagged "CORR:id:" if it answers the current correlated command of `session`. */
+    static String tag(Session session, String message) {
+        Correlation scope = current.get();
+        return scope != null && scope.session == session ? WireCodec.CORRELATION_PREFIX + scope.id + ":" + message : message;
+    }
+
+    static WireCodec.Frame tag(Session session, WireCodec.Frame frame) {
+        Correlation scope = current.get();
+        return scope != null && scope.session == session ? frame.withCorrelation(scope.id) : frame;
+    }
+}
@@ -1,7 +1,7 @@
 package com.datingapp.server;
 
+import com.datingapp.MainServer;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -21,6 +21,9 @@ public class DatabaseUtil {
     private static String DB_USER;
     private static String DB_PASSWORD;
     private static boolean propertiesLoaded = false;
+    // The pool is created on first use (PoolHolder) and never again once shut down
+    private static volatile boolean poolCreated = false;
+    private static volatile boolean poolClosed = false;
 
     // Static initializer to load properties.
     // This makes DatabaseUtil self-sufficient in loading its config if MainServer doesn't pass them.
@@ -78,7 +81,39 @@ public class DatabaseUtil {
     public DatabaseUtil() {}
 
 
+    /**
+     * Borrows a pooled connection. Closing it returns it to the pool.
+     */
     public static Connection getConnection() throws SQLException {
+        return pool().getConnection();
+    }
+
+    /**
+     * Opens the pool's minimum connections; called by MainServer before it accepts sockets.
+     */
+    public static void prewarmPool() throws SQLException {
+        pool().prewarm();
+    }
+
+    /**
+     * Shuts the pool down for good: later calls to getConnection() throw instead of opening a new pool.
+     */
+    public static void shutdownPool() {
+        poolClosed = true;
+        if (poolCreated) PoolHolder.POOL.shutdown();
+    }
+
+    private static ConnectionPool pool() throws SQLException {
+        if (poolClosed) throw new SQLException("Connection pool is shut down.");
+        return PoolHolder.POOL;
+    }
+
+    // Lazy holder: the class initializer creates the pool exactly once, on the first call to pool()
+    private static final class PoolHolder {
+        static final ConnectionPool POOL = createPool();
+    }
+
+    private static ConnectionPool createPool() {
         if (!propertiesLoaded && (DB_URL == null || DB_URL.contains("_fallback") || DB_URL.contains("_hardcoded") || DB_URL.contains("_placeholder"))) { 
             System.err.println("Database configuration not properly loaded. Attempting with critical placeholder defaults.");
             // Attempt placeholder defaults if initialization failed badly
@@ -87,7 +122,16 @@ public class DatabaseUtil {
             DB_PASSWORD = "password_placeholder";
              // This situation indicates a severe configuration problem.
         }
-        return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+        ConnectionPool pool = new ConnectionPool(DB_URL, DB_USER, DB_PASSWORD,
+                MainServer.getIntProperty("db.pool.minSize", 4),
+                MainServer.getIntProperty("db.pool.maxSize", 20),
+                MainServer.getIntProperty("db.pool.connectionTimeoutMs", 5000),
+                MainServer.getIntProperty("db.pool.validationIntervalMs", 500),
+                MainServer.getIntProperty("db.pool.maxLifetimeMs", 30 * 60 * 1000),
+                MainServer.getIntProperty("db.pool.leakDetectionMs", 30000));
+        poolCreated = true;
+        if (poolClosed) pool.shutdown(); // shutdownPool() ran while it was being created
+        return pool;
     }
 
     // close method (remains unchanged)
@@ -97,55 +141,100 @@ public class DatabaseUtil {
         }
     }
 
-    // getDmHistory method (remains unchanged)
+    /**
+     * Normalized key of the DM conversation between two users, identical in both directions.
+     * Must match the generated messages.conversation_id column (see SchemaMigrator V1).
+     */
+    public static long conversationId(int userId1, int userId2) {
+        return Math.min(userId1, userId2) * 4294967296L + Math.max(userId1, userId2);
+    }
+
     public static List<Map<String, Object>> getDmHistory(int userId1, int userId2, int limit) { 
-        List<Map<String, Object>> history = new ArrayList<>();
-        String sql = "SELECT m.content, m.timestamp, u.username AS sender_username " +
-                     "FROM (SELECT * FROM messages " +
-                     "      WHERE ((sender_id = ? AND receiver_id = ?) OR (sender_id = ? AND receiver_id = ?)) " +
-                     "            AND meeting_code = '_DM_' " + 
-                     "      ORDER BY timestamp DESC LIMIT ?) AS m " + 
-                     "JOIN users u ON m.sender_id = u.id " +
-                     "ORDER BY m.timestamp ASC"; 
-        Connection conn = null; PreparedStatement pstmt = null; ResultSet rs = null;
         try {
-            conn = getConnection(); pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, userId1); pstmt.setInt(2, userId2); pstmt.setInt(3, userId2); pstmt.setInt(4, userId1); pstmt.setInt(5, limit);
-            rs = pstmt.executeQuery();
-            while (rs.next()) {
-                Map<String, Object> message = new HashMap<>();
-                message.put("sender_username", rs.getString("sender_username"));
-                message.put("content", rs.getString("content"));
-                message.put("timestamp", rs.getTimestamp("timestamp").toLocalDateTime());
-                history.add(message);
-            }
-        } catch (SQLException e) { e.printStackTrace(); } finally { close(rs, pstmt, conn); }
-        return history;
+            return getDmHistory(userId1, userId2, 0, limit);
+        } catch (SQLException e) { e.printStackTrace(); }
+        return new ArrayList<>();
+    }
+
+    // Up to `limit` DMs of the pair with id < beforeId (0 = newest), oldest first.
+    // Keyset paging: one bounded range scan of idx_messages_dm_history, whatever the page depth.
+    // Throws on failure, so the history cache can tell an empty conversation from a failed query.
+    public static List<Map<String, Object>> getDmHistory(int userId1, int userId2, long beforeId, int limit) throws SQLException { 
+        String sql = "SELECT id, sender_id, content, timestamp FROM messages " +
+                     "WHERE conversation_id = ? AND id < ? " +
+                     "ORDER BY id DESC LIMIT ?"; 
+        try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, conversationId(userId1, userId2)); pstmt.setLong(2, beforeId > 0 ? beforeId : Long.MAX_VALUE); pstmt.setInt(3, limit);
+            return readHistory(conn, pstmt, true);
+        }
     }
 
-    // getMeetingCodeHistory method (remains unchanged)
     public static List<Map<String, Object>> getMeetingCodeHistory(String meetingCode, int limit) { 
-        List<Map<String, Object>> history = new ArrayList<>();
-        String sql = "SELECT m.content, m.timestamp, u.username AS sender_username " +
-                     "FROM (SELECT * FROM messages " +
-                     "      WHERE meeting_code = ? AND receiver_id IS NULL " + 
-                     "      ORDER BY timestamp DESC LIMIT ?) AS m " +
-                     "JOIN users u ON m.sender_id = u.id " +
-                     "ORDER BY m.timestamp ASC";
-        Connection conn = null; PreparedStatement pstmt = null; ResultSet rs = null;
         try {
-            conn = getConnection(); pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, meetingCode); pstmt.setInt(2, limit);
-            rs = pstmt.executeQuery();
+            return getMeetingCodeHistory(meetingCode, 0, limit);
+        } catch (SQLException e) { e.printStackTrace(); }
+        return new ArrayList<>();
+    }
+
+    // Up to `limit` room messages with id < beforeId (0 = newest), oldest first: one range scan of idx_messages_room_history.
+    // Ordered by id rather than timestamp: same insertion order, but unique and covered by the index.
+    public static List<Map<String, Object>> getMeetingCodeHistory(String meetingCode, long beforeId, int limit) throws SQLException { 
+        String sql = "SELECT id, sender_id, content, timestamp FROM messages " +
+                     "WHERE meeting_code = ? AND receiver_id IS NULL AND id < ? " + 
+                     "ORDER BY id DESC LIMIT ?";
+        try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, meetingCode); pstmt.setLong(2, beforeId > 0 ? beforeId : Long.MAX_VALUE); pstmt.setInt(3, limit);
+            return readHistory(conn, pstmt, true);
+        }
+    }
+
+    // Room messages with id > afterId, oldest first (session resumption when the history cache can't cover the gap).
+    public static List<Map<String, Object>> getMeetingCodeHistoryAfter(String meetingCode, long afterId, int limit) throws SQLException {
+        String sql = "SELECT id, sender_id, content, timestamp FROM messages " +
+                     "WHERE meeting_code = ? AND receiver_id IS NULL AND id > ? " +
+                     "ORDER BY id ASC LIMIT ?";
+        try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, meetingCode); pstmt.setLong(2, afterId); pstmt.setInt(3, limit);
+            return readHistory(conn, pstmt, false);
+        }
+    }
+
+    // DMs received by the user with id > afterId, oldest first (range scan of the receiver_id foreign key index).
+    public static List<Map<String, Object>> getDirectMessagesToUserAfter(int receiverId, long afterId, int limit) throws SQLException {
+        String sql = "SELECT id, sender_id, content, timestamp FROM messages " +
+                     "WHERE receiver_id = ? AND id > ? " +
+                     "ORDER BY id ASC LIMIT ?";
+        try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, receiverId); pstmt.setLong(2, afterId); pstmt.setInt(3, limit);
+            return readHistory(conn, pstmt, false);
+        }
+    }
+
+    // Reads history rows and returns them oldest first (reversing newest-first results).
+    // Sender names come from the UserDirectory instead of a join on users, resolved on the caller's connection.
+    // Rows of deleted users keep a null sender_username, so a page still has as many rows as were read and its
+    // oldest id remains a valid cursor; ChatServerEndpoint leaves them out of what it sends, as the join did.
+    private static List<Map<String, Object>> readHistory(Connection conn, PreparedStatement pstmt, boolean newestFirst) throws SQLException {
+        List<Map<String, Object>> history = new ArrayList<>();
+        List<Integer> senderIds = new ArrayList<>();
+        try (ResultSet rs = pstmt.executeQuery()) {
             while (rs.next()) {
                 Map<String, Object> message = new HashMap<>();
-                message.put("sender_username", rs.getString("sender_username"));
+                message.put("id", rs.getLong("id"));
                 message.put("content", rs.getString("content"));
                 message.put("timestamp", rs.getTimestamp("timestamp").toLocalDateTime());
                 history.add(message);
+                senderIds.add(rs.getInt("sender_id"));
             }
-        } catch (SQLException e) { e.printStackTrace(); } finally { close(rs, pstmt, conn); }
-        return history;
+        }
+        Map<Integer, String> senders = UserDirectory.namesOf(conn, senderIds);
+        List<Map<String, Object>> oldestFirst = new ArrayList<>(history.size());
+        for (int n = 0; n < history.size(); n++) {
+            int i = newestFirst ? history.size() - 1 - n : n;
+            history.get(i).put("sender_username", senders.get(senderIds.get(i)));
+            oldestFirst.add(history.get(i));
+        }
+        return oldestFirst;
     }
     
     // Remove setDbUrl, setDbUser, setDbPassword if loading directly in static block
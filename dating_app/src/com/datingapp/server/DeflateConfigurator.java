@@ -0,0 +1,44 @@
+package com.datingapp.server;
+
+import com.datingapp.MainServer;
+import com.datingapp.common.PerMessageDeflate;
+import jakarta.websocket.Extension;
+import java.util.ArrayList;
+import java.util.List;
+import org.glassfish.tyrus.core.TyrusServerEndpointConfigurator;
+
+/**
+ * Endpoint configurator that installs permessage-deflate ({@link PerMessageDeflate}) for clients offering it.
+ * Compression applies to messages of at least websocket.deflate.thresholdBytes;
+ * websocket.deflate.enabled=false leaves every connection uncompressed.
+ * Incoming messages are limited to websocket.maxMessageBytes, compressed or not.
+ */
+public class DeflateConfigurator extends TyrusServerEndpointConfigurator {
+
+    static final boolean ENABLED = Boolean.parseBoolean(MainServer.getProperty("websocket.deflate.enabled", "true"));
+    static final int MAX_MESSAGE_BYTES = Math.max(1024, MainServer.getIntProperty("websocket.maxMessageBytes", 4 * 1024 * 1024));
+    static final PerMessageDeflate DEFLATE = new PerMessageDeflate(
+            MainServer.getIntProperty("websocket.deflate.thresholdBytes", 1024),
+            MainServer.getIntProperty("websocket.deflate.level", 6),
+            MAX_MESSAGE_BYTES);
+
+    static {
+        ServerStats.register("deflate", () -> (ENABLED ? "threshold=" + DEFLATE.getThresholdBytes() + " " : "disabled ")
+                + PerMessageDeflate.summary());
+    }
+
+    @Override
+    public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+        if (!ENABLED) return super.getNegotiatedExtensions(installed, requested);
+        List<Extension> withDeflate = new ArrayList<>(installed);
+        withDeflate.add(DEFLATE);
+        return super.getNegotiatedExtensions(withDeflate, requested);
+    }
+
+    /**
+     * Releases the compression pools. Called by MainServer once the server is stopped.
+     */
+    public static void close() {
+        DEFLATE.close();
+    }
+}
@@ -0,0 +1,401 @@
+package com.datingapp.server;
+
+import com.datingapp.MainServer;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory ring buffer of the most recent messages of each room and DM conversation.
+ * <ul>
+ *   <li>a conversation is warmed from MySQL the first time its history is requested;</li>
+ *   <li>committed messages are appended by MessagePersister (in id order) to conversations already cached;</li>
+ *   <li>history pages that fall inside the ring are served without touching the database;</li>
+ *   <li>least recently used conversations are evicted when history.cache.maxMegabytes is exceeded; the budget
+ *       counts each conversation's fixed overhead and ring array as well as its messages.</li>
+ * </ul>
+ * Rings grow with their conversation up to history.cache.perConversation slots, and a room found empty is only
+ * kept if the requester is in it, so requests for made-up room codes cost next to nothing.
+ * Rows have the same shape as the DatabaseUtil history queries (id, sender_username, content, timestamp), oldest first.
+ * {@link #since} serves session resumption: everything after a given id, when the ring still covers it.
+ * <p>
+ * A conversation's monitor is never held across a database query, so appends (on the MessagePersister writer
+ * thread) and evictions never wait on I/O.
+ */
+public class HistoryCache {
+
+    /** Loads up to `limit` rows with id < beforeId (0 = newest), oldest first. */
+    @FunctionalInterface
+    public interface Loader {
+        List<Map<String, Object>> load(long beforeId, int limit) throws SQLException;
+    }
+
+    private static final boolean ENABLED = Boolean.parseBoolean(MainServer.getProperty("history.cache.enabled", "true"));
+    private static final int CAPACITY = Math.max(1, MainServer.getIntProperty("history.cache.perConversation", 200));
+    private static final long MAX_BYTES = Math.max(1, MainServer.getIntProperty("history.cache.maxMegabytes", 64)) * 1024L * 1024L;
+    // Rough heap footprint of an empty conversation: the object, its map entry and key
+    private static final long CONVERSATION_OVERHEAD = 200;
+    private static final int MIN_RING = 8;
+    private static final CachedMessage[] EMPTY_RING = new CachedMessage[0];
+
+    // Access-ordered: iteration starts at the least recently used conversation.
+    private static final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(256, 0.75f, true);
+    private static final AtomicLong totalBytes = new AtomicLong();
+
+    // Counters, reported through ServerStats
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder deepReads = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    static {
+        ServerStats.register("historyCache", () -> {
+            long h = hits.sum(), requests = h + misses.sum() + deepReads.sum();
+            int count;
+            synchronized (conversations) { count = conversations.size(); }
+            return "enabled=" + ENABLED + " conversations=" + count
+                    + " memoryKB=" + totalBytes.get() / 1024 + "/" + MAX_BYTES / 1024
+                    + " hits=" + h + " misses=" + misses.sum() + " deepReads=" + deepReads.sum()
+                    + " hitRatio=" + (requests == 0 ? "n/a" : String.format("%.1f%%", 100.0 * h / requests))
+                    + " evictions=" + evictions.sum();
+        });
+    }
+
+    private static final class CachedMessage {
+        final long id;
+        final String sender;
+        final String content;
+        final LocalDateTime timestamp;
+
+        CachedMessage(long id, String sender, String content, LocalDateTime timestamp) {
+            this.id = id;
+            this.sender = sender;
+            this.content = content;
+            this.timestamp = timestamp;
+        }
+
+        // Rough heap footprint: object headers + fields + the two strings' chars. sender is null for deleted users.
+        long bytes() {
+            return 96 + 2L * ((sender == null ? 0 : sender.length()) + content.length());
+        }
+
+        Map<String, Object> toRow() {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", id);
+            row.put("sender_username", sender);
+            row.put("content", content);
+            row.put("timestamp", timestamp);
+            return row;
+        }
+    }
+
+    // Guarded by its own monitor.
+    private static final class Conversation {
+        CachedMessage[] ring = EMPTY_RING; // grown on demand up to CAPACITY slots
+        int head;          // index of the oldest message
+        int size;
+        long bytes = CONVERSATION_OVERHEAD; // messages + ring array + overhead; part of totalBytes until released
+        volatile long approximateBytes = CONVERSATION_OVERHEAD; // bytes, readable without the monitor (eviction estimate)
+        volatile boolean loaded;    // warmed from the database
+        boolean loading;
+        boolean complete;  // the ring holds the whole conversation, nothing older exists
+        long coveredFrom;  // every message with a greater id is in the ring
+        boolean evicted;
+
+        Conversation() {
+            totalBytes.addAndGet(CONVERSATION_OVERHEAD);
+        }
+
+        CachedMessage get(int i) {
+            return ring[(head + i) % ring.length];
+        }
+
+        long newestId() {
+            return size == 0 ? 0 : get(size - 1).id;
+        }
+
+        void add(CachedMessage m) {
+            if (size == CAPACITY) {
+                bytes -= ring[head].bytes(); // approximateBytes follows in the add below
+                totalBytes.addAndGet(-ring[head].bytes());
+                coveredFrom = ring[head].id;
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+                complete = false;
+            } else if (size == ring.length) {
+                grow();
+            }
+            ring[(head + size) % ring.length] = m;
+            size++;
+            bytes += m.bytes();
+            approximateBytes = bytes;
+            totalBytes.addAndGet(m.bytes());
+        }
+
+        // Copies the messages, oldest first, into a larger array (8 bytes per slot counted)
+        private void grow() {
+            CachedMessage[] larger = new CachedMessage[Math.min(CAPACITY, Math.max(MIN_RING, ring.length * 2))];
+            for (int i = 0; i < size; i++) larger[i] = get(i);
+            long delta = 8L * (larger.length - ring.length);
+            bytes += delta;
+            totalBytes.addAndGet(delta);
+            ring = larger;
+            head = 0;
+        }
+
+        // Drops the messages, keeping the ring for a reload
+        void clear() {
+            long messageBytes = 0;
+            for (int i = 0; i < size; i++) messageBytes += get(i).bytes();
+            totalBytes.addAndGet(-messageBytes);
+            Arrays.fill(ring, null);
+            head = size = 0;
+            bytes -= messageBytes;
+            approximateBytes = bytes;
+        }
+
+        // Drops everything, the conversation leaves the cache: its whole footprint leaves totalBytes
+        void release() {
+            totalBytes.addAndGet(-bytes);
+            ring = EMPTY_RING;
+            head = size = 0;
+            bytes = approximateBytes = 0;
+        }
+    }
+
+    private HistoryCache() {}
+
+    public static String roomKey(String meetingCode) {
+        return "room:" + meetingCode;
+    }
+
+    public static String dmKey(int userId1, int userId2) {
+        return "dm:" + DatabaseUtil.conversationId(userId1, userId2);
+    }
+
+    /** DMs received by one user, tracked while they are logged in so a resumed session can replay them. */
+    public static String inboxKey(int userId) {
+        return "inbox:" + userId;
+    }
+
+    /**
+     * Records a committed message. Ignored unless the conversation is cached: an uncached one
+     * will read it from the database when it is warmed. Must be called in id order.
+     */
+    public static void append(String key, long id, String sender, String content) {
+        if (!ENABLED) return;
+        Conversation c;
+        synchronized (conversations) {
+            c = conversations.get(key);
+        }
+        if (c == null) return;
+        synchronized (c) {
+            if (c.evicted || id <= c.newestId()) return;
+            c.add(new CachedMessage(id, sender, content, LocalDateTime.now().withNano(0)));
+        }
+        evictIfOverBudget();
+    }
+
+    /**
+     * Starts caching a conversation that has no history to load, e.g. a user's incoming DMs from now on:
+     * messages with an id above fromId will be appended. No-op if the key is already cached.
+     */
+    public static void track(String key, long fromId) {
+        if (!ENABLED) return;
+        synchronized (conversations) {
+            if (conversations.containsKey(key)) return;
+            Conversation c = new Conversation();
+            c.loaded = true;
+            c.coveredFrom = fromId;
+            conversations.put(key, c);
+        }
+    }
+
+    /** Stops caching a conversation, e.g. the inbox of a user whose session can no longer be resumed. */
+    public static void forget(String key) {
+        Conversation c;
+        synchronized (conversations) {
+            c = conversations.remove(key);
+        }
+        if (c != null) release(c);
+    }
+
+    // Removes `c` if it is still the conversation cached under `key`
+    private static void forget(String key, Conversation c) {
+        boolean removed;
+        synchronized (conversations) {
+            removed = conversations.remove(key, c);
+        }
+        if (removed) release(c);
+    }
+
+    private static void release(Conversation c) {
+        synchronized (c) {
+            c.evicted = true;
+            c.release();
+        }
+    }
+
+    /**
+     * Returns the messages with id > afterId, oldest first, or null if the ring does not cover them all
+     * (conversation not cached, or older messages already pushed out). At most `limit` rows are returned.
+     */
+    public static List<Map<String, Object>> since(String key, long afterId, int limit) {
+        if (!ENABLED) return null;
+        Conversation c;
+        synchronized (conversations) {
+            c = conversations.get(key);
+        }
+        if (c == null) {
+            misses.increment();
+            return null;
+        }
+        synchronized (c) {
+            if (!c.loaded || c.evicted || afterId < c.coveredFrom) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (int i = 0; i < c.size && rows.size() < limit; i++) {
+                if (c.get(i).id > afterId) rows.add(c.get(i).toRow());
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Returns up to `limit` messages with id < beforeId (0 = newest), oldest first,
+     * from the ring when possible and from the loader otherwise (an empty list if the loader fails).
+     *
+     * @param cacheIfEmpty Whether to keep the conversation cached if it turns out to have no messages
+     *                     (false for a room the requester is not in: anyone can ask for any code).
+     */
+    public static List<Map<String, Object>> page(String key, long beforeId, int limit, boolean cacheIfEmpty, Loader loader) {
+        if (!ENABLED) return load(loader, beforeId, limit);
+        Conversation c;
+        boolean warm = false;
+        synchronized (conversations) {
+            c = conversations.get(key);
+            if (c == null) {
+                c = new Conversation();
+                conversations.put(key, c);
+            }
+        }
+        synchronized (c) {
+            if (c.loaded && !c.evicted) {
+                List<Map<String, Object>> rows = fromRing(c, beforeId, limit);
+                if (rows != null) {
+                    hits.increment();
+                    return rows;
+                }
+            } else if (!c.loading && !c.evicted) {
+                c.loading = true;
+                warm = true;
+            }
+        }
+        if (!warm) {
+            // Older than the ring, evicted, or someone else is warming it: read through, outside the lock
+            if (c.loaded) deepReads.increment(); else misses.increment();
+            return load(loader, beforeId, limit);
+        }
+        misses.increment();
+
+        List<Map<String, Object>> newest;
+        try {
+            newest = loader.load(0, CAPACITY);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            newest = null;
+        }
+        List<Map<String, Object>> rows = null;
+        // Failed: not cached, the next request retries. Empty: cached only if wanted (a new room being joined),
+        // its first messages are then appended as they commit.
+        boolean drop = newest == null || (newest.isEmpty() && !cacheIfEmpty);
+        synchronized (c) {
+            c.loading = false;
+            if (!c.evicted && !drop) {
+                merge(c, newest);
+                rows = fromRing(c, beforeId, limit);
+            }
+        }
+        if (drop) {
+            forget(key, c);
+            return newest == null ? new ArrayList<>() : newest;
+        }
+        evictIfOverBudget();
+        return rows != null ? rows : load(loader, beforeId, limit);
+    }
+
+    // Reads through to the database; a failure is logged and answered with no rows, as DatabaseUtil always did.
+    private static List<Map<String, Object>> load(Loader loader, long beforeId, int limit) {
+        try {
+            return loader.load(beforeId, limit);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    // Null when the ring cannot answer (the page reaches older than what is cached).
+    private static List<Map<String, Object>> fromRing(Conversation c, long beforeId, int limit) {
+        int end = c.size; // exclusive index of the first message >= beforeId
+        if (beforeId > 0) {
+            while (end > 0 && c.get(end - 1).id >= beforeId) end--;
+        }
+        if (end < limit && !c.complete) return null;
+        List<Map<String, Object>> rows = new ArrayList<>(Math.min(end, limit));
+        for (int i = Math.max(0, end - limit); i < end; i++) {
+            rows.add(c.get(i).toRow());
+        }
+        return rows;
+    }
+
+    // Installs the rows loaded from the database, keeping messages appended while the query ran.
+    private static void merge(Conversation c, List<Map<String, Object>> newest) {
+        long lastLoadedId = newest.isEmpty() ? 0 : (Long) newest.get(newest.size() - 1).get("id");
+        List<CachedMessage> appended = new ArrayList<>();
+        for (int i = 0; i < c.size; i++) {
+            if (c.get(i).id > lastLoadedId) appended.add(c.get(i));
+        }
+        c.clear();
+        for (Map<String, Object> row : newest) {
+            c.add(new CachedMessage((Long) row.get("id"), (String) row.get("sender_username"),
+                    (String) row.get("content"), (LocalDateTime) row.get("timestamp")));
+        }
+        c.complete = newest.size() < CAPACITY;
+        c.coveredFrom = c.complete ? 0 : c.get(0).id - 1;
+        for (CachedMessage m : appended) c.add(m);
+        c.loaded = true;
+    }
+
+    // Victims are unlinked under the map lock and cleared after it is released: no conversation monitor is
+    // taken while every other room waits on the map.
+    private static void evictIfOverBudget() {
+        long excess = totalBytes.get() - MAX_BYTES;
+        if (excess <= 0) return;
+        List<Conversation> victims = new ArrayList<>();
+        synchronized (conversations) {
+            Iterator<Conversation> it = conversations.values().iterator();
+            while (excess > 0 && it.hasNext()) {
+                Conversation c = it.next();
+                it.remove();
+                victims.add(c);
+                excess -= c.approximateBytes;
+            }
+        }
+        for (Conversation c : victims) {
+            release(c);
+            evictions.increment();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.datingapp.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets (1us .. ~35min).
+ * Percentiles are approximate: they report the upper bound of the bucket they fall in (capped at the max seen).
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        // Bucket i holds values in [2^(i-1), 2^i) microseconds; bucket 0 holds sub-microsecond values.
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        total.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    /**
+     * Returns the approximate value in microseconds below which the given fraction (0..1) of samples fall.
+     */
+    public long percentileMicros(double fraction) {
+        long n = total.sum();
+        if (n == 0) return 0;
+        long threshold = (long) Math.ceil(n * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= threshold) {
+                return Math.min(i == 0 ? 1 : 1L << i, maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public String summary() {
+        long n = total.sum();
+        return "count=" + n
+                + " avgUs=" + (n == 0 ? 0 : totalMicros.sum() / n)
+                + " p50Us=" + percentileMicros(0.50)
+                + " p90Us=" + percentileMicros(0.90)
+                + " p99Us=" + percentileMicros(0.99)
+                + " maxUs=" + maxMicros.get();
+    }
+}
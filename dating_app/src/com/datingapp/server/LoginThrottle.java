@@ -0,0 +1,98 @@
+package com.datingapp.server;
+
+import com.datingapp.MainServer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Failed-login throttling per (username, client IP) pair and per client IP, checked before any password is hashed.
+ * After login.throttle.maxFailuresPerUser failures for one account from one IP (or maxFailuresPerIp failures from
+ * an IP, whatever the accounts) within login.throttle.windowSeconds, further attempts are refused until the window
+ * has passed. The user counter is keyed by IP too, so failures from elsewhere cannot lock a real user out of their
+ * account; attempts on unknown usernames only count against the IP. A successful login clears the pair's counter.
+ */
+public class LoginThrottle {
+
+    private static final int MAX_FAILURES_PER_USER = MainServer.getIntProperty("login.throttle.maxFailuresPerUser", 5);
+    private static final int MAX_FAILURES_PER_IP = MainServer.getIntProperty("login.throttle.maxFailuresPerIp", 20);
+    private static final long WINDOW_MS = MainServer.getIntProperty("login.throttle.windowSeconds", 300) * 1000L;
+
+    private static final class Window {
+        long startedAt;
+        int failures;
+    }
+
+    private static final Map<String, Window> byUser = new ConcurrentHashMap<>(); // keyed by userKey(username, ip)
+    private static final Map<String, Window> byIp = new ConcurrentHashMap<>();
+    private static final LongAdder throttled = new LongAdder();
+
+    static {
+        ServerStats.register("loginThrottle", () -> "trackedUsers=" + byUser.size() + " trackedIps=" + byIp.size()
+                + " throttled=" + throttled.sum());
+    }
+
+    private LoginThrottle() {}
+
+    /**
+     * @return false if the user or the IP has too many recent failures.
+     */
+    public static boolean allow(String username, String ip) {
+        long now = System.currentTimeMillis();
+        if (exceeded(byUser, userKey(username, ip), MAX_FAILURES_PER_USER, now) || exceeded(byIp, ip, MAX_FAILURES_PER_IP, now)) {
+            throttled.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /** A wrong password for an existing user. */
+    public static void recordFailure(String username, String ip) {
+        long now = System.currentTimeMillis();
+        record(byUser, userKey(username, ip), now);
+        record(byIp, ip, now);
+        if (byUser.size() + byIp.size() > 10000) purgeExpired(now);
+    }
+
+    /** A login attempt for a username that does not exist: counted against the IP only. */
+    public static void recordUnknownUser(String ip) {
+        long now = System.currentTimeMillis();
+        record(byIp, ip, now);
+        if (byUser.size() + byIp.size() > 10000) purgeExpired(now);
+    }
+
+    public static void recordSuccess(String username, String ip) {
+        String key = userKey(username, ip);
+        if (key != null) byUser.remove(key);
+    }
+
+    private static String userKey(String username, String ip) {
+        return username == null ? null : username + '\n' + ip;
+    }
+
+    private static boolean exceeded(Map<String, Window> windows, String key, int max, long now) {
+        if (key == null || max <= 0) return false;
+        Window w = windows.get(key);
+        if (w == null) return false;
+        synchronized (w) {
+            return now - w.startedAt < WINDOW_MS && w.failures >= max;
+        }
+    }
+
+    private static void record(Map<String, Window> windows, String key, long now) {
+        if (key == null) return;
+        Window w = windows.computeIfAbsent(key, k -> new Window());
+        synchronized (w) {
+            if (now - w.startedAt >= WINDOW_MS) {
+                w.startedAt = now;
+                w.failures = 0;
+            }
+            w.failures++;
+        }
+    }
+
+    private static void purgeExpired(long now) {
+        byUser.values().removeIf(w -> now - w.startedAt >= WINDOW_MS);
+        byIp.values().removeIf(w -> now - w.startedAt >= WINDOW_MS);
+    }
+}
@@ -0,0 +1,339 @@
+package com.datingapp.server;
+
+import com.datingapp.MainServer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * Write-behind persistence for chat messages and DMs.
+ * Inserts are queued and a single writer thread flushes them as one JDBC batch and one commit
+ * (group commit) when persistence.batchSize rows are pending or persistence.flushIntervalMs has elapsed.
+ * <p>
+ * persistence.mode selects when a message is delivered:
+ * <ul>
+ *   <li>ACK_AFTER_COMMIT: the returned future completes after the batch holding the row committed;</li>
+ *   <li>ASYNC: the future completes immediately and the row is persisted in the background.</li>
+ * </ul>
+ * {@link #shutdown(long)} drains everything still queued, so stopping the server loses no rows.
+ * Row ids are allocated here in queue order, so a message has its id, used as its sequence number by clients,
+ * before it is written, and batches commit in id order. They come from blocks of persistence.idBlockSize ids
+ * reserved (and committed) in the message_sequence table before any of them is handed out: an id that may
+ * have been broadcast is never handed out again, even after a crash, and other servers sharing the database
+ * reserve other blocks. Anything else inserting messages must take its ids from message_sequence as well.
+ * An optional onCommitted callback receives the row id; callbacks run on the writer thread, in id order.
+ * The returned futures are completed off the writer thread, on a serial queue of the CommandExecutor (still in
+ * id order), so what senders chain on them (broadcasts, DM delivery) never delays the next batch.
+ * <p>
+ * If a batch fails, its rows are retried one by one: only the offending rows are lost. In ASYNC mode those
+ * messages were already delivered; each drop is logged.
+ */
+public class MessagePersister {
+
+    public enum Mode { ACK_AFTER_COMMIT, ASYNC }
+
+    private static final String INSERT_SQL = "INSERT INTO messages (id, sender_id, receiver_id, content, meeting_code) VALUES (?, ?, ?, ?, ?)";
+
+    private static final Mode MODE = parseMode(MainServer.getProperty("persistence.mode", "ACK_AFTER_COMMIT"));
+    private static final int BATCH_SIZE = Math.max(1, MainServer.getIntProperty("persistence.batchSize", 200));
+    private static final long FLUSH_INTERVAL_MS = Math.max(1, MainServer.getIntProperty("persistence.flushIntervalMs", 10));
+    private static final int ID_BLOCK_SIZE = Math.max(1, MainServer.getIntProperty("persistence.idBlockSize", 100));
+    private static final String RESERVE_SQL = "UPDATE message_sequence SET next_id = "
+            + "LAST_INSERT_ID(GREATEST(next_id, (SELECT COALESCE(MAX(id), 0) + 1 FROM messages)) + ?) WHERE name = 'messages'";
+
+    // The queue itself is unbounded: its capacity is enforced by `slots`, acquired before taking sequenceLock,
+    // so a full queue blocks the sender without holding the lock.
+    private static final BlockingQueue<PendingMessage> queue = new LinkedBlockingQueue<>();
+    private static final Semaphore slots =
+            new Semaphore(Math.max(BATCH_SIZE, MainServer.getIntProperty("persistence.queue.capacity", 10000)));
+
+    // Id allocation and queue insertion happen together under this lock, so the queue is always in id order.
+    private static final Object sequenceLock = new Object();
+    private static long nextId, blockEnd; // guarded by sequenceLock: ids nextId..blockEnd-1 are reserved, unused
+    private static volatile long lastId; // the most recently queued id
+
+    private static final Object lifecycleLock = new Object();
+    private static Thread writer;
+    private static volatile boolean stopping = false;
+
+    // Counters, reported through ServerStats
+    private static final LongAdder enqueued = new LongAdder();
+    private static final LongAdder persisted = new LongAdder();
+    private static final LongAdder failedRows = new LongAdder();
+    private static final LongAdder batches = new LongAdder();
+    private static final LatencyHistogram commitLatency = new LatencyHistogram();
+
+    // Completes the futures of flushed batches, in the order they were flushed.
+    private static final Executor delivery = CommandExecutor.serial();
+
+    static {
+        ServerStats.register("persistence", () -> "mode=" + MODE + " queued=" + queue.size() + " enqueued=" + enqueued.sum()
+                + " persisted=" + persisted.sum() + " failedRows=" + failedRows.sum() + " batches=" + batches.sum()
+                + " avgBatch=" + (batches.sum() == 0 ? 0 : persisted.sum() / batches.sum())
+                + " flush " + commitLatency.summary());
+    }
+
+    private static final class PendingMessage {
+        final long id;
+        final int senderId;
+        final Integer receiverId;
+        final String content;
+        final String meetingCode;
+        final LongConsumer onCommitted;
+        final CompletableFuture<Long> committed = new CompletableFuture<>();
+        SQLException failure; // set by the writer if the row could not be inserted
+
+        PendingMessage(long id, int senderId, Integer receiverId, String content, String meetingCode, LongConsumer onCommitted) {
+            this.id = id;
+            this.senderId = senderId;
+            this.receiverId = receiverId;
+            this.content = content;
+            this.meetingCode = meetingCode;
+            this.onCommitted = onCommitted;
+        }
+    }
+
+    private MessagePersister() {}
+
+    /**
+     * Reserves the first block of message ids and starts the writer. Called by MainServer at startup;
+     * a failure means the database is unusable and the server should not start.
+     */
+    public static void start() throws SQLException {
+        synchronized (sequenceLock) {
+            if (nextId == blockEnd) reserveIds();
+            if (lastId == 0) lastId = nextId - 1;
+        }
+        ensureStarted();
+    }
+
+    /**
+     * @return The id of the most recently queued message (0 if none yet).
+     */
+    public static long lastAssignedId() {
+        return lastId;
+    }
+
+    /**
+     * Queues a message row. receiverId is null for meeting-code messages.
+     * Blocks the calling command thread (never an I/O thread) while the queue is full.
+     *
+     * @return A future that completes with the message id when the message may be delivered, according to persistence.mode.
+     *         In ACK_AFTER_COMMIT mode it fails if the batch could not be committed.
+     */
+    public static CompletableFuture<Long> enqueue(int senderId, Integer receiverId, String content, String meetingCode) {
+        return enqueue(senderId, receiverId, content, meetingCode, null);
+    }
+
+    /**
+     * Same as {@link #enqueue(int, Integer, String, String)}; onCommitted is called with the row id once it is committed,
+     * whatever persistence.mode is. It runs on the writer thread and must be quick.
+     */
+    public static CompletableFuture<Long> enqueue(int senderId, Integer receiverId, String content, String meetingCode, LongConsumer onCommitted) {
+        ensureStarted();
+        if (stopping) return failed(new IllegalStateException("Message persistence is shut down."));
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed(e);
+        }
+        PendingMessage message;
+        try {
+            synchronized (sequenceLock) {
+                if (nextId == blockEnd) reserveIds();
+                message = new PendingMessage(nextId++, senderId, receiverId, content, meetingCode, onCommitted);
+                queue.add(message);
+                lastId = message.id;
+            }
+        } catch (SQLException e) {
+            slots.release();
+            return failed(e);
+        }
+        enqueued.increment();
+        return MODE == Mode.ASYNC ? CompletableFuture.completedFuture(message.id) : message.committed;
+    }
+
+    private static CompletableFuture<Long> failed(Exception e) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    // Caller holds sequenceLock. Takes the next ID_BLOCK_SIZE ids of message_sequence in one autocommitted update
+    // (LAST_INSERT_ID(expr) returns the new value to this connection), skipping any id already in the table.
+    // Ids left unused in the previous block are abandoned, never handed out again.
+    private static void reserveIds() throws SQLException {
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            conn.setAutoCommit(true);
+            try (PreparedStatement pstmt = conn.prepareStatement(RESERVE_SQL)) {
+                pstmt.setInt(1, ID_BLOCK_SIZE);
+                if (pstmt.executeUpdate() != 1) throw new SQLException("message_sequence has no 'messages' row (schema not migrated?).");
+            }
+            try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT LAST_INSERT_ID()")) {
+                if (!rs.next()) throw new SQLException("No id block reserved.");
+                blockEnd = rs.getLong(1);
+                nextId = blockEnd - ID_BLOCK_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting messages and waits for the writer to flush what is queued.
+     */
+    public static void shutdown(long timeoutSeconds) {
+        Thread w;
+        synchronized (lifecycleLock) {
+            stopping = true;
+            w = writer;
+        }
+        if (w == null) return;
+        try {
+            w.join(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+            if (w.isAlive()) {
+                System.err.println("MessagePersister: " + queue.size() + " message(s) not flushed at shutdown.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void ensureStarted() {
+        synchronized (lifecycleLock) {
+            if (writer != null || stopping) return;
+            writer = new Thread(MessagePersister::runWriter, "message-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private static void runWriter() {
+        List<PendingMessage> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                PendingMessage first = queue.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (stopping && queue.isEmpty()) return;
+                    continue;
+                }
+                batch.add(first);
+                // Give concurrent senders up to one flush interval to join this batch.
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS);
+                while (batch.size() < BATCH_SIZE) {
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= BATCH_SIZE || remaining <= 0) break;
+                    PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                slots.release(batch.size());
+                flush(batch);
+            } catch (InterruptedException e) {
+                // Only stop once everything queued has been written.
+                if (queue.isEmpty()) return;
+            } catch (RuntimeException e) {
+                System.err.println("MessagePersister: unexpected writer error: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private static void flush(List<PendingMessage> batch) {
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            try {
+                insert(conn, batch);
+            } catch (SQLException e) {
+                // One bad row (e.g. a sender deleted meanwhile) fails the whole batch: retry row by row so only it is lost.
+                System.err.println("MessagePersister: batch of " + batch.size() + " message(s) failed (" + e.getMessage() + "), retrying row by row.");
+                for (PendingMessage m : batch) {
+                    try {
+                        insert(conn, List.of(m));
+                    } catch (SQLException rowError) {
+                        m.failure = rowError;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("MessagePersister: no connection to persist " + batch.size() + " message(s): " + e.getMessage());
+            for (PendingMessage m : batch) m.failure = e;
+        }
+        int committed = 0;
+        for (PendingMessage m : batch) {
+            if (m.failure != null) {
+                failedRows.increment();
+                if (MODE == Mode.ASYNC) {
+                    System.err.println("MessagePersister: message " + m.id + " from user " + m.senderId + " dropped (already delivered, ASYNC mode): " + m.failure.getMessage());
+                } else {
+                    System.err.println("MessagePersister: message " + m.id + " from user " + m.senderId + " not persisted: " + m.failure.getMessage());
+                }
+                continue;
+            }
+            committed++;
+            if (m.onCommitted != null) {
+                try {
+                    m.onCommitted.accept(m.id);
+                } catch (RuntimeException e) {
+                    System.err.println("MessagePersister: onCommitted callback failed: " + e.getMessage());
+                }
+            }
+        }
+        if (committed > 0) {
+            batches.increment();
+            persisted.add(committed);
+            commitLatency.recordNanos(System.nanoTime() - start);
+        }
+        List<PendingMessage> flushed = new ArrayList<>(batch); // the writer reuses `batch`
+        delivery.execute(() -> {
+            for (PendingMessage m : flushed) {
+                if (m.failure != null) m.committed.completeExceptionally(m.failure);
+                else m.committed.complete(m.id);
+            }
+        });
+    }
+
+    // Inserts the rows in one JDBC batch and one commit; rolled back entirely on failure.
+    private static void insert(Connection conn, List<PendingMessage> rows) throws SQLException {
+        conn.setAutoCommit(false);
+        try (PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL)) {
+            for (PendingMessage m : rows) {
+                pstmt.setLong(1, m.id);
+                pstmt.setInt(2, m.senderId);
+                if (m.receiverId != null) pstmt.setInt(3, m.receiverId); else pstmt.setNull(3, Types.INTEGER);
+                pstmt.setString(4, m.content);
+                pstmt.setString(5, m.meetingCode);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        }
+    }
+
+    private static Mode parseMode(String value) {
+        try {
+            return Mode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown persistence.mode '" + value + "', using ACK_AFTER_COMMIT.");
+            return Mode.ACK_AFTER_COMMIT;
+        }
+    }
+}
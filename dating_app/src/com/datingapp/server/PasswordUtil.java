@@ -2,24 +2,68 @@ package com.datingapp.server;
 
 // Remove old imports if no longer needed (java.nio, java.security, java.util.Base64)
 // Add BCrypt import
+import com.datingapp.MainServer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import org.mindrot.jbcrypt.BCrypt;
 
+/**
+ * BCrypt hashing. The async variants run on a dedicated bounded pool (password.pool.cpuShare of the cores,
+ * password.pool.queueCapacity pending hashes) so a login storm cannot take every CPU away from chat traffic;
+ * beyond the queue limit they fail fast with {@link BusyException}.
+ * The cost factor is password.bcrypt.cost, or calibrated at startup from password.bcrypt.targetMillis.
+ */
 public class PasswordUtil {
 
+    /** The hashing pool's queue is full; the caller should answer "busy" rather than wait. */
+    public static class BusyException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BusyException() {
+            super("Password hashing queue is full.");
+        }
+    }
+
+    private static final int MIN_COST = 10;
+    private static final int MAX_COST = 16;
+
+    private static volatile int cost = clampCost("password.bcrypt.cost", MainServer.getIntProperty("password.bcrypt.cost", 12));
+
+    private static final ThreadPoolExecutor pool = createPool();
+
+    // Counters, reported through ServerStats
+    private static final LongAdder rejected = new LongAdder();
+    private static final LatencyHistogram hashLatency = new LatencyHistogram();
+
+    static {
+        ServerStats.register("passwordHashing", () -> "cost=" + cost + " threads=" + pool.getMaximumPoolSize()
+                + " active=" + pool.getActiveCount() + " queued=" + pool.getQueue().size()
+                + " rejected=" + rejected.sum() + " " + hashLatency.summary());
+    }
+
     /**
-     * Hashes a password using BCrypt.
+     * Hashes a password using BCrypt, on the calling thread.
      *
      * @param plainPassword The password to hash.
      * @return The BCrypt hashed password string.
      */
     public static String hashPassword(String plainPassword) {
-        // The gensalt method can take a log_rounds parameter (e.g., 12)
-        // Higher rounds = more secure but slower. Default is 10.
-        return BCrypt.hashpw(plainPassword, BCrypt.gensalt(12)); 
+        // Higher rounds = more secure but slower; see calibrateCost().
+        long start = System.nanoTime();
+        String hash = BCrypt.hashpw(plainPassword, BCrypt.gensalt(cost));
+        hashLatency.recordNanos(System.nanoTime() - start);
+        return hash;
     }
 
     /**
-     * Checks a plain password against a BCrypt hashed password.
+     * Checks a plain password against a BCrypt hashed password, on the calling thread.
      *
      * @param plainPassword  The plain password to check.
      * @param hashedPassword The BCrypt hashed password from the database.
@@ -31,14 +75,112 @@ public class PasswordUtil {
             // Old SHA-256 hashes won't start with $2a$ (or $2b$, $2y$).
             // This prevents BCrypt.checkpw from throwing an exception with old hashes.
             System.err.println("Warning: Attempting to check password against a non-BCrypt hash: " + hashedPassword);
-            return false; 
+            return false;
         }
         try {
-            return BCrypt.checkpw(plainPassword, hashedPassword);
+            long start = System.nanoTime();
+            boolean matches = BCrypt.checkpw(plainPassword, hashedPassword);
+            hashLatency.recordNanos(System.nanoTime() - start);
+            return matches;
         } catch (IllegalArgumentException e) {
             // Handles cases where the hash is not a valid BCrypt string, though the prefix check helps
             System.err.println("Error checking password with BCrypt (invalid hash format?): " + e.getMessage());
             return false;
         }
     }
+
+    /** {@link #hashPassword} on the hashing pool; fails with BusyException when the pool is saturated. */
+    public static CompletableFuture<String> hashPasswordAsync(String plainPassword) {
+        return submit(() -> hashPassword(plainPassword));
+    }
+
+    /** {@link #checkPassword} on the hashing pool; fails with BusyException when the pool is saturated. */
+    public static CompletableFuture<Boolean> checkPasswordAsync(String plainPassword, String hashedPassword) {
+        return submit(() -> checkPassword(plainPassword, hashedPassword));
+    }
+
+    /**
+     * True when a (matching) stored hash was made with another cost than the current one,
+     * so it should be replaced after a successful login.
+     */
+    public static boolean needsRehash(String hashedPassword) {
+        // $2a$12$...
+        try {
+            return Integer.parseInt(hashedPassword.substring(4, 6)) != cost;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Picks the BCrypt cost whose hash time is closest to password.bcrypt.targetMillis on this machine
+     * (each cost step doubles the time). Called by MainServer at startup; a target <= 0 keeps password.bcrypt.cost.
+     */
+    public static void calibrateCost() {
+        int targetMillis = MainServer.getIntProperty("password.bcrypt.targetMillis", 0);
+        if (targetMillis <= 0) {
+            System.out.println("PasswordUtil: BCrypt cost " + cost + " (not calibrated).");
+            return;
+        }
+        String salt = BCrypt.gensalt(MIN_COST);
+        BCrypt.hashpw("calibration", salt); // warm up the JIT
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            BCrypt.hashpw("calibration", salt);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double baseMillis = Math.max(0.1, best / 1_000_000.0);
+        int calibrated = clampCost("calibrated cost", MIN_COST + (int) Math.round(Math.log(targetMillis / baseMillis) / Math.log(2)));
+        cost = calibrated;
+        System.out.println("PasswordUtil: BCrypt cost " + calibrated + " (cost " + MIN_COST + " takes "
+                + String.format("%.1f", baseMillis) + " ms, target " + targetMillis + " ms).");
+    }
+
+    public static int getCost() {
+        return cost;
+    }
+
+    /**
+     * True if an async hash/check failed because the pool was saturated. The error may come bare (rejected at
+     * submission) or wrapped in a CompletionException (when seen through a dependent stage).
+     */
+    public static boolean isBusy(Throwable error) {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        return cause instanceof BusyException;
+    }
+
+    private static <T> CompletableFuture<T> submit(Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, pool);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            CompletableFuture<T> busy = new CompletableFuture<>();
+            busy.completeExceptionally(new BusyException());
+            return busy;
+        }
+    }
+
+    // Keeps the cost within MIN_COST..MAX_COST, saying so when the requested value was out of range
+    private static int clampCost(String source, int value) {
+        int clamped = Math.max(MIN_COST, Math.min(MAX_COST, value));
+        if (clamped != value) {
+            System.err.println("PasswordUtil: " + source + " " + value + " is outside " + MIN_COST + ".." + MAX_COST
+                    + ", using " + clamped + ".");
+        }
+        return clamped;
+    }
+
+    private static ThreadPoolExecutor createPool() {
+        double share = Double.parseDouble(MainServer.getProperty("password.pool.cpuShare", "0.5"));
+        int threads = Math.max(1, (int) Math.round(Runtime.getRuntime().availableProcessors() * share));
+        int queueCapacity = Math.max(1, MainServer.getIntProperty("password.pool.queueCapacity", 32));
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread t = new Thread(r, "password-hash-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1); // chat traffic first
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
 }
@@ -0,0 +1,60 @@
+package com.datingapp.server;
+
+import com.datingapp.common.WireCodec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message serialized once, to be written to many sessions.
+ * Its text and its binary ({@link WireCodec}) encoding are built lazily on first use and then shared by every
+ * recipient; each write gets its own view of the same bytes. A room with both text and binary clients encodes
+ * the message at most once per protocol.
+ */
+public final class PreparedFrame {
+
+    private static final byte FIN_TEXT = (byte) 0x81;
+    private static final byte FIN_BINARY = (byte) 0x82;
+
+    private volatile String text;
+    private volatile WireCodec.Frame wireFrame;
+    private volatile ByteBuffer frame;
+    private volatile ByteBuffer binaryPayload;
+    private volatile ByteBuffer binaryFrame;
+
+    public PreparedFrame(String text) {
+        this.text = text;
+    }
+
+    /**
+     * A message built field by field: binary clients receive the fields as they are, even with ':' in them.
+     */
+    public PreparedFrame(WireCodec.Frame wireFrame) {
+        this.wireFrame = wireFrame;
+    }
+
+    public String getText() {
+        String t = text;
+        if (t == null) {
+            t = wireFrame.toText();
+            text = t;
+        }
+        return t;
+    }
+
+    /**
+     * The binary message (WireCodec-encoded), as passed to sendBinary.
+     */
+    public ByteBuffer binaryPayload() {
+        ByteBuffer p = binaryPayload;
+        if (p == null) {
+            WireCodec.Frame w = wireFrame;
+            if (w == null) {
+                w = WireCodec.fromText(text, false);
+                wireFrame = w;
+            }
+            p = WireCodec.encode(w);
+            binaryPayload = p;
+        }
+        return p.duplicate();
+    }
+}
@@ -0,0 +1,125 @@
+package com.datingapp.server;
+
+import com.datingapp.MainServer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Versioned avatar/bio cache, shared by all sessions and kept across disconnects.
+ * users.profile_version (SchemaMigrator V2) is bumped by every profile update, so presence events only need
+ * to carry "username:version" and clients fetch the profiles they hold an older version of (REQ_PROFILES).
+ * Bounded by profile.cache.capacity, least recently used first.
+ */
+public class ProfileCache {
+
+    public static final class Profile {
+        public final String username;
+        public final int version;
+        public final String avatarUrl; // "" when unset
+        public final String bio;       // "" when unset
+
+        Profile(String username, int version, String avatarUrl, String bio) {
+            this.username = username;
+            this.version = version;
+            this.avatarUrl = avatarUrl == null ? "" : avatarUrl;
+            this.bio = bio == null ? "" : bio;
+        }
+    }
+
+    private static final int CAPACITY = Math.max(1, MainServer.getIntProperty("profile.cache.capacity", 10000));
+
+    // Guarded by the class lock
+    private static final LinkedHashMap<String, Profile> profiles = new LinkedHashMap<String, Profile>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Profile> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    // Counters, reported through ServerStats
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    static {
+        ServerStats.register("profileCache", () -> {
+            int size;
+            synchronized (ProfileCache.class) { size = profiles.size(); }
+            return "size=" + size + "/" + CAPACITY + " hits=" + hits.sum() + " misses=" + misses.sum();
+        });
+    }
+
+    private ProfileCache() {}
+
+    public static synchronized void put(String username, int version, String avatarUrl, String bio) {
+        Profile current = profiles.get(username);
+        // Never replace a newer version with an older read
+        if (current == null || current.version <= version) {
+            profiles.put(username, new Profile(username, version, avatarUrl, bio));
+        }
+    }
+
+    /**
+     * @return The user's profile, loading it on a miss; null if the user does not exist or the lookup failed.
+     */
+    public static Profile get(String username) {
+        List<Profile> found = getAll(Collections.singletonList(username));
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * Returns the profiles of the given users (unknown users are skipped), with one query for all misses.
+     */
+    public static List<Profile> getAll(Collection<String> usernames) {
+        List<Profile> result = new ArrayList<>();
+        Set<String> missing = new LinkedHashSet<>();
+        synchronized (ProfileCache.class) {
+            for (String username : usernames) {
+                Profile profile = profiles.get(username);
+                if (profile != null) {
+                    hits.increment();
+                    result.add(profile);
+                } else {
+                    missing.add(username);
+                }
+            }
+        }
+        if (missing.isEmpty()) return result;
+        misses.add(missing.size());
+        StringBuilder sql = new StringBuilder("SELECT username, profile_version, avatar_url, bio FROM users WHERE username IN (");
+        for (int i = 0; i < missing.size(); i++) sql.append(i == 0 ? "?" : ", ?");
+        sql.append(")");
+        try (Connection conn = DatabaseUtil.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+            int i = 1;
+            for (String username : missing) pstmt.setString(i++, username);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Profile profile = new Profile(rs.getString("username"), rs.getInt("profile_version"),
+                            rs.getString("avatar_url"), rs.getString("bio"));
+                    put(profile.username, profile.version, profile.avatarUrl, profile.bio);
+                    result.add(profile);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("ProfileCache: could not load " + missing.size() + " profile(s): " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Drops a cached profile after its row was updated, so the next read picks up the new version.
+     */
+    public static synchronized void invalidate(String username) {
+        profiles.remove(username);
+    }
+}
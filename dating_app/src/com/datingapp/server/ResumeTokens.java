@@ -0,0 +1,128 @@
+package com.datingapp.server;
+
+import com.datingapp.MainServer;
+import jakarta.websocket.Session;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short-lived tokens that let a client reconnect with RESUME instead of LOGIN (no BCrypt check).
+ * A token is issued at login, stays valid while its session is open and for session.resume.ttlSeconds after it
+ * closes, and is single-use: a successful resume consumes it and issues a new one. Logging in again revokes it.
+ */
+public class ResumeTokens {
+
+    public static final class Grant {
+        public final String username;
+        public final int userId;
+        volatile Session session;        // null once closed; may still be open on resume if the drop went unnoticed
+        volatile String room;            // room the session was in when it closed
+        volatile long expiresAt = Long.MAX_VALUE;
+
+        Grant(String username, int userId, Session session) {
+            this.username = username;
+            this.userId = userId;
+            this.session = session;
+        }
+
+        public Session session() {
+            return session;
+        }
+
+        public String room() {
+            return room;
+        }
+    }
+
+    private static final long TTL_MS = Math.max(1, MainServer.getIntProperty("session.resume.ttlSeconds", 120)) * 1000L;
+    private static final String SESSION_PROPERTY_KEY = "resumeToken";
+
+    private static final SecureRandom random = new SecureRandom();
+    // Drops a closed session's token when it expires unused, and with it the user's inbox in HistoryCache
+    private static final ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "resume-token-expiry");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Map<String, Grant> grants = new ConcurrentHashMap<>();
+    private static final Map<String, String> tokenByUser = new ConcurrentHashMap<>();
+
+    // Counters, reported through ServerStats
+    private static final LongAdder issued = new LongAdder();
+    private static final LongAdder resumed = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+
+    static {
+        ServerStats.register("resume", () -> "tokens=" + grants.size() + " issued=" + issued.sum()
+                + " resumed=" + resumed.sum() + " rejected=" + rejected.sum());
+    }
+
+    private ResumeTokens() {}
+
+    /**
+     * Issues a token for a freshly authenticated session, revoking the user's previous one.
+     */
+    public static String issue(Session session, String username, int userId) {
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes); // never contains ':'
+        grants.put(token, new Grant(username, userId, session));
+        String previous = tokenByUser.put(username, token);
+        if (previous != null) grants.remove(previous);
+        session.getUserProperties().put(SESSION_PROPERTY_KEY, token);
+        issued.increment();
+        if (issued.sum() % 256 == 0) purgeExpired();
+        return token;
+    }
+
+    /**
+     * Starts the expiry countdown of the session's token and remembers its room for the resume.
+     */
+    public static void sessionClosed(Session session, String room) {
+        String token = (String) session.getUserProperties().get(SESSION_PROPERTY_KEY);
+        Grant grant = token == null ? null : grants.get(token);
+        if (grant == null || grant.session != session) return;
+        grant.room = room;
+        grant.session = null;
+        grant.expiresAt = System.currentTimeMillis() + TTL_MS;
+        expirer.schedule(() -> expire(token, grant), TTL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Unless it was redeemed (or replaced by a new login) meanwhile, the user is gone for good.
+    private static void expire(String token, Grant grant) {
+        if (!grants.remove(token, grant)) return;
+        tokenByUser.remove(grant.username, token);
+        if (!tokenByUser.containsKey(grant.username)) HistoryCache.forget(HistoryCache.inboxKey(grant.userId));
+    }
+
+    /**
+     * Consumes a token.
+     *
+     * @return The grant, or null if the token is unknown, expired or already used.
+     */
+    public static Grant redeem(String token) {
+        Grant grant = grants.remove(token);
+        if (grant == null || grant.expiresAt < System.currentTimeMillis()) {
+            rejected.increment();
+            return null;
+        }
+        tokenByUser.remove(grant.username, token);
+        resumed.increment();
+        return grant;
+    }
+
+    private static void purgeExpired() {
+        long now = System.currentTimeMillis();
+        grants.entrySet().removeIf(e -> {
+            if (e.getValue().expiresAt >= now) return false;
+            tokenByUser.remove(e.getValue().username, e.getKey());
+            return true;
+        });
+    }
+}
@@ -0,0 +1,86 @@
+package com.datingapp.server;
+
+import jakarta.websocket.Session;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of meeting-code rooms to their member sessions.
+ * Broadcasts look up the room directly instead of scanning every connected session,
+ * so fan-out cost depends on the room size only.
+ */
+public class RoomRegistry {
+
+    public static final String DEFAULT_ROOM = "public";
+
+    private final Map<String, Set<Session>> rooms = new ConcurrentHashMap<>();
+    private final Map<Session, String> sessionRooms = new ConcurrentHashMap<>();
+
+    /**
+     * Normalizes a meeting code: null or blank codes map to the public room.
+     */
+    public static String normalize(String meetingCode) {
+        return (meetingCode == null || meetingCode.trim().isEmpty()) ? DEFAULT_ROOM : meetingCode.trim();
+    }
+
+    /**
+     * Moves a session into a room, leaving its previous room if any.
+     *
+     * @return The room the session was in before, or null if it was not in any room.
+     */
+    public String join(Session session, String meetingCode) {
+        String code = normalize(meetingCode);
+        String previous = sessionRooms.put(session, code);
+        if (previous != null && !previous.equals(code)) {
+            removeFromRoom(previous, session);
+        }
+        rooms.compute(code, (k, members) -> {
+            if (members == null) members = ConcurrentHashMap.newKeySet();
+            members.add(session);
+            return members;
+        });
+        return previous;
+    }
+
+    /**
+     * Removes a session from whatever room it is in.
+     *
+     * @return The room the session was in, or null if it was not in any room.
+     */
+    public String leave(Session session) {
+        String previous = sessionRooms.remove(session);
+        if (previous != null) {
+            removeFromRoom(previous, session);
+        }
+        return previous;
+    }
+
+    /**
+     * Returns the room of a session, or the public room if it has not joined one yet.
+     */
+    public String roomOf(Session session) {
+        return sessionRooms.getOrDefault(session, DEFAULT_ROOM);
+    }
+
+    /**
+     * Returns a live, thread-safe view of the sessions in a room (empty if the room does not exist).
+     */
+    public Set<Session> members(String meetingCode) {
+        Set<Session> members = rooms.get(normalize(meetingCode));
+        return members != null ? members : Collections.emptySet();
+    }
+
+    public int roomCount() {
+        return rooms.size();
+    }
+
+    private void removeFromRoom(String code, Session session) {
+        // Drop the room entry once it is empty so idle codes don't accumulate.
+        rooms.computeIfPresent(code, (k, members) -> {
+            members.remove(session);
+            return members.isEmpty() ? null : members;
+        });
+    }
+}
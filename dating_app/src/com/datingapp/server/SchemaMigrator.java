@@ -0,0 +1,130 @@
+package com.datingapp.server;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Versioned schema migrations, applied by MainServer at startup.
+ * init.sql only creates the baseline tables; every later schema change is a numbered {@link Migration}
+ * appended to {@link #MIGRATIONS}. Applied versions are recorded in the schema_version table.
+ * MySQL DDL is not transactional, so each step checks whether its change already exists
+ * and a migration interrupted halfway can simply be re-run.
+ */
+public class SchemaMigrator {
+
+    @FunctionalInterface
+    interface Step {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    private static final class Migration {
+        final int version;
+        final String description;
+        final List<Step> steps;
+
+        Migration(int version, String description, Step... steps) {
+            this.version = version;
+            this.description = description;
+            this.steps = Arrays.asList(steps);
+        }
+    }
+
+    // Append only: never edit a migration that may already have been applied somewhere.
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(1, "Indexes for meeting-code and DM history",
+                    // DM pair normalized as least(id) * 2^32 + greatest(id), so both directions share one key
+                    addColumnIfMissing("messages", "conversation_id",
+                            "BIGINT GENERATED ALWAYS AS (CASE WHEN receiver_id IS NULL THEN NULL "
+                                    + "ELSE LEAST(sender_id, receiver_id) * 4294967296 + GREATEST(sender_id, receiver_id) END) STORED"),
+                    addIndexIfMissing("messages", "idx_messages_room_history", "meeting_code, receiver_id, id"),
+                    addIndexIfMissing("messages", "idx_messages_dm_history", "conversation_id, id")),
+            new Migration(2, "Profile version for lazy profile fetch",
+                    // Bumped by every avatar/bio update; presence events carry it instead of the profile itself
+                    addColumnIfMissing("users", "profile_version", "INT NOT NULL DEFAULT 0")),
+            new Migration(3, "Message id sequence",
+                    // MessagePersister reserves blocks of message ids here instead of counting from MAX(id) in memory
+                    conn -> execute(conn, "CREATE TABLE IF NOT EXISTS message_sequence ("
+                            + "name VARCHAR(64) PRIMARY KEY, next_id BIGINT NOT NULL)"),
+                    conn -> execute(conn, "INSERT IGNORE INTO message_sequence (name, next_id) "
+                            + "SELECT 'messages', COALESCE(MAX(id), 0) + 1 FROM messages"))
+    );
+
+    private SchemaMigrator() {}
+
+    /**
+     * Applies every migration newer than the recorded schema version.
+     *
+     * @throws SQLException if a migration fails; the server should not start on a half-migrated schema.
+     */
+    public static void migrate() throws SQLException {
+        try (Connection conn = DatabaseUtil.getConnection()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version ("
+                        + "version INT PRIMARY KEY, "
+                        + "description VARCHAR(255) NOT NULL, "
+                        + "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            }
+            int current = currentVersion(conn);
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version <= current) continue;
+                System.out.println("SchemaMigrator: applying V" + migration.version + " - " + migration.description);
+                long start = System.currentTimeMillis();
+                for (Step step : migration.steps) {
+                    step.apply(conn);
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+                    pstmt.setInt(1, migration.version);
+                    pstmt.setString(2, migration.description);
+                    pstmt.executeUpdate();
+                }
+                System.out.println("SchemaMigrator: V" + migration.version + " applied in " + (System.currentTimeMillis() - start) + " ms.");
+                current = migration.version;
+            }
+            System.out.println("SchemaMigrator: schema is at version " + current + ".");
+        }
+    }
+
+    private static int currentVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    static Step addColumnIfMissing(String table, String column, String definition) {
+        return conn -> {
+            DatabaseMetaData meta = conn.getMetaData();
+            try (ResultSet rs = meta.getColumns(conn.getCatalog(), null, table, column)) {
+                if (rs.next()) return;
+            }
+            execute(conn, "ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        };
+    }
+
+    static Step addIndexIfMissing(String table, String index, String columns) {
+        return conn -> {
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "SELECT 1 FROM information_schema.statistics WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ?")) {
+                pstmt.setString(1, table);
+                pstmt.setString(2, index);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) return;
+                }
+            }
+            execute(conn, "CREATE INDEX " + index + " ON " + table + " (" + columns + ")");
+        };
+    }
+
+    private static void execute(Connection conn, String sql) throws SQLException {
+        System.out.println("SchemaMigrator:   " + sql);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(sql);
+        }
+    }
+}
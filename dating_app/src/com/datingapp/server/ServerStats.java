@@ -0,0 +1,63 @@
+package com.datingapp.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Registry of server-side counters.
+ * Components register a named supplier that renders their current counters as one line;
+ * the report is printed periodically to stdout (see server.stats.intervalSeconds).
+ */
+public class ServerStats {
+
+    private static final Map<String, Supplier<String>> sources = new ConcurrentSkipListMap<>();
+    private static ScheduledExecutorService reporter;
+
+    private ServerStats() {}
+
+    public static void register(String name, Supplier<String> source) {
+        sources.put(name, source);
+    }
+
+    /**
+     * Renders every registered source, one "name: counters" line each.
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Supplier<String>> entry : sources.entrySet()) {
+            String line;
+            try {
+                line = entry.getValue().get();
+            } catch (RuntimeException e) {
+                line = "unavailable (" + e.getMessage() + ")";
+            }
+            sb.append(entry.getKey()).append(": ").append(line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts printing the report every intervalSeconds. A value <= 0 disables reporting.
+     */
+    public static synchronized void start(int intervalSeconds) {
+        if (intervalSeconds <= 0 || reporter != null) return;
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "server-stats");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.print("=== STATS ===\n" + report()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stop() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+}
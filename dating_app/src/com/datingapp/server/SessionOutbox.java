@@ -0,0 +1,295 @@
+package com.datingapp.server;
+
+import com.datingapp.MainServer;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded outbound queue for one WebSocket session.
+ * Callers only enqueue; the queue is drained one frame at a time through the session's
+ * async remote, so a slow client never blocks the thread that is broadcasting to a room.
+ * When the queue is full the configured {@link SlowConsumerPolicy} decides what happens to broadcast frames
+ * ({@link #offer}); replies and control frames ({@link #offerReply}) are never dropped, only a client that lets
+ * them pile up beyond twice the capacity is disconnected.
+ * <p>
+ * Frames are queued as {@link PreparedFrame}s, so a broadcast serializes its payload once for every recipient;
+ * the container frames it per session (and compresses it when permessage-deflate was negotiated).
+ * <p>
+ * After {@link #useBinary()} (the client negotiated the binary protocol), frames queued from then on
+ * are sent in their {@link com.datingapp.common.WireCodec} form.
+ */
+public class SessionOutbox {
+
+    public enum SlowConsumerPolicy {
+        /** Discard the oldest queued broadcast frame to make room for the new one. */
+        DROP_OLDEST,
+        /** Replace a queued frame with the same coalescing key (e.g. presence of one user), else drop oldest broadcast. */
+        COALESCE,
+        /** Close the session; the client has to reconnect and reload history. */
+        DISCONNECT
+    }
+
+    private static final String USER_PROPERTY_KEY = "outbox";
+
+    private static final int CAPACITY = MainServer.getIntProperty("outbound.queue.capacity", 256);
+    // Replies may go over CAPACITY (they are never dropped), up to this
+    private static final int HARD_LIMIT = 2 * CAPACITY;
+    private static final SlowConsumerPolicy POLICY = parsePolicy(MainServer.getProperty("outbound.slowConsumerPolicy", "DROP_OLDEST"));
+
+    // Global counters, reported through ServerStats
+    private static final AtomicLong totalDepth = new AtomicLong();
+    private static final LongAdder enqueued = new LongAdder();
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder coalesced = new LongAdder();
+    private static final LongAdder sendFailures = new LongAdder();
+    private static final LongAdder disconnects = new LongAdder();
+    private static final LongAdder binaryFrames = new LongAdder();
+
+    static {
+        ServerStats.register("outbound", () -> "policy=" + POLICY + " capacity=" + CAPACITY
+                + " depth=" + totalDepth.get() + " enqueued=" + enqueued.sum() + " sent=" + sent.sum()
+                + " dropped=" + dropped.sum() + " coalesced=" + coalesced.sum()
+                + " sendFailures=" + sendFailures.sum() + " disconnects=" + disconnects.sum()
+                + " binaryFrames=" + binaryFrames.sum());
+    }
+
+    private static final class Entry {
+        final String key;
+        final boolean binary;
+        final boolean droppable; // a broadcast, as opposed to a reply or control frame
+        PreparedFrame payload;
+
+        Entry(String key, PreparedFrame payload, boolean binary, boolean droppable) {
+            this.key = key;
+            this.payload = payload;
+            this.binary = binary;
+            this.droppable = droppable;
+        }
+    }
+
+    private final Session session;
+    private final Deque<Entry> queue = new ArrayDeque<>();
+    private boolean sending = false;
+    private boolean closed = false;
+    private boolean closeWhenDrained = false;
+    private boolean binary = false;
+
+    private SessionOutbox(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Returns the outbox attached to a session, creating it on first use.
+     */
+    public static SessionOutbox of(Session session) {
+        synchronized (session) {
+            SessionOutbox outbox = (SessionOutbox) session.getUserProperties().get(USER_PROPERTY_KEY);
+            if (outbox == null) {
+                outbox = new SessionOutbox(session);
+                session.getUserProperties().put(USER_PROPERTY_KEY, outbox);
+            }
+            return outbox;
+        }
+    }
+
+    /**
+     * Queues a broadcast frame, which may be shared with other sessions (broadcasts prepare it once).
+     * Under DROP_OLDEST and COALESCE it may be dropped if the client falls behind.
+     *
+     * @param payload     The frame to send.
+     * @param coalesceKey Frames with the same non-null key supersede each other under the COALESCE policy.
+     */
+    public void offer(PreparedFrame payload, String coalesceKey) {
+        enqueue(payload, coalesceKey, true);
+    }
+
+    /**
+     * Queues a reply or control frame for this session alone (command answers, history pages, DMs):
+     * never dropped to make room.
+     */
+    public void offerReply(String payload) {
+        offerReply(new PreparedFrame(payload));
+    }
+
+    public void offerReply(PreparedFrame payload) {
+        enqueue(payload, null, false);
+    }
+
+    private void enqueue(PreparedFrame payload, String coalesceKey, boolean droppable) {
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closed) return;
+            enqueued.increment();
+            if (coalesceKey != null && POLICY == SlowConsumerPolicy.COALESCE && replacePending(coalesceKey, payload)) {
+                coalesced.increment();
+                return;
+            }
+            if (queue.size() >= CAPACITY) {
+                if (POLICY == SlowConsumerPolicy.DISCONNECT || queue.size() >= HARD_LIMIT) {
+                    disconnect = true;
+                    discardAll();
+                    closed = true;
+                } else if (!dropOldestBroadcast()) {
+                    // Only replies are queued: a new broadcast is the one dropped, a new reply goes over capacity
+                    if (droppable) {
+                        dropped.increment();
+                        return;
+                    }
+                }
+            }
+            if (!disconnect) {
+                queue.addLast(new Entry(coalesceKey, payload, binary, droppable));
+                totalDepth.incrementAndGet();
+            }
+        }
+        if (disconnect) {
+            disconnectSlowConsumer();
+        } else {
+            drain();
+        }
+    }
+
+    /**
+     * Sends every frame queued after this call with the binary protocol; earlier ones still go out as text.
+     */
+    public synchronized void useBinary() {
+        binary = true;
+    }
+
+    public synchronized boolean isBinary() {
+        return binary;
+    }
+
+    public synchronized int depth() {
+        return queue.size();
+    }
+
+    /**
+     * Closes the session once every frame queued so far has been written,
+     * e.g. to deliver a final notice before kicking a session.
+     */
+    public void closeWhenDrained() {
+        synchronized (this) {
+            if (closed) return;
+            closeWhenDrained = true;
+        }
+        drain();
+    }
+
+    /**
+     * Discards everything still queued. Called when the session closes.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            discardAll();
+        }
+    }
+
+    private boolean replacePending(String key, PreparedFrame payload) {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (key.equals(entry.key)) {
+                entry.payload = payload;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean dropOldestBroadcast() {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().droppable) {
+                it.remove();
+                totalDepth.decrementAndGet();
+                dropped.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void discardAll() {
+        totalDepth.addAndGet(-queue.size());
+        queue.clear();
+    }
+
+    private void drain() {
+        Entry next = null;
+        synchronized (this) {
+            if (sending || closed) return;
+            if (queue.isEmpty()) {
+                if (!closeWhenDrained) return;
+                closed = true;
+            } else {
+                next = queue.pollFirst();
+                totalDepth.decrementAndGet();
+                sending = true;
+            }
+        }
+        if (next == null) {
+            // Queue drained after closeWhenDrained(): now the session can go.
+            try {
+                session.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        try {
+            if (next.binary) {
+                binaryFrames.increment();
+                session.getAsyncRemote().sendBinary(next.payload.binaryPayload(), this::onSent);
+            } else {
+                session.getAsyncRemote().sendText(next.payload.getText(), this::onSent);
+            }
+        } catch (RuntimeException e) {
+            // Session closed underneath us; nothing else can be delivered.
+            sendFailures.increment();
+            close();
+        }
+    }
+
+    private void onSent(SendResult result) {
+        synchronized (this) {
+            sending = false;
+        }
+        if (result.isOK()) {
+            sent.increment();
+        } else {
+            sendFailures.increment();
+            System.err.println("Async send failed on session " + session.getId() + ": " + result.getException());
+        }
+        drain();
+    }
+
+    private void disconnectSlowConsumer() {
+        disconnects.increment();
+        System.err.println("Session " + session.getId() + " exceeded outbound queue capacity ("
+                + (POLICY == SlowConsumerPolicy.DISCONNECT ? CAPACITY : HARD_LIMIT) + "), disconnecting.");
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Slow consumer"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static SlowConsumerPolicy parsePolicy(String value) {
+        try {
+            return SlowConsumerPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown outbound.slowConsumerPolicy '" + value + "', using DROP_OLDEST.");
+            return SlowConsumerPolicy.DROP_OLDEST;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.datingapp.server;
+
+import com.datingapp.MainServer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Bounded username <-> user id cache. Ids never change, so entries never go stale;
+ * the least recently used users are evicted beyond directory.cache.capacity.
+ * Filled on login and registration, by {@link #preload()} at startup and by lookups that miss.
+ * Misses are not cached: a username that does not exist yet may be registered a moment later.
+ * Names are looked up case-insensitively, like the users.username column collation; namesById keeps the stored spelling.
+ */
+public class UserDirectory {
+
+    private static final int CAPACITY = Math.max(1, MainServer.getIntProperty("directory.cache.capacity", 10000));
+
+    // Both maps are guarded by the class lock and always hold the same users. idsByName is keyed by key(username).
+    private static final LinkedHashMap<String, Integer> idsByName = new LinkedHashMap<String, Integer>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            if (size() <= CAPACITY) return false;
+            namesById.remove(eldest.getValue());
+            evictions.increment();
+            return true;
+        }
+    };
+    private static final Map<Integer, String> namesById = new HashMap<>();
+
+    // Counters, reported through ServerStats
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    static {
+        ServerStats.register("userDirectory", () -> {
+            int size;
+            synchronized (UserDirectory.class) { size = idsByName.size(); }
+            long h = hits.sum(), n = h + misses.sum();
+            return "size=" + size + "/" + CAPACITY + " hits=" + h + " misses=" + misses.sum()
+                    + " hitRatio=" + (n == 0 ? "n/a" : String.format("%.1f%%", 100.0 * h / n)) + " evictions=" + evictions.sum();
+        });
+    }
+
+    private UserDirectory() {}
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    public static synchronized void put(String username, int userId) {
+        Integer previous = idsByName.put(key(username), userId);
+        if (previous != null && previous != userId) namesById.remove(previous);
+        String previousName = namesById.put(userId, username);
+        if (previousName != null && !key(previousName).equals(key(username))) idsByName.remove(key(previousName));
+    }
+
+    /**
+     * @return The user's id, or null if no such user exists (or the lookup failed).
+     */
+    public static Integer idOf(String username) {
+        synchronized (UserDirectory.class) {
+            Integer id = idsByName.get(key(username));
+            if (id != null) {
+                hits.increment();
+                return id;
+            }
+        }
+        misses.increment();
+        String sql = "SELECT id, username FROM users WHERE username = ?";
+        try (Connection conn = DatabaseUtil.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, username);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) return null;
+                int id = rs.getInt("id");
+                put(rs.getString("username"), id);
+                return id;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Resolves several user ids at once, with one query for the ones not cached, run on {@code conn}: callers
+     * already hold a pooled connection, and borrowing a second one could exhaust the pool.
+     * Unknown ids are absent from the result.
+     */
+    public static Map<Integer, String> namesOf(Connection conn, Collection<Integer> userIds) throws SQLException {
+        Map<Integer, String> names = new HashMap<>();
+        Set<Integer> missing = new LinkedHashSet<>();
+        synchronized (UserDirectory.class) {
+            for (Integer id : userIds) {
+                if (names.containsKey(id) || missing.contains(id)) continue;
+                String name = namesById.get(id);
+                if (name != null) {
+                    idsByName.get(key(name)); // touch, for LRU order
+                    names.put(id, name);
+                    hits.increment();
+                } else {
+                    missing.add(id);
+                    misses.increment();
+                }
+            }
+        }
+        if (missing.isEmpty()) return names;
+        // Ids are Integers, so inlining them is safe.
+        String sql = "SELECT id, username FROM users WHERE id IN ("
+                + missing.stream().map(String::valueOf).collect(Collectors.joining(",")) + ")";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql); ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                int id = rs.getInt("id");
+                String name = rs.getString("username");
+                put(name, id);
+                names.put(id, name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Loads the most recently registered users, up to the capacity. Called by MainServer at startup
+     * when directory.preload is true; failures are logged and the cache simply fills on demand.
+     */
+    public static void preload() {
+        String sql = "SELECT id, username FROM users ORDER BY id DESC LIMIT ?";
+        long start = System.currentTimeMillis();
+        List<Object[]> users = new ArrayList<>();
+        try (Connection conn = DatabaseUtil.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, CAPACITY);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) users.add(new Object[]{rs.getString("username"), rs.getInt("id")});
+            }
+            // Oldest first, so the newest users end up most recently used.
+            for (int i = users.size() - 1; i >= 0; i--) put((String) users.get(i)[0], (Integer) users.get(i)[1]);
+            System.out.println("UserDirectory: preloaded " + users.size() + " user(s) in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (SQLException e) {
+            System.err.println("UserDirectory: preload failed, users will be loaded on demand: " + e.getMessage());
+        }
+    }
+}